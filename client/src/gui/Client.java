@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,13 +43,12 @@ import javax.swing.AbstractListModel;
 
 class Subscription {
 	public Subscription(int id, String resource, String metric, String host,
-			int httpPort, int port, SocketChannel channel) {
+			int httpPort, int port) {
 		this.id = id;
 		this.resource = resource;
 		this.metric = metric;
 		this.host = host;
 		this.port = port;
-		this.channel = channel;
 		this.httpPort = httpPort;
 	}
 
@@ -60,10 +60,6 @@ class Subscription {
 		return resource;
 	}
 
-	public SocketChannel getChannel() {
-		return channel;
-	}
-
 	public String getMetric() {
 		return metric;
 	}
@@ -86,7 +82,6 @@ class Subscription {
 	private String host;
 	private int port;
 	private int httpPort;
-	private SocketChannel channel;
 }
 
 public class Client extends javax.swing.JFrame {
@@ -458,6 +453,13 @@ public class Client extends javax.swing.JFrame {
 						}
 				}
 
+				// sensor zniknął z monitora od czasu pobrania listy
+				if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+					System.out.println("Sensor not available: "
+							+ selectedResourceMetric);
+					return;
+				}
+
 				// Get the response
 				BufferedReader reader = new BufferedReader(
 						new InputStreamReader(conn.getInputStream()));
@@ -472,11 +474,16 @@ public class Client extends javax.swing.JFrame {
 				System.out.println(id + ", " + resource + ", " + metric + ", "
 						+ portStr);
 
+				// wszystkie subskrypcje przychodzą jednym połączeniem na
+				// porcie strumieniowym monitora
 				int port = Integer.parseInt(portStr);
 				try {
-					channel = SocketChannel.open(new InetSocketAddress(
-							hostNameText.getText(), port));
-					channel.configureBlocking(false);
+					if (channel == null || !channel.isOpen()) {
+						channel = SocketChannel.open(new InetSocketAddress(
+								hostNameText.getText(), port));
+						channel.configureBlocking(false);
+					}
+					sendCommand("SUB " + id);
 				} catch (IOException e) {
 					res = String.format("Unable to connect to %s:%d\n",
 							hostNameText.getText(), port);
@@ -485,7 +492,7 @@ public class Client extends javax.swing.JFrame {
 
 				sub = new Subscription(Integer.parseInt(id), resource, metric,
 						hostNameText.getText(), Integer.parseInt(httpPortText.getText()),
-						port, channel);
+						port);
 
 				// TODO: Tutaj skończyło się pobieranie informacji od serwera
 
@@ -531,8 +538,8 @@ public class Client extends javax.swing.JFrame {
 			ConnectedSensorsListModel.removeElement(ConnectedSensorsList
 					.getSelectedValue().toString());
 			try {
-				// zamkniecie portu
-				sub.getChannel().close();
+				// wypisanie z subskrypcji - połączenie zostaje dla pozostałych
+				sendCommand("UNSUB " + sub.getId());
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				// ignore
@@ -569,6 +576,40 @@ public class Client extends javax.swing.JFrame {
 		}
 	}
 
+	/**
+	 * Wysyła komendę (SUB/UNSUB) na port strumieniowy
+	 */
+	private static void sendCommand(String command) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		ByteBuffer buff = ByteBuffer.wrap((command + "\n").getBytes(Charset
+				.defaultCharset()));
+		while (buff.hasRemaining()) {
+			channel.write(buff);
+		}
+	}
+
+	/**
+	 * Pokazuje tekst w zakładce sensora subskrypcji o podanym id
+	 */
+	private static void showInTab(int id, String text) {
+		for (Subscription sub : instance.subscriptions) {
+			if (sub.getId() != id) {
+				continue;
+			}
+			int index = SensorsInformationTabs.indexOfTab(sub.getResource()
+					+ "#" + sub.getMetric());
+			if (index >= 0) {
+				javax.swing.JScrollPane scrollPane = (javax.swing.JScrollPane) SensorsInformationTabs
+						.getComponentAt(index);
+				javax.swing.JTextArea textArea = (javax.swing.JTextArea) scrollPane
+						.getViewport().getView();
+				textArea.setText(text);
+			}
+		}
+	}
+
 	private void connectToResourceActionPerformed(java.awt.event.ActionEvent evt) {
 		if (!AvailableResourcesList.isSelectionEmpty()
 				&& resourcesList.isConnected()) {
@@ -579,20 +620,11 @@ public class Client extends javax.swing.JFrame {
 				url = new URL("http://" + monitor + "/subscriptions/metrics/"
 						+ AvailableResourcesList.getSelectedValue().toString());
 
-				URLConnection conn;
-				conn = url.openConnection();
-
-				// Get the response
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(conn.getInputStream()));
-				String line;
-
 				AvaibleMetricsListModel.clear();
-				while ((line = reader.readLine()) != null) {
+				for (String line : CachedListing.fetch(url)) {
 					AvaibleMetricsListModel.addElement(AvailableResourcesList
 							.getSelectedValue().toString() + "#" + line);
 				}
-				reader.close();
 			} catch (MalformedURLException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -657,49 +689,33 @@ public class Client extends javax.swing.JFrame {
 		while (true) {
 			try {
 				Thread.currentThread().sleep(1000);// sleep for 1000 ms
-				if (SensorsInformationTabs.getTabCount() > 0) {
-					javax.swing.JScrollPane scrollPane = (javax.swing.JScrollPane) SensorsInformationTabs
-							.getSelectedComponent();
-					javax.swing.JViewport viewPort = (javax.swing.JViewport) scrollPane
-							.getViewport();
-					javax.swing.JTextArea textArea = (javax.swing.JTextArea) viewPort
-							.getView();
-
-					String tabName = SensorsInformationTabs
-							.getTitleAt(SensorsInformationTabs
-									.getSelectedIndex());
-					String[] tokens = tabName.split("#");
-
-					SocketChannel channel = null;
-					for (Subscription sub : instance.subscriptions) {
-						if (sub.getResource().equalsIgnoreCase(tokens[0])
-								&& sub.getMetric().equalsIgnoreCase(tokens[1])) {
-							channel = sub.getChannel();
-							break;
+				if (channel != null && channel.isOpen()) {
+					ByteBuffer buff = ByteBuffer.allocate(4096);
+					int ret;
+					while ((ret = channel.read(buff)) > 0) {
+						buff.flip();
+						received.append(Charset.defaultCharset().decode(buff));
+						buff.clear();
+					}
+					int lineEnd;
+					while ((lineEnd = received.indexOf("\n")) >= 0) {
+						String line = received.substring(0, lineEnd);
+						received.delete(0, lineEnd + 1);
+						// format wiadomosci:
+						// #id#zasob#metryka#wartosc#
+						// pozostałe linie to odpowiedzi na komendy
+						String[] tokens = line.split("#");
+						if (tokens.length >= 5 && tokens[0].isEmpty()) {
+							showInTab(Integer.parseInt(tokens[1]), tokens[4]);
+						} else if (line.startsWith("END ")) {
+							showInTab(Integer.parseInt(line.substring(4).trim()),
+									"Subscritpion not available");
 						}
 					}
-
-					if (channel != null) {
-						ByteBuffer buff = ByteBuffer.allocate(1024);
-						int ret = channel.read(buff);
-						buff.flip();
-						if (ret > 0) {
-							String msg = Charset.defaultCharset().decode(buff)
-									.toString();
-							// format wiadomosci:
-							// #zasob#metryka#wartosc#
-							tokens = msg.split("#");
-							// Do wiadomości mogą czasem dostać się
-							// jakieś
-							// śmieci (szczególnie przy pierwszej
-							// wiadomości),
-							// dlatego sprawdzamy poprawność formatu;
-							if (tokens.length >= 4 && tokens[0].isEmpty())
-								textArea.setText(tokens[3]);
-						} else if (ret < 0) {
-							textArea.setText("Subscritpion not available");
-						} else {
-							// Serwer jeszcze nic nie wysłał
+					if (ret < 0) {
+						channel.close();
+						for (Subscription sub : instance.subscriptions) {
+							showInTab(sub.getId(), "Subscritpion not available");
 						}
 					}
 				}
@@ -754,6 +770,8 @@ public class Client extends javax.swing.JFrame {
 	private javax.swing.JTextField httpPortText;
 	private javax.swing.JButton connectHostButton;
 	private static SocketChannel channel;
+	// niepełna linia z poprzedniego odczytu portu strumieniowego
+	private static StringBuilder received = new StringBuilder();
 	private ResourcesListModel resourcesList;
 	private static Client instance;
 
@@ -800,17 +818,7 @@ class ResourcesListModel extends AbstractListModel {
 
 			url = new URL("http://" + monitorName + "/subscriptions/");
 
-			URLConnection conn;
-			conn = url.openConnection();
-
-			// Get the response
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					conn.getInputStream()));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				resourcesArray.add(line);
-			}
-			reader.close();
+			resourcesArray.addAll(CachedListing.fetch(url));
 			connected = true;
 		} catch (MalformedURLException e) {
 			// TODO Auto-generated catch block
@@ -842,3 +850,48 @@ class ResourcesListModel extends AbstractListModel {
 		resourcesArray.clear();
 	}
 }
+
+/**
+ * Listingi pobrane z monitora wraz z ich ETag. Kolejne pobranie tego samego
+ * adresu wysyła If-None-Match - jeżeli sensory się nie zmieniły, monitor
+ * odpowiada 304 bez treści i używana jest zapamiętana lista.
+ */
+class CachedListing {
+	private static final HashMap<String, CachedListing> cache = new HashMap<String, CachedListing>();
+
+	private CachedListing(String etag, ArrayList<String> lines) {
+		this.etag = etag;
+		this.lines = lines;
+	}
+
+	static synchronized ArrayList<String> fetch(URL url) throws IOException {
+		CachedListing cached = cache.get(url.toString());
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		if (cached != null) {
+			conn.setRequestProperty("If-None-Match", cached.etag);
+		}
+		if (cached != null
+				&& conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			conn.disconnect();
+			return new ArrayList<String>(cached.lines);
+		}
+
+		// Get the response
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				conn.getInputStream(), "UTF-8"));
+		ArrayList<String> lines = new ArrayList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		String etag = conn.getHeaderField("ETag");
+		if (etag != null) {
+			cache.put(url.toString(), new CachedListing(etag, lines));
+		}
+		return new ArrayList<String>(lines);
+	}
+
+	private final String etag;
+	private final ArrayList<String> lines;
+}
@@ -1,6 +1,18 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+
+import aggregation.RollupStage;
+import aggregation.WindowedAggregates;
+import derived.DerivedMetrics;
+import federation.FederationServer;
+import federation.UpstreamForwarder;
 import http.HTTPServer;
 import network.MessageQueue;
 import sensors.SensorDataCollector;
+import storage.MeasurementStore;
+import subscription.SubscriptionServer;
 
 
 public class Main {
@@ -10,12 +22,67 @@ public class Main {
 	 * @throws Exception 
 	 */
 	public static void main(String[] args) throws Exception {
-		// TODO Auto-generated method stub
-		MessageQueue queue = new MessageQueue();
+		// -Dmonitor.workers=N włącza tryb wielu reaktorów (akceptor + N wątków)
+		MessageQueue queue = new MessageQueue(Integer.getInteger(
+				"monitor.workers", 0));
 		SensorDataCollector sensorDataCollector = new SensorDataCollector(queue);
+		RollupStage rollupStage = new RollupStage();
+		sensorDataCollector.addUpdateStage(rollupStage);
+
+		// -Dmonitor.store.dir=<katalog> włącza trwały zapis pomiarów
+		String storeDirectory = System.getProperty("monitor.store.dir");
+		if (storeDirectory != null) {
+			MeasurementStore store = new MeasurementStore(new File(
+					storeDirectory));
+			// agregaty także dla okresu sprzed restartu
+			store.recover(sensorDataCollector, rollupStage);
+			sensorDataCollector.addUpdateStage(store);
+			store.start();
+		}
 		
+		// jeden port strumieniowy dla wszystkich subskrypcji
+		SubscriptionServer subscriptionServer = new SubscriptionServer(queue);
+
+		// agregaty okienkowe (opcja subskrypcji window=avg:60s)
+		WindowedAggregates windowedAggregates = new WindowedAggregates(
+				sensorDataCollector);
+
+		// metryki wyliczane; -Dmonitor.derived=<plik> wczytuje definicje przy
+		// starcie (po jednej w linii, # - komentarz)
+		DerivedMetrics derivedMetrics = new DerivedMetrics(sensorDataCollector);
+		String derivedFile = System.getProperty("monitor.derived");
+		if (derivedFile != null) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(derivedFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty() && !line.startsWith("#")) {
+						derivedMetrics.define(line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		// federacja: z -Dmonitor.federation.port=N monitory podrzędne łączą
+		// się z tym monitorem, a z -Dmonitor.federation.parent=host:port ten
+		// monitor przekazuje swoje sensory (lub ich agregaty,
+		// -Dmonitor.federation.rollup=60s) wyżej
+		if (System.getProperty("monitor.federation.port") != null) {
+			new FederationServer(queue, sensorDataCollector);
+		}
+		String parent = System.getProperty("monitor.federation.parent");
+		if (parent != null) {
+			new UpstreamForwarder(sensorDataCollector, rollupStage, parent)
+					.start();
+		}
+
 		HTTPServer server = new HTTPServer();
-		server.run(sensorDataCollector, queue);
+		server.run(sensorDataCollector, queue, rollupStage, subscriptionServer,
+				windowedAggregates, derivedMetrics);
 		
 		
 		queue.run();
@@ -0,0 +1,146 @@
+package aggregation;
+
+/**
+ * Szkic kwantyli o zadanej dokładności względnej (kubełki logarytmiczne, jak
+ * w DDSketch). Wartość v trafia do kubełka ceil(log_gamma(|v|)), więc każdy
+ * kwantyl jest zwracany z błędem względnym nie większym niż alfa, przy
+ * pamięci zależnej od zakresu wartości, a nie od ich liczby.
+ *
+ * Obsługuje usuwanie wartości, więc nadaje się do okien przesuwnych. Nie jest
+ * bezpieczny wielowątkowo.
+ *
+ * Nieskończoności liczone są w osobnych licznikach (najmniejsza i największa
+ * wartość), NaN jest pomijane.
+ */
+final class QuantileSketch {
+
+	// wartości bliższe zeru liczone są jako zero
+	private static final double MIN_MAGNITUDE = 1e-9;
+	// ograniczenie indeksu kubełka (dla float i alfa 0.01 wystarcza ~4500)
+	private static final int MAX_INDEX = 1 << 16;
+
+	/**
+	 * Liczniki kubełków o kolejnych indeksach, od indeksu offset
+	 */
+	private static final class Buckets {
+
+		void add(int index, int delta) {
+			if (counts == null) {
+				counts = new long[16];
+				offset = index - 8;
+			}
+			if (index < offset) {
+				int shift = Math.max(offset - index, counts.length);
+				long[] grown = new long[counts.length + shift];
+				System.arraycopy(counts, 0, grown, shift, counts.length);
+				counts = grown;
+				offset -= shift;
+			} else if (index >= offset + counts.length) {
+				long[] grown = new long[Math.max(index - offset + 1,
+						counts.length * 2)];
+				System.arraycopy(counts, 0, grown, 0, counts.length);
+				counts = grown;
+			}
+			counts[index - offset] += delta;
+		}
+
+		long[] counts;
+		int offset;
+	}
+
+	QuantileSketch(double relativeAccuracy) {
+		gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		logGamma = Math.log(gamma);
+	}
+
+	void add(float value) {
+		update(value, 1);
+	}
+
+	void remove(float value) {
+		update(value, -1);
+	}
+
+	private void update(float value, int delta) {
+		if (Float.isNaN(value)) {
+			return;
+		}
+		if (value == Float.POSITIVE_INFINITY) {
+			positiveInfinite += delta;
+		} else if (value == Float.NEGATIVE_INFINITY) {
+			negativeInfinite += delta;
+		} else if (value > MIN_MAGNITUDE) {
+			positive.add(index(value), delta);
+		} else if (value < -MIN_MAGNITUDE) {
+			negative.add(index(-value), delta);
+		} else {
+			zeroCount += delta;
+		}
+		count += delta;
+	}
+
+	private int index(double magnitude) {
+		double index = Math.ceil(Math.log(magnitude) / logGamma);
+		return (int) Math.max(-MAX_INDEX, Math.min(MAX_INDEX, index));
+	}
+
+	private double value(int index) {
+		// środek kubełka (gamma^(i-1), gamma^i] w sensie błędu względnego
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Przybliżony kwantyl q z przedziału [0, 1]
+	 *
+	 * @param q
+	 * @return NaN dla pustego szkicu
+	 */
+	double quantile(double q) {
+		if (count <= 0) {
+			return Double.NaN;
+		}
+		long rank = (long) (q * (count - 1));
+		long seen = negativeInfinite;
+		if (seen > rank) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		// od najmniejszych: ujemne od największego modułu, zero, dodatnie
+		if (negative.counts != null) {
+			for (int i = negative.counts.length - 1; i >= 0; i--) {
+				seen += negative.counts[i];
+				if (seen > rank) {
+					return -value(i + negative.offset);
+				}
+			}
+		}
+		seen += zeroCount;
+		if (seen > rank) {
+			return 0;
+		}
+		if (positive.counts != null) {
+			for (int i = 0; i < positive.counts.length; i++) {
+				seen += positive.counts[i];
+				if (seen > rank) {
+					return value(i + positive.offset);
+				}
+			}
+		}
+		if (positiveInfinite > 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Double.NaN;
+	}
+
+	private final double gamma;
+	private final double logGamma;
+	private final Buckets positive = new Buckets();
+	private final Buckets negative = new Buckets();
+	private long zeroCount;
+	private long positiveInfinite;
+	private long negativeInfinite;
+	private long count;
+}
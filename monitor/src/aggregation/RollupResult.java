@@ -0,0 +1,105 @@
+package aggregation;
+
+import java.util.Arrays;
+
+/**
+ * Wynik zapytania o agregaty: kolejne przedziały o długości kroku zapytania,
+ * w tablicach typów prostych. Przedziały źródłowe należące do tego samego
+ * kroku są scalane.
+ */
+public class RollupResult {
+
+	RollupResult(long step, long resolution) {
+		this.step = Math.max(step, resolution);
+		this.resolution = resolution;
+	}
+
+	void add(long start, float min, float max, double sum, int count) {
+		long groupStart = start - start % step;
+		if (size > 0 && starts[size - 1] == groupStart) {
+			int i = size - 1;
+			if (min < mins[i]) {
+				mins[i] = min;
+			}
+			if (max > maxs[i]) {
+				maxs[i] = max;
+			}
+			sums[i] += sum;
+			counts[i] += count;
+			return;
+		}
+		if (size == starts.length) {
+			grow();
+		}
+		starts[size] = groupStart;
+		mins[size] = min;
+		maxs[size] = max;
+		sums[size] = sum;
+		counts[size] = count;
+		size++;
+	}
+
+	private void grow() {
+		int capacity = starts.length * 2;
+		starts = Arrays.copyOf(starts, capacity);
+		mins = Arrays.copyOf(mins, capacity);
+		maxs = Arrays.copyOf(maxs, capacity);
+		sums = Arrays.copyOf(sums, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+	}
+
+	/**
+	 * Długość przedziałów wyniku (ms)
+	 * 
+	 * @return
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Rozdzielczość agregatów, z których zbudowano wynik (ms)
+	 * 
+	 * @return
+	 */
+	public long getResolution() {
+		return resolution;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getStart(int i) {
+		return starts[i];
+	}
+
+	public float getMin(int i) {
+		return mins[i];
+	}
+
+	public float getMax(int i) {
+		return maxs[i];
+	}
+
+	public double getSum(int i) {
+		return sums[i];
+	}
+
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	public double getAverage(int i) {
+		return sums[i] / counts[i];
+	}
+
+	private final long step;
+	private final long resolution;
+	private int size;
+	private long[] starts = new long[64];
+	private float[] mins = new float[64];
+	private float[] maxs = new float[64];
+	private double[] sums = new double[64];
+	private int[] counts = new int[64];
+}
@@ -0,0 +1,169 @@
+package aggregation;
+
+/**
+ * Agregaty (min, max, suma, liczba) pomiarów jednego sensora w przedziałach o
+ * stałej długości.
+ *
+ * Przechowywane są tylko przedziały, w których były pomiary - w buforze
+ * cyklicznym uporządkowanym według początku przedziału, nie starszym niż
+ * retention przedziałów od najnowszego. Bufor rośnie na żądanie (najwyżej do
+ * retention), więc sensor raportujący raz na minutę zajmuje na poziomie
+ * sekundowym kilka slotów zamiast kilkuset. Nowy przedział dopisywany jest na
+ * końcu, a aktualizacja ostatniego kosztuje O(1).
+ *
+ * Klasa nie jest synchronizowana - robi to {@link RollupStage}.
+ */
+public class RollupSeries {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	public RollupSeries(long resolution, int retention) {
+		this.resolution = resolution;
+		this.retention = retention;
+	}
+
+	/**
+	 * Długość przedziału w ms
+	 * 
+	 * @return
+	 */
+	public long getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Długość okresu, za który przechowywane są dane (ms)
+	 * 
+	 * @return
+	 */
+	public long getRetentionMillis() {
+		return resolution * retention;
+	}
+
+	void add(long timestamp, float value) {
+		long start = timestamp - timestamp % resolution;
+		if (size > 0) {
+			long newest = starts[slot(size - 1)];
+			if (start <= newest) {
+				// bieżący przedział albo spóźniony pomiar dla wcześniejszego;
+				// przedziały, które wypadły z retencji lub nie istnieją, są
+				// pomijane
+				int i = start == newest ? size - 1 : find(start);
+				if (i >= 0) {
+					update(slot(i), value);
+				}
+				return;
+			}
+			// przedziały starsze niż retencja względem nowego
+			long oldest = start - (retention - 1) * resolution;
+			while (size > 0 && starts[head] < oldest) {
+				head = (head + 1) % starts.length;
+				size--;
+			}
+		}
+		if (starts == null || size == starts.length) {
+			grow();
+		}
+		int slot = slot(size++);
+		starts[slot] = start;
+		mins[slot] = value;
+		maxs[slot] = value;
+		sums[slot] = value;
+		counts[slot] = 1;
+	}
+
+	private void update(int slot, float value) {
+		if (value < mins[slot]) {
+			mins[slot] = value;
+		}
+		if (value > maxs[slot]) {
+			maxs[slot] = value;
+		}
+		sums[slot] += value;
+		counts[slot]++;
+	}
+
+	/**
+	 * Powiększa bufor, układając przedziały od początku tablic
+	 */
+	private void grow() {
+		int capacity = starts == null ? Math.min(INITIAL_CAPACITY, retention)
+				: Math.min(starts.length * 2, retention);
+		long[] newStarts = new long[capacity];
+		float[] newMins = new float[capacity];
+		float[] newMaxs = new float[capacity];
+		double[] newSums = new double[capacity];
+		int[] newCounts = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+			newStarts[i] = starts[slot];
+			newMins[i] = mins[slot];
+			newMaxs[i] = maxs[slot];
+			newSums[i] = sums[slot];
+			newCounts[i] = counts[slot];
+		}
+		starts = newStarts;
+		mins = newMins;
+		maxs = newMaxs;
+		sums = newSums;
+		counts = newCounts;
+		head = 0;
+	}
+
+	/**
+	 * Pozycja (0 - najstarszy) pierwszego przedziału o początku &gt;= start
+	 */
+	private int lowerBound(long start) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[slot(mid)] < start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Pozycja przedziału o podanym początku lub -1
+	 */
+	private int find(long start) {
+		int i = lowerBound(start);
+		return i < size && starts[slot(i)] == start ? i : -1;
+	}
+
+	/**
+	 * Przekazuje do wyniku przedziały zaczynające się w zakresie [from, to]
+	 */
+	void read(long from, long to, RollupResult result) {
+		if (size == 0) {
+			return;
+		}
+		for (int i = lowerBound(from - from % resolution); i < size; i++) {
+			int slot = slot(i);
+			if (starts[slot] > to) {
+				break;
+			}
+			result.add(starts[slot], mins[slot], maxs[slot], sums[slot],
+					counts[slot]);
+		}
+	}
+
+	private int slot(int position) {
+		return (head + position) % starts.length;
+	}
+
+	private final long resolution;
+	private final int retention;
+	// bufor cykliczny: size przedziałów od pozycji head
+	private long[] starts;
+	private float[] mins;
+	private float[] maxs;
+	private double[] sums;
+	private int[] counts;
+	private int head;
+	private int size;
+}
@@ -0,0 +1,137 @@
+package aggregation;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import sensors.Sensor;
+import sensors.SensorUpdateListener;
+
+/**
+ * Etap przetwarzania pomiarów utrzymujący agregaty każdego sensora w kilku
+ * rozdzielczościach (domyślnie 1 s, 1 min, 1 h), każda z własną retencją.
+ * Agregaty aktualizowane są przy każdym pomiarze, więc zapytania o długie
+ * okresy czytają gotowe przedziały zamiast surowych pomiarów. Pamięć
+ * poziomu zależy od liczby przedziałów z pomiarami, a nie od retencji.
+ *
+ * Poziomy konfiguruje -Dmonitor.rollups w formacie
+ * "rozdzielczośćMs:liczbaPrzedziałów,...".
+ */
+public class RollupStage implements SensorUpdateListener {
+
+	public static final String DEFAULT_LEVELS = "1000:300,60000:1440,3600000:168";
+
+	/**
+	 * Agregaty jednego sensora; monitor tego obiektu chroni wszystkie poziomy
+	 */
+	private static class SensorRollups {
+
+		SensorRollups(long[] resolutions, int[] retentions) {
+			series = new RollupSeries[resolutions.length];
+			for (int i = 0; i < series.length; i++) {
+				series[i] = new RollupSeries(resolutions[i], retentions[i]);
+			}
+		}
+
+		final RollupSeries[] series;
+	}
+
+	public RollupStage() {
+		this(System.getProperty("monitor.rollups", DEFAULT_LEVELS));
+	}
+
+	public RollupStage(String levels) {
+		String[] tokens = levels.split(",");
+		resolutions = new long[tokens.length];
+		retentions = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			String[] level = tokens[i].trim().split(":");
+			resolutions[i] = Long.parseLong(level[0]);
+			retentions[i] = Integer.parseInt(level[1]);
+			if (i > 0 && resolutions[i] <= resolutions[i - 1]) {
+				throw new IllegalArgumentException(
+						"Rollup resolutions must be increasing: " + levels);
+			}
+		}
+	}
+
+	@Override
+	public void onUpdate(Sensor sensor) {
+		SensorRollups rollups = rollupsFor(sensor);
+		long timestamp = sensor.getLastTimestamp();
+		float value = sensor.getLastMeasurement();
+		synchronized (rollups) {
+			for (RollupSeries series : rollups.series) {
+				series.add(timestamp, value);
+			}
+		}
+	}
+
+	@Override
+	public void onDisconnected(Sensor sensor) {
+		// agregaty zostają - sensor może wrócić
+	}
+
+	@Override
+	public void onRemoved(Sensor sensor) {
+		rollups.remove(sensor);
+	}
+
+	/**
+	 * Wybiera rozdzielczość dla zapytania: najgrubszą, która nie jest większa
+	 * od kroku, a jeżeli jej retencja nie sięga początku zakresu - kolejną,
+	 * która sięga.
+	 * 
+	 * @param from
+	 * @param now
+	 *            czas ostatniego pomiaru
+	 * @param step
+	 * @return indeks poziomu
+	 */
+	int chooseLevel(long from, long now, long step) {
+		int level = 0;
+		while (level + 1 < resolutions.length
+				&& resolutions[level + 1] <= step) {
+			level++;
+		}
+		while (level + 1 < resolutions.length
+				&& now - from > resolutions[level] * retentions[level]) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Zwraca agregaty sensora z zakresu [from, to] w przedziałach długości
+	 * step (lub rozdzielczości wybranego poziomu, jeżeli jest większa).
+	 * 
+	 * @param sensor
+	 * @param from
+	 * @param to
+	 * @param step
+	 * @return
+	 */
+	public RollupResult query(Sensor sensor, long from, long to, long step) {
+		SensorRollups rollups = this.rollups.get(sensor);
+		int level = chooseLevel(from, sensor.getLastTimestamp(), step);
+		RollupResult result = new RollupResult(step, resolutions[level]);
+		if (rollups != null) {
+			synchronized (rollups) {
+				rollups.series[level].read(from, to, result);
+			}
+		}
+		return result;
+	}
+
+	private SensorRollups rollupsFor(Sensor sensor) {
+		SensorRollups sensorRollups = rollups.get(sensor);
+		if (sensorRollups == null) {
+			rollups.putIfAbsent(sensor, new SensorRollups(resolutions,
+					retentions));
+			sensorRollups = rollups.get(sensor);
+		}
+		return sensorRollups;
+	}
+
+	private final long[] resolutions;
+	private final int[] retentions;
+	private final ConcurrentHashMap<Sensor, SensorRollups> rollups = new ConcurrentHashMap<Sensor, SensorRollups>();
+}
@@ -0,0 +1,158 @@
+package aggregation;
+
+/**
+ * Przesuwne okno czasowe pomiarów z agregatem liczonym przyrostowo: suma
+ * (średnia) w O(1), minimum i maksimum przez kolejki monotoniczne w
+ * zamortyzowanym O(1), kwantyle przez {@link QuantileSketch}. Utrzymywane są
+ * tylko struktury potrzebne dla funkcji okna.
+ *
+ * Nieskończoności i NaN nie trafiają do sumy bieżącej (inf - inf dałoby NaN aż
+ * do ponownego zsumowania) - liczone są osobno i uwzględniane w wyniku; NaN
+ * nie wpływa na minimum i maksimum.
+ *
+ * Nie jest bezpieczne wielowątkowo.
+ */
+final class SlidingWindow {
+
+	// dokładność względna kwantyli
+	private static final double QUANTILE_ACCURACY = 0.01;
+	// co tyle usunięć suma liczona jest od nowa, żeby nie kumulować błędów
+	// zaokrągleń
+	private static final int RESUM_INTERVAL = 1 << 16;
+
+	SlidingWindow(WindowSpec spec) {
+		this.spec = spec;
+		WindowSpec.Function function = spec.getFunction();
+		this.minimum = function == WindowSpec.Function.MIN ? new TimedDeque()
+				: null;
+		this.maximum = function == WindowSpec.Function.MAX ? new TimedDeque()
+				: null;
+		this.sketch = function == WindowSpec.Function.QUANTILE ? new QuantileSketch(
+				QUANTILE_ACCURACY) : null;
+	}
+
+	/**
+	 * Dodaje pomiar i usuwa te, które wypadły z okna (czasy niemalejące)
+	 *
+	 * @param time
+	 * @param value
+	 */
+	void add(long time, float value) {
+		samples.addLast(time, value);
+		addToSum(value, 1);
+		if (sketch != null) {
+			sketch.add(value);
+		}
+		if (minimum != null && !Float.isNaN(value)) {
+			while (!minimum.isEmpty() && minimum.lastValue() >= value) {
+				minimum.removeLast();
+			}
+			minimum.addLast(time, value);
+		}
+		if (maximum != null && !Float.isNaN(value)) {
+			while (!maximum.isEmpty() && maximum.lastValue() <= value) {
+				maximum.removeLast();
+			}
+			maximum.addLast(time, value);
+		}
+		evict(time - spec.getWindowMillis());
+	}
+
+	/**
+	 * Usuwa pomiary starsze lub równe cutoff
+	 */
+	private void evict(long cutoff) {
+		while (!samples.isEmpty() && samples.firstTime() <= cutoff) {
+			float value = samples.firstValue();
+			samples.removeFirst();
+			addToSum(value, -1);
+			if (sketch != null) {
+				sketch.remove(value);
+			}
+			if (++removals == RESUM_INTERVAL) {
+				removals = 0;
+				sum = 0;
+				for (int i = 0; i < samples.size(); i++) {
+					float sample = samples.valueAt(i);
+					if (!Float.isNaN(sample) && !Float.isInfinite(sample)) {
+						sum += sample;
+					}
+				}
+			}
+		}
+		while (minimum != null && !minimum.isEmpty()
+				&& minimum.firstTime() <= cutoff) {
+			minimum.removeFirst();
+		}
+		while (maximum != null && !maximum.isEmpty()
+				&& maximum.firstTime() <= cutoff) {
+			maximum.removeFirst();
+		}
+	}
+
+	private void addToSum(float value, int delta) {
+		if (Float.isNaN(value)) {
+			nanCount += delta;
+		} else if (value == Float.POSITIVE_INFINITY) {
+			positiveInfinite += delta;
+		} else if (value == Float.NEGATIVE_INFINITY) {
+			negativeInfinite += delta;
+		} else {
+			sum += delta * (double) value;
+		}
+	}
+
+	/**
+	 * Suma okna z uwzględnieniem wartości nieskończonych i NaN
+	 */
+	private double total() {
+		if (nanCount > 0 || positiveInfinite > 0 && negativeInfinite > 0) {
+			return Double.NaN;
+		}
+		if (positiveInfinite > 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (negativeInfinite > 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		return sum;
+	}
+
+	/**
+	 * Wartość agregatu dla bieżącej zawartości okna
+	 *
+	 * @return NaN dla pustego okna
+	 */
+	float result() {
+		if (samples.isEmpty()) {
+			return spec.getFunction() == WindowSpec.Function.COUNT ? 0
+					: Float.NaN;
+		}
+		switch (spec.getFunction()) {
+		case SUM:
+			return (float) total();
+		case MIN:
+			// same NaN w oknie - kolejki min/max są puste
+			return minimum.isEmpty() ? Float.NaN : minimum.firstValue();
+		case MAX:
+			return maximum.isEmpty() ? Float.NaN : maximum.firstValue();
+		case COUNT:
+			return samples.size();
+		case QUANTILE:
+			return (float) sketch.quantile(spec.getQuantile());
+		default:
+			return (float) (total() / samples.size());
+		}
+	}
+
+	private final WindowSpec spec;
+	private final TimedDeque samples = new TimedDeque();
+	private final TimedDeque minimum;
+	private final TimedDeque maximum;
+	private final QuantileSketch sketch;
+	private double sum;
+	private int nanCount;
+	private int positiveInfinite;
+	private int negativeInfinite;
+	private int removals;
+}
@@ -0,0 +1,72 @@
+package aggregation;
+
+/**
+ * Kolejka dwustronna par (czas, wartość) w tablicach prymitywów, powiększana
+ * w miarę potrzeby. Nie jest bezpieczna wielowątkowo.
+ */
+final class TimedDeque {
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void addLast(long time, float value) {
+		if (size == times.length) {
+			grow();
+		}
+		int index = (head + size) & (times.length - 1);
+		times[index] = time;
+		values[index] = value;
+		size++;
+	}
+
+	void removeFirst() {
+		head = (head + 1) & (times.length - 1);
+		size--;
+	}
+
+	void removeLast() {
+		size--;
+	}
+
+	long firstTime() {
+		return times[head];
+	}
+
+	float firstValue() {
+		return values[head];
+	}
+
+	float lastValue() {
+		return values[(head + size - 1) & (times.length - 1)];
+	}
+
+	/**
+	 * Wartość i-tego elementu od początku
+	 */
+	float valueAt(int i) {
+		return values[(head + i) & (times.length - 1)];
+	}
+
+	private void grow() {
+		// rozmiar zawsze potęgą dwójki - indeksy przez maskę
+		long[] newTimes = new long[times.length * 2];
+		float[] newValues = new float[values.length * 2];
+		for (int i = 0; i < size; i++) {
+			newTimes[i] = times[(head + i) & (times.length - 1)];
+			newValues[i] = values[(head + i) & (times.length - 1)];
+		}
+		times = newTimes;
+		values = newValues;
+		head = 0;
+	}
+
+	private long[] times = new long[16];
+	private float[] values = new float[16];
+	private int head;
+	private int size;
+}
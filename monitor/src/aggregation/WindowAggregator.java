@@ -0,0 +1,79 @@
+package aggregation;
+
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import sensors.SensorHistory;
+import sensors.SensorUpdateListener;
+
+/**
+ * Agregat okienkowy jednego sensora, współdzielony przez wszystkie subskrypcje
+ * tego samego okna. Nowe pomiary czytane są z historii sensora źródłowego
+ * (jeden kursor na cały czas życia), więc żaden pomiar nie zostanie pominięty
+ * ani policzony dwa razy, a okno przy tworzeniu wypełniane jest pomiarami z
+ * historii.
+ *
+ * Wynik publikowany jest jako pomiar sensora wyliczanego.
+ */
+class WindowAggregator implements SensorUpdateListener {
+
+	WindowAggregator(SensorDataCollector collector, Sensor source,
+			Sensor target, WindowSpec spec) {
+		this.collector = collector;
+		this.source = source;
+		this.target = target;
+		this.window = new SlidingWindow(spec);
+		SensorHistory history = source.getHistory();
+		this.nextSequence = history.findSequence(System.currentTimeMillis()
+				- spec.getWindowMillis());
+		this.cursor = history.cursor(nextSequence);
+	}
+
+	Sensor getSource() {
+		return source;
+	}
+
+	Sensor getTarget() {
+		return target;
+	}
+
+	/**
+	 * Wypełnia okno pomiarami z historii i publikuje pierwszy wynik
+	 */
+	void start() {
+		onUpdate(source);
+	}
+
+	@Override
+	public synchronized void onUpdate(Sensor sensor) {
+		cursor.seek(nextSequence);
+		long lastTimestamp = -1;
+		while (cursor.next()) {
+			lastTimestamp = cursor.getTimestamp();
+			window.add(lastTimestamp, cursor.getValue());
+			nextSequence = cursor.getSequence() + 1;
+		}
+		if (lastTimestamp >= 0) {
+			collector.publish(target, lastTimestamp, window.result());
+		}
+	}
+
+	@Override
+	public void onDisconnected(Sensor sensor) {
+		// okno zostaje - sensor może połączyć się ponownie
+	}
+
+	@Override
+	public void onRemoved(Sensor sensor) {
+		// agregat zwalniają subskrypcje (WindowedAggregates.release)
+	}
+
+	// zmieniane przez WindowedAggregates pod jego blokadą
+	int references;
+
+	private final SensorDataCollector collector;
+	private final Sensor source;
+	private final Sensor target;
+	private final SlidingWindow window;
+	private final SensorHistory.Cursor cursor;
+	private long nextSequence;
+}
@@ -0,0 +1,146 @@
+package aggregation;
+
+/**
+ * Opis agregatu okienkowego: funkcja i długość przesuwnego okna czasowego,
+ * zapisywany jako <code>funkcja:okno</code>, np. <code>avg:60s</code>,
+ * <code>max:5m</code>, <code>p95:300s</code>, <code>p99.9:1h</code>.
+ *
+ * Funkcje: avg, sum, min, max, count oraz kwantyle pNN. Jednostki okna: ms,
+ * s, m, h.
+ */
+public final class WindowSpec {
+
+	public enum Function {
+		AVG, SUM, MIN, MAX, COUNT, QUANTILE
+	}
+
+	private static final String[] UNITS = { "h", "m", "s", "ms" };
+	private static final long[] UNIT_MILLIS = { 3600000, 60000, 1000, 1 };
+
+	private WindowSpec(Function function, double quantile, long windowMillis) {
+		this.function = function;
+		this.quantile = quantile;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Odczytuje opis agregatu
+	 *
+	 * @param text
+	 * @return null, jeżeli opis jest nieprawidłowy
+	 */
+	public static WindowSpec parse(String text) {
+		int separator = text.indexOf(':');
+		if (separator < 0) {
+			return null;
+		}
+		String name = text.substring(0, separator).trim().toLowerCase();
+		long window = parseDuration(text.substring(separator + 1).trim());
+		if (window <= 0) {
+			return null;
+		}
+
+		if (name.startsWith("p") && name.length() > 1) {
+			try {
+				double percentile = Double.parseDouble(name.substring(1));
+				if (!(percentile >= 0 && percentile <= 100)) {
+					return null;
+				}
+				return new WindowSpec(Function.QUANTILE, percentile / 100,
+						window);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		for (Function function : Function.values()) {
+			if (function != Function.QUANTILE
+					&& function.name().equalsIgnoreCase(name)) {
+				return new WindowSpec(function, 0, window);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Czas w formacie liczba+jednostka (ms, s, m, h), np. 30s
+	 *
+	 * @param text
+	 * @return czas w ms; -1 dla błędnego
+	 */
+	public static long parseDuration(String text) {
+		// od końca - "ms" trzeba sprawdzić przed "s"
+		for (int i = UNITS.length - 1; i >= 0; i--) {
+			if (text.endsWith(UNITS[i])) {
+				String number = text.substring(0,
+						text.length() - UNITS[i].length());
+				try {
+					return Long.parseLong(number) * UNIT_MILLIS[i];
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	public Function getFunction() {
+		return function;
+	}
+
+	/**
+	 * Kwantyl z przedziału [0, 1] (tylko dla funkcji QUANTILE)
+	 *
+	 * @return
+	 */
+	public double getQuantile() {
+		return quantile;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof WindowSpec)) {
+			return false;
+		}
+		WindowSpec spec = (WindowSpec) other;
+		return function == spec.function && quantile == spec.quantile
+				&& windowMillis == spec.windowMillis;
+	}
+
+	@Override
+	public int hashCode() {
+		return (function.hashCode() * 31 + (int) (windowMillis ^ (windowMillis >>> 32)))
+				* 31 + (int) Double.doubleToLongBits(quantile);
+	}
+
+	/**
+	 * Postać kanoniczna, np. "p95:5m" - używana też w nazwie metryki
+	 * wyliczanego sensora
+	 */
+	@Override
+	public String toString() {
+		String name;
+		if (function == Function.QUANTILE) {
+			double percentile = quantile * 100;
+			name = "p"
+					+ (percentile == Math.rint(percentile) ? Long
+							.toString((long) percentile) : Double
+							.toString(percentile));
+		} else {
+			name = function.name().toLowerCase();
+		}
+		for (int i = 0; i < UNITS.length; i++) {
+			if (windowMillis % UNIT_MILLIS[i] == 0) {
+				return name + ":" + windowMillis / UNIT_MILLIS[i] + UNITS[i];
+			}
+		}
+		return name + ":" + windowMillis + "ms";
+	}
+
+	private final Function function;
+	private final double quantile;
+	private final long windowMillis;
+}
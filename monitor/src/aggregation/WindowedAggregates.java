@@ -0,0 +1,97 @@
+package aggregation;
+
+import java.util.HashMap;
+
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+
+/**
+ * Agregaty w przesuwnych oknach czasowych (średnia, suma, min, max, liczba,
+ * kwantyle) udostępniane jako sensory wyliczane o metryce
+ * <code>metryka@funkcja:okno</code>, np. <code>cpu@avg:60s</code>.
+ *
+ * Agregat liczony jest przyrostowo, raz dla wszystkich subskrybentów tego
+ * samego sensora i okna - kolejni subskrybenci zwiększają tylko licznik
+ * odwołań. Po zwolnieniu ostatniego odwołania agregat i sensor wyliczany są
+ * usuwane.
+ *
+ * Sensory agregatów są tworzone poza rejestrem sensorów
+ * ({@link SensorDataCollector#createUnlistedSensor(String, String)}) -
+ * subskrybowanie i wypisywanie się nie zmienia wersji rejestru, nie
+ * unieważnia listingów i nie wypiera prawdziwych zmian z dziennika.
+ */
+public class WindowedAggregates {
+
+	public WindowedAggregates(SensorDataCollector collector) {
+		this.collector = collector;
+	}
+
+	/**
+	 * Zwraca sensor wyliczany z agregatem okna, tworząc agregat, jeżeli
+	 * jeszcze nie istnieje. Każde wywołanie trzeba zakończyć
+	 * {@link #release(Sensor)}.
+	 *
+	 * @param source
+	 * @param spec
+	 * @return
+	 */
+	public Sensor acquire(Sensor source, WindowSpec spec) {
+		WindowAggregator aggregator;
+		synchronized (aggregators) {
+			String metric = source.getMetric() + "@" + spec;
+			String key = key(source.getResource(), metric);
+			aggregator = aggregators.get(key);
+			if (aggregator != null) {
+				aggregator.references++;
+				return aggregator.getTarget();
+			}
+			Sensor target = collector.createUnlistedSensor(
+					source.getResource(), metric);
+			aggregator = new WindowAggregator(collector, source, target, spec);
+			aggregator.references = 1;
+			aggregators.put(key, aggregator);
+			collector.addSensorUpdateListener(source, aggregator);
+		}
+		aggregator.start();
+		return aggregator.getTarget();
+	}
+
+	/**
+	 * Zwalnia odwołanie do sensora zwróconego przez
+	 * {@link #acquire(Sensor, WindowSpec)}
+	 *
+	 * @param target
+	 */
+	public void release(Sensor target) {
+		synchronized (aggregators) {
+			String key = key(target.getResource(), target.getMetric());
+			WindowAggregator aggregator = aggregators.get(key);
+			if (aggregator == null || aggregator.getTarget() != target
+					|| --aggregator.references > 0) {
+				return;
+			}
+			aggregators.remove(key);
+			collector.removeSensorListener(aggregator.getSource(), aggregator);
+			collector.removeDerivedSensor(target);
+		}
+	}
+
+	/**
+	 * Liczba aktywnych agregatów
+	 *
+	 * @return
+	 */
+	public int size() {
+		synchronized (aggregators) {
+			return aggregators.size();
+		}
+	}
+
+	private static String key(String resource, String metric) {
+		return resource + "\n" + metric;
+	}
+
+	private final SensorDataCollector collector;
+	// "zasób\nmetryka@funkcja:okno" -> agregat
+	private final HashMap<String, WindowAggregator> aggregators = new HashMap<String, WindowAggregator>();
+}
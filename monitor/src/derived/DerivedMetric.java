@@ -0,0 +1,135 @@
+package derived;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import sensors.SensorUpdateListener;
+
+/**
+ * Jedna metryka wyliczana: drzewo wyrażenia i sensor, pod którym publikowany
+ * jest wynik. Metryka jest słuchaczem tylko tych sensorów, od których zależy,
+ * więc pomiar sensora powoduje wyliczenie wyłącznie zależnych od niego
+ * wyrażeń.
+ */
+class DerivedMetric implements SensorUpdateListener {
+
+	DerivedMetric(SensorDataCollector collector, String definition,
+			ExpressionParser parser, Sensor target) {
+		this.collector = collector;
+		this.definition = definition;
+		this.root = parser.getRoot();
+		this.inputs = parser.getInputs();
+		this.target = target;
+	}
+
+	String getDefinition() {
+		return definition;
+	}
+
+	Sensor getTarget() {
+		return target;
+	}
+
+	ArrayList<Expression.Input> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Podłącza wyrażenie do istniejących i przyszłych sensorów
+	 */
+	void start() {
+		for (Expression.Input input : inputs) {
+			input.bind(this);
+			collector.addSensorPatternListener(input.getPattern(), input);
+		}
+	}
+
+	void stop() {
+		for (Expression.Input input : inputs) {
+			collector.removeSensorPatternListener(input.getPattern(), input);
+		}
+		for (Sensor sensor : watched.keySet()) {
+			collector.removeSensorListener(sensor, this);
+		}
+		watched.clear();
+	}
+
+	/**
+	 * Zapisuje się na pomiary sensora wejściowego (raz, nawet jeżeli sensor
+	 * występuje w wyrażeniu kilka razy)
+	 *
+	 * @return false dla sensora wynikowego (wyrażenie nie może zależeć od
+	 *         siebie)
+	 */
+	boolean watch(Sensor sensor) {
+		if (sensor == target) {
+			return false;
+		}
+		if (watched.putIfAbsent(sensor, Boolean.TRUE) == null) {
+			collector.addSensorUpdateListener(sensor, this);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void onUpdate(Sensor sensor) {
+		// wywołanie zwrotne przez publish() - zależność cykliczna
+		if (evaluating) {
+			return;
+		}
+		for (Expression.Input input : inputs) {
+			input.onUpdate(sensor);
+		}
+		publish(sensor.getLastTimestamp());
+	}
+
+	private void publish(long timestamp) {
+		float value = root.evaluate();
+		// brakuje któregoś sensora albo wynik nieokreślony (0/0)
+		if (Float.isNaN(value)) {
+			return;
+		}
+		evaluating = true;
+		try {
+			collector.publish(target, timestamp, value);
+		} finally {
+			evaluating = false;
+		}
+	}
+
+	/**
+	 * Pojedyncze odwołania zachowują ostatnią wartość, agregaty przestają
+	 * liczyć rozłączony sensor - wynik publikowany jest od razu
+	 */
+	@Override
+	public synchronized void onDisconnected(Sensor sensor) {
+		if (evaluating) {
+			return;
+		}
+		for (Expression.Input input : inputs) {
+			input.onDisconnected(sensor);
+		}
+		publish(System.currentTimeMillis());
+	}
+
+	@Override
+	public synchronized void onRemoved(Sensor sensor) {
+		watched.remove(sensor);
+		for (Expression.Input input : inputs) {
+			input.remove(sensor);
+		}
+		if (!evaluating) {
+			publish(System.currentTimeMillis());
+		}
+	}
+
+	private final SensorDataCollector collector;
+	private final String definition;
+	private final Expression root;
+	private final ArrayList<Expression.Input> inputs;
+	private final Sensor target;
+	private final ConcurrentHashMap<Sensor, Boolean> watched = new ConcurrentHashMap<Sensor, Boolean>();
+	private boolean evaluating;
+}
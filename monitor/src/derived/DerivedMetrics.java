@@ -0,0 +1,124 @@
+package derived;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import sensors.SensorPattern;
+
+/**
+ * Metryki wyliczane przez monitor z pomiarów innych sensorów, np.
+ *
+ * <pre>
+ * host1:mem-pct = mem-usage / mem-total * 100
+ * cluster:cpu-avg = avg(*:cpu-usage)
+ * </pre>
+ *
+ * Definicja parsowana jest raz do drzewa wyrażenia (składnia:
+ * {@link ExpressionParser}). Wynik publikowany jest jako sensor wyliczany, więc
+ * pojawia się w listingu metryk i można go subskrybować jak każdy inny sensor.
+ * Wartość wyliczana jest przy każdym pomiarze sensora wejściowego, z czasem
+ * tego pomiaru; dopóki brakuje któregoś sensora, nic nie jest publikowane.
+ */
+public class DerivedMetrics {
+
+	public DerivedMetrics(SensorDataCollector collector) {
+		this.collector = collector;
+	}
+
+	/**
+	 * Dodaje metrykę wyliczaną
+	 *
+	 * @param definition
+	 *            np. <code>host1:mem-pct = mem-usage / mem-total * 100</code>
+	 * @return sensor z wynikiem
+	 * @throws IllegalArgumentException
+	 *             błąd składni, metryka już istnieje lub zależność cykliczna
+	 */
+	public Sensor define(String definition) {
+		ExpressionParser parser = new ExpressionParser(definition);
+		parser.parseDefinition();
+		String name = parser.getResource() + ":" + parser.getMetric();
+		DerivedMetric metric;
+		synchronized (metrics) {
+			if (metrics.containsKey(name)
+					|| collector.findSensor(parser.getResource(),
+							parser.getMetric()) != null) {
+				throw new IllegalArgumentException("Sensor already exists: "
+						+ name);
+			}
+			checkCycles(parser.getResource(), parser.getMetric(),
+					parser.getInputs(), new HashSet<DerivedMetric>());
+			Sensor target = collector.getOrCreateDerivedSensor(
+					parser.getResource(), parser.getMetric());
+			metric = new DerivedMetric(collector, definition.trim(), parser,
+					target);
+			metrics.put(name, metric);
+		}
+		metric.start();
+		return metric.getTarget();
+	}
+
+	/**
+	 * Usuwa metrykę wyliczaną wraz z jej sensorem
+	 *
+	 * @param resource
+	 * @param metric
+	 * @return false, jeżeli nie ma takiej metryki
+	 */
+	public boolean remove(String resource, String metric) {
+		DerivedMetric removed;
+		synchronized (metrics) {
+			removed = metrics.remove(resource + ":" + metric);
+		}
+		if (removed == null) {
+			return false;
+		}
+		removed.stop();
+		collector.removeDerivedSensor(removed.getTarget());
+		return true;
+	}
+
+	/**
+	 * Definicje wszystkich metryk wyliczanych
+	 *
+	 * @return
+	 */
+	public ArrayList<String> list() {
+		ArrayList<String> definitions = new ArrayList<String>();
+		synchronized (metrics) {
+			for (DerivedMetric metric : metrics.values()) {
+				definitions.add(metric.getDefinition());
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Sprawdza, czy wejścia nowej metryki nie zależą (także pośrednio) od niej
+	 * samej. Wywoływane pod blokadą metrics.
+	 */
+	private void checkCycles(String resource, String metric,
+			ArrayList<Expression.Input> inputs, HashSet<DerivedMetric> visited) {
+		for (Expression.Input input : inputs) {
+			SensorPattern pattern = input.getPattern();
+			if (pattern.matches(resource, metric)) {
+				throw new IllegalArgumentException(
+						"Circular dependency on " + resource + ":" + metric);
+			}
+			for (DerivedMetric other : metrics.values()) {
+				Sensor target = other.getTarget();
+				if (pattern.matches(target.getResource(), target.getMetric())
+						&& visited.add(other)) {
+					checkCycles(resource, metric, other.getInputs(), visited);
+				}
+			}
+		}
+	}
+
+	private final SensorDataCollector collector;
+	// klucz zasób:metryka, w kolejności definiowania
+	private final LinkedHashMap<String, DerivedMetric> metrics = new LinkedHashMap<String, DerivedMetric>();
+}
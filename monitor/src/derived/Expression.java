@@ -0,0 +1,269 @@
+package derived;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import sensors.Sensor;
+import sensors.SensorCreationListener;
+import sensors.SensorPattern;
+
+/**
+ * Węzeł drzewa wyrażenia metryki wyliczanej. Drzewo budowane jest raz, przy
+ * definicji; wyliczenie wartości tylko przechodzi po węzłach i nie alokuje
+ * pamięci.
+ */
+abstract class Expression {
+
+	/**
+	 * Wartość wyrażenia dla bieżących wartości sensorów (NaN, jeżeli któregoś
+	 * sensora jeszcze nie ma)
+	 *
+	 * @return
+	 */
+	abstract float evaluate();
+
+	static final class Constant extends Expression {
+
+		Constant(float value) {
+			this.value = value;
+		}
+
+		@Override
+		float evaluate() {
+			return value;
+		}
+
+		private final float value;
+	}
+
+	static final class Negate extends Expression {
+
+		Negate(Expression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		float evaluate() {
+			return -operand.evaluate();
+		}
+
+		private final Expression operand;
+	}
+
+	static final class Abs extends Expression {
+
+		Abs(Expression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		float evaluate() {
+			return Math.abs(operand.evaluate());
+		}
+
+		private final Expression operand;
+	}
+
+	static final class Binary extends Expression {
+
+		Binary(char operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate() {
+			float a = left.evaluate();
+			float b = right.evaluate();
+			switch (operator) {
+			case '+':
+				return a + b;
+			case '-':
+				return a - b;
+			case '*':
+				return a * b;
+			default:
+				return a / b;
+			}
+		}
+
+		private final char operator;
+		private final Expression left;
+		private final Expression right;
+	}
+
+	/**
+	 * Liść odwołujący się do sensorów pasujących do wzorca. Sensory dopisywane
+	 * są w miarę ich pojawiania się (także po zdefiniowaniu metryki), a
+	 * usuwane z rejestru - odrzucane.
+	 */
+	static abstract class Input extends Expression implements
+			SensorCreationListener {
+
+		Input(SensorPattern pattern) {
+			this.pattern = pattern;
+		}
+
+		SensorPattern getPattern() {
+			return pattern;
+		}
+
+		void bind(DerivedMetric owner) {
+			this.owner = owner;
+		}
+
+		@Override
+		public void onSensorCreated(Sensor sensor) {
+			if (owner.watch(sensor)) {
+				add(sensor);
+			}
+		}
+
+		abstract void add(Sensor sensor);
+
+		/**
+		 * Sensor usunięty z rejestru
+		 */
+		abstract void remove(Sensor sensor);
+
+		/**
+		 * Sensor rozłączył się - domyślnie jego ostatnia wartość zostaje
+		 */
+		void onDisconnected(Sensor sensor) {
+		}
+
+		/**
+		 * Pomiar sensora, od którego zależy wyrażenie
+		 */
+		void onUpdate(Sensor sensor) {
+		}
+
+		private final SensorPattern pattern;
+		private DerivedMetric owner;
+	}
+
+	/**
+	 * Wartość jednego sensora
+	 */
+	static final class Reference extends Input {
+
+		Reference(SensorPattern pattern) {
+			super(pattern);
+		}
+
+		@Override
+		void add(Sensor sensor) {
+			this.sensor = sensor;
+		}
+
+		@Override
+		void remove(Sensor sensor) {
+			if (this.sensor == sensor) {
+				this.sensor = null;
+			}
+		}
+
+		@Override
+		float evaluate() {
+			Sensor sensor = this.sensor;
+			return sensor != null ? sensor.getLastMeasurement() : Float.NaN;
+		}
+
+		private volatile Sensor sensor;
+	}
+
+	/**
+	 * Funkcja wszystkich sensorów pasujących do wzorca, np. avg(*:cpu-usage).
+	 * Rozłączone sensory nie są liczone, dopóki nie przyślą kolejnego pomiaru.
+	 */
+	static final class Aggregate extends Input {
+
+		enum Function {
+			AVG, SUM, MIN, MAX, COUNT
+		}
+
+		Aggregate(Function function, SensorPattern pattern) {
+			super(pattern);
+			this.function = function;
+		}
+
+		@Override
+		synchronized void add(Sensor sensor) {
+			for (Sensor existing : sensors) {
+				if (existing == sensor) {
+					return;
+				}
+			}
+			// kopia przy zapisie - wyliczenie czyta tablicę bez blokady
+			Sensor[] updated = new Sensor[sensors.length + 1];
+			System.arraycopy(sensors, 0, updated, 0, sensors.length);
+			updated[sensors.length] = sensor;
+			sensors = updated;
+		}
+
+		@Override
+		synchronized void remove(Sensor sensor) {
+			disconnected.remove(sensor);
+			for (int i = 0; i < sensors.length; i++) {
+				if (sensors[i] == sensor) {
+					Sensor[] updated = new Sensor[sensors.length - 1];
+					System.arraycopy(sensors, 0, updated, 0, i);
+					System.arraycopy(sensors, i + 1, updated, i,
+							updated.length - i);
+					sensors = updated;
+					return;
+				}
+			}
+		}
+
+		@Override
+		synchronized void onDisconnected(Sensor sensor) {
+			int before = sensors.length;
+			remove(sensor);
+			if (sensors.length < before) {
+				disconnected.put(sensor, Boolean.TRUE);
+			}
+		}
+
+		@Override
+		void onUpdate(Sensor sensor) {
+			// powrót rozłączonego sensora
+			if (!disconnected.isEmpty() && disconnected.remove(sensor) != null) {
+				add(sensor);
+			}
+		}
+
+		@Override
+		float evaluate() {
+			Sensor[] sensors = this.sensors;
+			if (function == Function.COUNT) {
+				return sensors.length;
+			}
+			if (sensors.length == 0) {
+				return Float.NaN;
+			}
+			float result = function == Function.MIN ? Float.POSITIVE_INFINITY
+					: function == Function.MAX ? Float.NEGATIVE_INFINITY : 0;
+			for (Sensor sensor : sensors) {
+				float value = sensor.getLastMeasurement();
+				switch (function) {
+				case MIN:
+					result = Math.min(result, value);
+					break;
+				case MAX:
+					result = Math.max(result, value);
+					break;
+				default:
+					result += value;
+					break;
+				}
+			}
+			return function == Function.AVG ? result / sensors.length
+					: result;
+		}
+
+		private final Function function;
+		private volatile Sensor[] sensors = new Sensor[0];
+		private final ConcurrentHashMap<Sensor, Boolean> disconnected = new ConcurrentHashMap<Sensor, Boolean>();
+	}
+}
@@ -0,0 +1,247 @@
+package derived;
+
+import java.util.ArrayList;
+
+import sensors.SensorPattern;
+
+/**
+ * Parser (zejście rekurencyjne) definicji metryk wyliczanych:
+ *
+ * <pre>
+ * definicja := zasób:metryka = wyrażenie
+ * wyrażenie := składnik (('+' | '-') składnik)*
+ * składnik  := czynnik (('*' | '/') czynnik)*
+ * czynnik   := '-' czynnik | liczba | '(' wyrażenie ')' | abs(wyrażenie)
+ *            | funkcja(wzorzec) | sensor
+ * funkcja   := avg | sum | min | max | count
+ * </pre>
+ *
+ * Sensor to <code>zasób:metryka</code> albo sama metryka zasobu definiowanej
+ * metryki. Nazwy mogą zawierać '-', więc odejmowanie nazw trzeba oddzielić
+ * spacjami (<code>a - b</code>, a nie <code>a-b</code>). Wzorce ('*', '?')
+ * dozwolone są tylko w argumentach funkcji.
+ */
+class ExpressionParser {
+
+	ExpressionParser(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parsuje całą definicję
+	 *
+	 * @throws IllegalArgumentException
+	 *             błąd składni
+	 */
+	void parseDefinition() {
+		int separator = text.indexOf('=');
+		if (separator < 0) {
+			throw error("expected '='");
+		}
+		String name = text.substring(0, separator).trim();
+		int colon = name.indexOf(':');
+		if (colon <= 0 || colon == name.length() - 1
+				|| SensorPattern.isPattern(name)) {
+			throw error("target must be resource:metric");
+		}
+		resource = name.substring(0, colon);
+		metric = name.substring(colon + 1);
+		position = separator + 1;
+		root = parseExpression();
+		skipSpaces();
+		if (position < text.length()) {
+			throw error("unexpected '" + text.charAt(position) + "'");
+		}
+	}
+
+	String getResource() {
+		return resource;
+	}
+
+	String getMetric() {
+		return metric;
+	}
+
+	Expression getRoot() {
+		return root;
+	}
+
+	/**
+	 * Liście drzewa odwołujące się do sensorów
+	 *
+	 * @return
+	 */
+	ArrayList<Expression.Input> getInputs() {
+		return inputs;
+	}
+
+	private Expression parseExpression() {
+		Expression left = parseTerm();
+		while (true) {
+			char operator = peek();
+			if (operator != '+' && operator != '-') {
+				return left;
+			}
+			position++;
+			left = new Expression.Binary(operator, left, parseTerm());
+		}
+	}
+
+	private Expression parseTerm() {
+		Expression left = parseFactor();
+		while (true) {
+			char operator = peek();
+			if (operator != '*' && operator != '/') {
+				return left;
+			}
+			position++;
+			left = new Expression.Binary(operator, left, parseFactor());
+		}
+	}
+
+	private Expression parseFactor() {
+		char c = peek();
+		if (c == '-') {
+			position++;
+			return new Expression.Negate(parseFactor());
+		}
+		if (c == '(') {
+			position++;
+			Expression inner = parseExpression();
+			expect(')');
+			return inner;
+		}
+		if (Character.isDigit(c) || c == '.') {
+			return parseNumber();
+		}
+		if (!isNameStart(c)) {
+			throw error(c == 0 ? "unexpected end" : "unexpected '" + c + "'");
+		}
+		String name = readName();
+		if (peek() != '(') {
+			Expression.Reference reference = new Expression.Reference(
+					pattern(name, false));
+			inputs.add(reference);
+			return reference;
+		}
+		position++;
+		if (name.equals("abs")) {
+			Expression operand = parseExpression();
+			expect(')');
+			return new Expression.Abs(operand);
+		}
+		Expression.Aggregate.Function function;
+		try {
+			function = Expression.Aggregate.Function.valueOf(name
+					.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw error("unknown function " + name);
+		}
+		int end = text.indexOf(')', position);
+		if (end < 0) {
+			throw error("expected ')'");
+		}
+		String argument = text.substring(position, end).trim();
+		if (argument.isEmpty()) {
+			throw error("expected sensor pattern");
+		}
+		position = end + 1;
+		Expression.Aggregate aggregate = new Expression.Aggregate(function,
+				pattern(argument, true));
+		inputs.add(aggregate);
+		return aggregate;
+	}
+
+	private Expression parseNumber() {
+		int start = position;
+		while (position < text.length()
+				&& (Character.isDigit(text.charAt(position))
+						|| text.charAt(position) == '.')) {
+			position++;
+		}
+		// wykładnik, np. 1e6
+		if (position < text.length()
+				&& (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+			position++;
+			if (position < text.length()
+					&& (text.charAt(position) == '-' || text.charAt(position) == '+')) {
+				position++;
+			}
+			while (position < text.length()
+					&& Character.isDigit(text.charAt(position))) {
+				position++;
+			}
+		}
+		try {
+			return new Expression.Constant(Float.parseFloat(text.substring(
+					start, position)));
+		} catch (NumberFormatException e) {
+			position = start;
+			throw error("invalid number");
+		}
+	}
+
+	private SensorPattern pattern(String name, boolean wildcards) {
+		if (!wildcards && SensorPattern.isPattern(name)) {
+			throw error("patterns allowed only in functions: " + name);
+		}
+		int colon = name.indexOf(':');
+		if (colon == 0 || colon == name.length() - 1) {
+			throw error("invalid sensor " + name);
+		}
+		return colon < 0 ? new SensorPattern(resource, name)
+				: new SensorPattern(name.substring(0, colon),
+						name.substring(colon + 1));
+	}
+
+	private static boolean isNameStart(char c) {
+		return Character.isLetter(c) || c == '_';
+	}
+
+	private static boolean isNamePart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-'
+				|| c == ':';
+	}
+
+	private String readName() {
+		int start = position;
+		while (position < text.length() && isNamePart(text.charAt(position))) {
+			position++;
+		}
+		return text.substring(start, position);
+	}
+
+	private void expect(char c) {
+		if (peek() != c) {
+			throw error("expected '" + c + "'");
+		}
+		position++;
+	}
+
+	/**
+	 * Pierwszy znak po spacjach (0 na końcu tekstu)
+	 */
+	private char peek() {
+		skipSpaces();
+		return position < text.length() ? text.charAt(position) : 0;
+	}
+
+	private void skipSpaces() {
+		while (position < text.length()
+				&& Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position "
+				+ position + ": " + text);
+	}
+
+	private final String text;
+	private final ArrayList<Expression.Input> inputs = new ArrayList<Expression.Input>();
+	private int position;
+	private String resource;
+	private String metric;
+	private Expression root;
+}
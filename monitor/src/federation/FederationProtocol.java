@@ -0,0 +1,67 @@
+package federation;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Format połączenia monitora podrzędnego (liścia) z nadrzędnym.
+ *
+ * Każda ramka to długość (int, bez samego pola długości), typ (bajt) i treść:
+ *
+ * <pre>
+ * HELLO  wersja:int nazwa:str sesja:long        liść -&gt; rodzic, pierwsza ramka
+ * DEFINE id:int zasób:str metryka:str           liść -&gt; rodzic
+ * BATCH  numer:long grupy:int {grupa}           liść -&gt; rodzic
+ *        grupa: id:int pierwszy:long n:int n * (czas:long wartość:float)
+ * ACK    numer:long                             rodzic -&gt; liść
+ * </pre>
+ *
+ * str to długość (short) i bajty UTF-8. Id sensora obowiązuje w ramach
+ * jednego połączenia. Pomiary grupy mają kolejne numery sekwencyjne, licząc
+ * od "pierwszy" - numery nadaje liść i na ich podstawie rodzic pomija
+ * pomiary przysłane ponownie po wznowieniu połączenia.
+ */
+final class FederationProtocol {
+
+	static final int VERSION = 1;
+
+	static final byte HELLO = 1;
+	static final byte DEFINE = 2;
+	static final byte BATCH = 3;
+	static final byte ACK = 4;
+
+	/**
+	 * Największa dopuszczalna długość ramki
+	 */
+	static final int MAX_FRAME = 1 << 20;
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private FederationProtocol() {
+	}
+
+	static void writeString(DataOutputStream out, String text)
+			throws IOException {
+		byte[] bytes = text.getBytes(CHARSET);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @throws BufferUnderflowException
+	 *             jeżeli zadeklarowana długość wykracza poza bufor
+	 */
+	static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		String text = new String(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), length, CHARSET);
+		buffer.position(buffer.position() + length);
+		return text;
+	}
+}
@@ -0,0 +1,313 @@
+package federation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.ChannelSelectionHandler;
+import network.MessageQueue;
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+
+/**
+ * Strona nadrzędna federacji: przyjmuje połączenia monitorów podrzędnych
+ * ({@link UpstreamForwarder}) i zapisuje przysłane pomiary do zwykłych
+ * sensorów tego monitora - można je listować, subskrybować i przekazywać
+ * dalej w górę drzewa.
+ *
+ * Zasób sensora liścia poprzedzany jest nazwą liścia, np. rack1.host, więc
+ * sensory o tych samych nazwach z różnych liści nie trafiają do jednego
+ * sensora. Każdy sensor ma jednego właściciela: DEFINE sensora, który
+ * istnieje lokalnie albo należy do innego liścia, jest odrzucany, a jego
+ * pomiary pomijane.
+ *
+ * Dla każdego liścia (nazwa z HELLO) pamiętany jest numer kolejnego
+ * oczekiwanego pomiaru każdego sensora, także po rozłączeniu. Pomiary
+ * wysłane ponownie po wznowieniu połączenia są pomijane; nowa sesja liścia
+ * (restart) zaczyna numerację od nowa. Każda ramka BATCH jest potwierdzana
+ * ramką ACK po zapisaniu pomiarów.
+ *
+ * Port ustawia -Dmonitor.federation.port (domyślnie 12089); Main uruchamia
+ * serwer tylko wtedy, gdy ta właściwość jest podana.
+ */
+public class FederationServer implements ChannelSelectionHandler {
+
+	public static final int PORT = Integer.getInteger(
+			"monitor.federation.port", 12089);
+
+	/**
+	 * Stan liścia zachowywany pomiędzy połączeniami; monitor obiektu chroni
+	 * mapę
+	 */
+	private static final class LeafState {
+
+		LeafState(long session) {
+			this.session = session;
+		}
+
+		final long session;
+		final HashMap<Sensor, Long> nextSequences = new HashMap<Sensor, Long>();
+	}
+
+	/**
+	 * Połączenie jednego liścia
+	 */
+	private class LeafConnection implements ChannelSelectionHandler {
+
+		LeafConnection(SocketChannel socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void onSelected(SelectableChannel channel,
+				int readyOperationsMask) {
+			if ((readyOperationsMask & SelectionKey.OP_READ) == 0) {
+				return;
+			}
+			try {
+				if (socket.read(buffer) == -1) {
+					System.out.printf("Monitor podrzędny %s rozłączony\n",
+							name);
+					close();
+					return;
+				}
+				if (!decode()) {
+					System.out.printf(
+							"Monitor podrzędny %s naruszył protokół, rozłączanie\n",
+							name);
+					close();
+				}
+			} catch (IOException e) {
+				System.err.println("Federation connection error: "
+						+ e.getMessage());
+				close();
+			}
+		}
+
+		/**
+		 * Przetwarza wszystkie pełne ramki z bufora
+		 *
+		 * @return false przy błędzie protokołu
+		 * @throws IOException
+		 */
+		private boolean decode() throws IOException {
+			buffer.flip();
+			try {
+				while (buffer.remaining() >= 4) {
+					int length = buffer.getInt(buffer.position());
+					if (length <= 0 || length > FederationProtocol.MAX_FRAME) {
+						return false;
+					}
+					if (buffer.remaining() < 4 + length) {
+						break;
+					}
+					buffer.position(buffer.position() + 4);
+					ByteBuffer frame = buffer.slice();
+					frame.limit(length);
+					buffer.position(buffer.position() + length);
+					if (!decodeFrame(frame)) {
+						return false;
+					}
+				}
+			} catch (RuntimeException e) {
+				// np. BufferUnderflowException przy ramce krótszej niż jej
+				// treść - wyjątek nie może dotrzeć do pętli reaktora
+				return false;
+			} finally {
+				buffer.compact();
+			}
+			if (!buffer.hasRemaining()) {
+				// ramka większa niż bufor (najwyżej MAX_FRAME)
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(
+						buffer.capacity() * 2, FederationProtocol.MAX_FRAME + 4));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			return true;
+		}
+
+		private boolean decodeFrame(ByteBuffer frame) throws IOException {
+			byte type = frame.get();
+			if (type == FederationProtocol.HELLO) {
+				if (frame.getInt() != FederationProtocol.VERSION) {
+					return false;
+				}
+				name = FederationProtocol.readString(frame);
+				state = leafState(name, frame.getLong());
+				System.out.printf("Monitor podrzędny %s połączony z %s\n",
+						name, socket.getRemoteAddress());
+				return true;
+			}
+			if (state == null) {
+				return false;
+			}
+			if (type == FederationProtocol.DEFINE) {
+				int id = frame.getInt();
+				String resource = name + "."
+						+ FederationProtocol.readString(frame);
+				String metric = FederationProtocol.readString(frame);
+				Sensor sensor = claim(name, resource, metric);
+				if (sensor != null) {
+					sensors.put(id, sensor);
+				} else {
+					System.out.printf(
+							"Sensor %s:%s monitora %s należy do innego źródła - pomijany\n",
+							resource, metric, name);
+					sensors.remove(id);
+					rejected.put(id, Boolean.TRUE);
+				}
+				return true;
+			}
+			if (type == FederationProtocol.BATCH) {
+				long batch = frame.getLong();
+				int groups = frame.getInt();
+				for (int i = 0; i < groups; i++) {
+					int id = frame.getInt();
+					Sensor sensor = sensors.get(id);
+					long first = frame.getLong();
+					int count = frame.getInt();
+					if (count < 0 || count > frame.remaining() / 12) {
+						return false;
+					}
+					if (sensor != null) {
+						publish(sensor, frame, first, count);
+					} else if (rejected.containsKey(id)) {
+						frame.position(frame.position() + count * 12);
+					} else {
+						return false;
+					}
+				}
+				return acknowledge(batch);
+			}
+			return false;
+		}
+
+		private void publish(Sensor sensor, ByteBuffer frame, long first,
+				int count) {
+			synchronized (state) {
+				Long next = state.nextSequences.get(sensor);
+				for (int i = 0; i < count; i++) {
+					long timestamp = frame.getLong();
+					float value = frame.getFloat();
+					if (next == null || first + i >= next) {
+						collector.publish(sensor, timestamp, value);
+					}
+				}
+				if (next == null || first + count > next) {
+					state.nextSequences.put(sensor, first + count);
+				}
+			}
+		}
+
+		private boolean acknowledge(long batch) throws IOException {
+			ack.clear();
+			ack.putInt(9).put(FederationProtocol.ACK).putLong(batch).flip();
+			socket.write(ack);
+			// liść czeka na ACK przed kolejną ramką, więc bufor gniazda jest
+			// pusty - niepełny zapis oznacza zerwane połączenie
+			return !ack.hasRemaining();
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			messageQueue.unregisterChannel(socket);
+		}
+
+		private final SocketChannel socket;
+		private ByteBuffer buffer = ByteBuffer.allocate(65536);
+		private final ByteBuffer ack = ByteBuffer.allocate(13);
+		private final HashMap<Integer, Sensor> sensors = new HashMap<Integer, Sensor>();
+		private final HashMap<Integer, Boolean> rejected = new HashMap<Integer, Boolean>();
+		private String name = "?";
+		private LeafState state;
+	}
+
+	public FederationServer(MessageQueue messageQueue,
+			SensorDataCollector collector) throws IOException {
+		this(messageQueue, collector, PORT);
+	}
+
+	public FederationServer(MessageQueue messageQueue,
+			SensorDataCollector collector, int port) throws IOException {
+		this.messageQueue = messageQueue;
+		this.collector = collector;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		this.port = serverChannel.socket().getLocalPort();
+		messageQueue.registerChannel(serverChannel, this,
+				SelectionKey.OP_ACCEPT);
+		System.out.printf(
+				"Oczekiwanie na monitory podrzędne na porcie %d\n", this.port);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Stan liścia o podanej nazwie; nowa sesja zastępuje poprzednią
+	 */
+	private LeafState leafState(String name, long session) {
+		while (true) {
+			LeafState state = leaves.get(name);
+			if (state != null && state.session == session) {
+				return state;
+			}
+			LeafState created = new LeafState(session);
+			if (state == null ? leaves.putIfAbsent(name, created) == null
+					: leaves.replace(name, state, created)) {
+				return created;
+			}
+		}
+	}
+
+	/**
+	 * Sensor liścia; null, jeżeli sensor o tej nazwie istnieje lokalnie albo
+	 * należy do innego liścia (jeden wątek zapisujący na sensor)
+	 */
+	private Sensor claim(String leaf, String resource, String metric) {
+		Sensor sensor = collector.findSensor(resource, metric);
+		if (sensor != null) {
+			return leaf.equals(owners.get(sensor)) ? sensor : null;
+		}
+		sensor = collector.getOrCreateSensor(resource, metric);
+		String owner = owners.putIfAbsent(sensor, leaf);
+		return owner == null || owner.equals(leaf) ? sensor : null;
+	}
+
+	@Override
+	public void onSelected(SelectableChannel channel, int readyOperationsMask) {
+		if ((readyOperationsMask & SelectionKey.OP_ACCEPT) != 0) {
+			try {
+				SocketChannel socket = serverChannel.accept();
+				if (socket == null) {
+					return;
+				}
+				messageQueue.registerChannel(socket,
+						new LeafConnection(socket), SelectionKey.OP_READ);
+			} catch (IOException e) {
+				System.err.println("Unable to accept federation connection: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private final MessageQueue messageQueue;
+	private final SensorDataCollector collector;
+	private final ServerSocketChannel serverChannel;
+	private final int port;
+	private final ConcurrentHashMap<String, LeafState> leaves = new ConcurrentHashMap<String, LeafState>();
+	// liść, do którego należy sensor
+	private final ConcurrentHashMap<Sensor, String> owners = new ConcurrentHashMap<Sensor, String>();
+}
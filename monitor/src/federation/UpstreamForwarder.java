@@ -0,0 +1,408 @@
+package federation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import aggregation.RollupResult;
+import aggregation.RollupStage;
+import aggregation.WindowSpec;
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import sensors.SensorHistory;
+
+/**
+ * Strona podrzędna federacji: przekazuje pomiary wszystkich sensorów tego
+ * monitora (poza wyliczanymi) do monitora nadrzędnego ({@link FederationServer})
+ * jednym trwałym połączeniem.
+ *
+ * Wątek przekazujący co -Dmonitor.federation.flush ms (domyślnie 1000) zbiera
+ * z historii sensorów pomiary, których rodzic jeszcze nie potwierdził, i
+ * wysyła je jedną ramką BATCH (najwyżej -Dmonitor.federation.batch pomiarów,
+ * domyślnie 8192), po czym czeka na ACK. Pozycja sensora przesuwa się dopiero
+ * po potwierdzeniu, więc po zerwaniu połączenia niepotwierdzone pomiary są
+ * wysyłane ponownie (rodzic pomija duplikaty po numerach sekwencyjnych).
+ * Pomiary starsze niż historia sensora nie są już dostępne.
+ *
+ * Z -Dmonitor.federation.rollup=60s zamiast pomiarów przekazywane są średnie
+ * z zakończonych przedziałów (z {@link RollupStage}), jako metryka
+ * "metryka@avg:60s". Krok powinien być wielokrotnością rozdzielczości
+ * któregoś poziomu agregatów.
+ *
+ * Nazwę liścia ustawia -Dmonitor.federation.name (domyślnie nazwa hosta).
+ */
+public class UpstreamForwarder implements Runnable {
+
+	private static final long FLUSH_MILLIS = Long.getLong(
+			"monitor.federation.flush", 1000);
+	private static final int BATCH_SIZE = Integer.getInteger(
+			"monitor.federation.batch", 8192);
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int ACK_TIMEOUT = 30000;
+	private static final long RETRY_MIN_MILLIS = 1000;
+	private static final long RETRY_MAX_MILLIS = 30000;
+
+	/**
+	 * Pozycja przekazywania jednego sensora; używana tylko przez wątek
+	 * przekazujący
+	 */
+	private static final class Forwarded {
+
+		Forwarded(int id, Sensor sensor, String metric, long next) {
+			this.id = id;
+			this.sensor = sensor;
+			this.metric = metric;
+			this.cursor = sensor.getHistory().cursor(next);
+			this.next = next;
+			this.pending = next;
+		}
+
+		final int id;
+		final Sensor sensor;
+		// nazwa metryki u rodzica
+		final String metric;
+		final SensorHistory.Cursor cursor;
+		// pierwszy niepotwierdzony numer sekwencyjny
+		long next;
+		// pozycja po potwierdzeniu wysłanej ramki
+		long pending;
+		// numer połączenia, w którym wysłano DEFINE
+		int defined = -1;
+	}
+
+	/**
+	 * @param collector
+	 * @param rollupStage
+	 * @param parent
+	 *            adres rodzica w postaci host:port
+	 */
+	public UpstreamForwarder(SensorDataCollector collector,
+			RollupStage rollupStage, String parent) {
+		int separator = parent.lastIndexOf(':');
+		if (separator < 0) {
+			throw new IllegalArgumentException(
+					"Oczekiwano adresu host:port, jest " + parent);
+		}
+		this.collector = collector;
+		this.rollupStage = rollupStage;
+		this.host = parent.substring(0, separator);
+		this.port = Integer.parseInt(parent.substring(separator + 1));
+
+		String rollup = System.getProperty("monitor.federation.rollup");
+		if (rollup != null) {
+			step = WindowSpec.parseDuration(rollup);
+			if (step <= 0) {
+				throw new IllegalArgumentException(
+						"Nieprawidłowy krok agregatów: " + rollup);
+			}
+			suffix = "@avg:" + rollup;
+		} else {
+			step = 0;
+			suffix = "";
+		}
+
+		String name = System.getProperty("monitor.federation.name");
+		if (name == null) {
+			try {
+				name = InetAddress.getLocalHost().getHostName();
+			} catch (IOException e) {
+				name = "leaf";
+			}
+		}
+		this.name = name;
+	}
+
+	/**
+	 * Uruchamia wątek przekazujący
+	 */
+	public void start() {
+		started = System.currentTimeMillis();
+		Thread thread = new Thread(this, "UpstreamForwarder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		long retry = RETRY_MIN_MILLIS;
+		while (true) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port),
+						CONNECT_TIMEOUT);
+				socket.setSoTimeout(ACK_TIMEOUT);
+				socket.setTcpNoDelay(true);
+				connection++;
+				System.out.printf(
+						"Przekazywanie pomiarów do monitora %s:%d\n", host,
+						port);
+				forward(new DataOutputStream(new BufferedOutputStream(
+						socket.getOutputStream(), 65536)),
+						new DataInputStream(socket.getInputStream()));
+			} catch (IOException e) {
+				System.err.printf("Upstream %s:%d unavailable: %s\n", host,
+						port, e.getMessage());
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			if (acknowledged) {
+				// połączenie działało - ponowna próba od najkrótszej przerwy
+				retry = RETRY_MIN_MILLIS;
+				acknowledged = false;
+			}
+			try {
+				Thread.sleep(retry);
+			} catch (InterruptedException e) {
+				return;
+			}
+			retry = Math.min(retry * 2, RETRY_MAX_MILLIS);
+		}
+	}
+
+	/**
+	 * Wysyła ramki do zerwania połączenia
+	 */
+	private void forward(DataOutputStream out, DataInputStream in)
+			throws IOException {
+		frame.reset();
+		frameData.writeByte(FederationProtocol.HELLO);
+		frameData.writeInt(FederationProtocol.VERSION);
+		FederationProtocol.writeString(frameData, name);
+		frameData.writeLong(session);
+		writeFrame(out);
+		out.flush();
+
+		while (true) {
+			ArrayList<Forwarded> touched = new ArrayList<Forwarded>();
+			int samples = collect(out, touched);
+			if (samples == 0) {
+				try {
+					Thread.sleep(FLUSH_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted");
+				}
+				continue;
+			}
+
+			long batch = ++batches;
+			frame.reset();
+			frameData.writeByte(FederationProtocol.BATCH);
+			frameData.writeLong(batch);
+			frameData.writeInt(groupCount);
+			groups.writeTo(frameData);
+			writeFrame(out);
+			out.flush();
+
+			int length = in.readInt();
+			if (length != 9 || in.readByte() != FederationProtocol.ACK
+					|| in.readLong() != batch) {
+				throw new IOException("unexpected acknowledgement");
+			}
+			for (Forwarded forwarded : touched) {
+				forwarded.next = forwarded.pending;
+			}
+			acknowledged = true;
+
+			if (samples < BATCH_SIZE) {
+				// wszystko zaległe wysłane - kolejna ramka po przerwie
+				try {
+					Thread.sleep(FLUSH_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Zbiera niepotwierdzone pomiary do bufora grup; ramki DEFINE nowych
+	 * sensorów zapisuje od razu do strumienia
+	 *
+	 * @return liczba zebranych pomiarów
+	 */
+	private int collect(DataOutputStream out, ArrayList<Forwarded> touched)
+			throws IOException {
+		groups.reset();
+		groupCount = 0;
+		int samples = 0;
+		for (Sensor sensor : collector.getSensors()) {
+			if (samples >= BATCH_SIZE) {
+				break;
+			}
+			if (sensor.isDerived()) {
+				continue;
+			}
+			Forwarded forwarded = forwardedFor(sensor);
+			forwarded.pending = forwarded.next;
+			int count = step > 0 ? collectRollups(forwarded, BATCH_SIZE
+					- samples) : collectSamples(forwarded, BATCH_SIZE - samples);
+			if (count == 0) {
+				continue;
+			}
+			if (forwarded.defined != connection) {
+				frame.reset();
+				frameData.writeByte(FederationProtocol.DEFINE);
+				frameData.writeInt(forwarded.id);
+				FederationProtocol.writeString(frameData, sensor.getResource());
+				FederationProtocol.writeString(frameData, forwarded.metric);
+				writeFrame(out);
+				forwarded.defined = connection;
+			}
+			touched.add(forwarded);
+			samples += count;
+		}
+		return samples;
+	}
+
+	private int collectSamples(Forwarded forwarded, int limit)
+			throws IOException {
+		SensorHistory.Cursor cursor = forwarded.cursor;
+		cursor.seek(forwarded.next);
+		int total = 0;
+		int count = 0;
+		long first = 0;
+		while (total < limit && cursor.next()) {
+			long sequence = cursor.getSequence();
+			if (count > 0 && sequence != first + count) {
+				// przerwa (pomiary usunięte z historii w czasie odczytu)
+				writeGroup(forwarded.id, first, count);
+				count = 0;
+			}
+			if (count == 0) {
+				first = sequence;
+			}
+			timestamps[count] = cursor.getTimestamp();
+			values[count] = cursor.getValue();
+			count++;
+			total++;
+			forwarded.pending = sequence + 1;
+		}
+		if (count > 0) {
+			writeGroup(forwarded.id, first, count);
+		}
+		return total;
+	}
+
+	/**
+	 * Średnie z zakończonych przedziałów; numer sekwencyjny to początek
+	 * przedziału podzielony przez krok
+	 */
+	private int collectRollups(Forwarded forwarded, int limit)
+			throws IOException {
+		long completed = System.currentTimeMillis() / step * step;
+		long from = forwarded.next * step;
+		if (from >= completed) {
+			return 0;
+		}
+		RollupResult result = rollupStage.query(forwarded.sensor, from,
+				completed - 1, step);
+		int total = 0;
+		int count = 0;
+		long first = 0;
+		boolean open = false;
+		for (int i = 0; i < result.size() && total < limit; i++) {
+			long start = result.getStart(i);
+			if (start + result.getStep() > completed) {
+				// przedział jeszcze trwa (poziom agregatów grubszy niż krok)
+				open = true;
+				break;
+			}
+			if (start < from || result.getCount(i) == 0) {
+				continue;
+			}
+			long sequence = start / step;
+			if (count > 0 && sequence != first + count) {
+				writeGroup(forwarded.id, first, count);
+				count = 0;
+			}
+			if (count == 0) {
+				first = sequence;
+			}
+			timestamps[count] = start;
+			values[count] = (float) result.getAverage(i);
+			count++;
+			total++;
+			forwarded.pending = sequence + 1;
+		}
+		if (count > 0) {
+			writeGroup(forwarded.id, first, count);
+		}
+		if (total < limit && !open) {
+			// przedziały bez pomiarów nie będą już potrzebne
+			forwarded.pending = completed / step;
+			if (total == 0) {
+				// nie ma czego potwierdzać
+				forwarded.next = forwarded.pending;
+			}
+		}
+		return total;
+	}
+
+	private void writeGroup(int id, long first, int count) throws IOException {
+		groupData.writeInt(id);
+		groupData.writeLong(first);
+		groupData.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			groupData.writeLong(timestamps[i]);
+			groupData.writeFloat(values[i]);
+		}
+		groupCount++;
+	}
+
+	private void writeFrame(DataOutputStream out) throws IOException {
+		out.writeInt(frame.size());
+		frame.writeTo(out);
+	}
+
+	private Forwarded forwardedFor(Sensor sensor) {
+		Forwarded forwarded = positions.get(sensor);
+		if (forwarded == null) {
+			// sensory pojawiające się później - od uruchomienia przekazywania
+			long next = step > 0 ? started / step : sensor.getHistory()
+					.findSequence(started);
+			forwarded = new Forwarded(positions.size() + 1, sensor,
+					sensor.getMetric() + suffix, next);
+			positions.put(sensor, forwarded);
+		}
+		return forwarded;
+	}
+
+	private final SensorDataCollector collector;
+	private final RollupStage rollupStage;
+	private final String host;
+	private final int port;
+	private final String name;
+	// krok agregatów (ms); 0 - przekazywanie pomiarów
+	private final long step;
+	private final String suffix;
+	// nowa sesja po każdym uruchomieniu monitora
+	private final long session = new Random().nextLong();
+	private long started;
+	private int connection;
+	private long batches;
+	// czy w bieżącym połączeniu rodzic potwierdził jakąś ramkę
+	private boolean acknowledged;
+
+	private final HashMap<Sensor, Forwarded> positions = new HashMap<Sensor, Forwarded>();
+	private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+	private final DataOutputStream frameData = new DataOutputStream(frame);
+	private final ByteArrayOutputStream groups = new ByteArrayOutputStream();
+	private final DataOutputStream groupData = new DataOutputStream(groups);
+	private int groupCount;
+	private final long[] timestamps = new long[BATCH_SIZE];
+	private final float[] values = new float[BATCH_SIZE];
+}
@@ -1,11 +1,19 @@
 package http;
 
+import aggregation.RollupStage;
+import aggregation.WindowedAggregates;
+
+import derived.DerivedMetrics;
+
 import network.MessageQueue;
 
 import org.mortbay.jetty.Server;
+import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.handler.ContextHandlerCollection;
 
 import sensors.SensorDataCollector;
+import subscription.SubscriptionServer;
 
 public class HTTPServer {
 
@@ -13,14 +21,26 @@ public class HTTPServer {
 	 * @param args
 	 * @throws Exception
 	 */
-	public void run(SensorDataCollector sensorDataCollector, MessageQueue messageQueue) throws Exception {
+	public void run(SensorDataCollector sensorDataCollector, MessageQueue messageQueue, RollupStage rollupStage, SubscriptionServer subscriptionServer, WindowedAggregates windowedAggregates, DerivedMetrics derivedMetrics) throws Exception {
+		// Server(port) używa konektora NIO (SelectChannelConnector), więc
+		// zawieszone żądania strumieni (/subscriptions/{id}/stream) nie
+		// zajmują wątków Jetty
 		Server server = new Server(8080);
 
 		ContextHandler context = new ContextHandler();
 		context.setContextPath("/subscriptions");
-		server.setHandler(context);
 
-		context.setHandler(new SubscriptionsHandler(sensorDataCollector, messageQueue));
+		context.setHandler(new SubscriptionsHandler(sensorDataCollector, messageQueue, rollupStage, subscriptionServer, windowedAggregates, derivedMetrics));
+
+		// endpoint dla Prometheusa; bez przekierowania /metrics -> /metrics/
+		ContextHandler metricsContext = new ContextHandler();
+		metricsContext.setContextPath("/metrics");
+		metricsContext.setAllowNullPathInfo(true);
+		metricsContext.setHandler(new MetricsHandler(sensorDataCollector));
+
+		ContextHandlerCollection contexts = new ContextHandlerCollection();
+		contexts.setHandlers(new Handler[] { context, metricsContext });
+		server.setHandler(contexts);
 
 		server.start();
 
@@ -0,0 +1,46 @@
+package http;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gotowe treści listingów zasobów i metryk. Wpis jest ważny tylko dla wersji
+ * rejestru sensorów, w której powstał, więc dopóki nie pojawi się ani nie
+ * zniknie żaden sensor, listing nie jest budowany ponownie.
+ */
+class ListingCache {
+
+	// po przekroczeniu cache jest czyszczony (wpisy dla starych parametrów)
+	private static final int MAX_ENTRIES = 1024;
+
+	static final class Entry {
+
+		Entry(long version, byte[] body) {
+			this.version = version;
+			this.body = body;
+		}
+
+		final long version;
+		final byte[] body;
+	}
+
+	/**
+	 * Treść listingu dla podanej wersji rejestru lub null
+	 *
+	 * @param key
+	 * @param version
+	 * @return
+	 */
+	byte[] get(String key, long version) {
+		Entry entry = entries.get(key);
+		return entry != null && entry.version == version ? entry.body : null;
+	}
+
+	void put(String key, long version, byte[] body) {
+		if (entries.size() >= MAX_ENTRIES) {
+			entries.clear();
+		}
+		entries.put(key, new Entry(version, body));
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+}
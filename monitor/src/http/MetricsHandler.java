@@ -0,0 +1,151 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import sensors.Measurement;
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+
+/**
+ * Wszystkie sensory w formacie tekstowym Prometheusa (GET /metrics), jako
+ * jeden gauge z zasobem i metryką w etykietach:
+ *
+ * <pre>
+ * monitor_sensor_value{resource="host1",metric="cpu-usage"} 12.5
+ * </pre>
+ *
+ * Odpowiedź powstaje przy każdym żądaniu przez przejście rejestru sensorów i
+ * zapis bezpośrednio do bufora {@link ResponseWriter} - bez składania
+ * Stringów dla poszczególnych sensorów. Czas pomiaru nie jest podawany -
+ * Prometheus przypisuje próbce czas scrape'u, a jawny (zwłaszcza dla sensorów,
+ * które dawno nic nie wysłały) powodowałby odrzucanie próbek jako zbyt starych
+ * i omijał wykrywanie nieaktualnych serii. Sensory bez żadnego pomiaru są
+ * pomijane. Jeżeli klient przyjmuje gzip (Accept-Encoding), odpowiedź jest
+ * kompresowana.
+ */
+public class MetricsHandler extends AbstractHandler {
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	public MetricsHandler(SensorDataCollector sensorDataCollector) {
+		this.sensorDataCollector = sensorDataCollector;
+	}
+
+	public void handle(String target, HttpServletRequest request,
+			HttpServletResponse response, int dispatch) throws IOException,
+			ServletException {
+		if (!request.getMethod().equalsIgnoreCase("GET")) {
+			response.setContentType("text/html");
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			response.getWriter().println("<h1>Nie znaleziono</h1>");
+			((Request) request).setHandled(true);
+			return;
+		}
+
+		response.setContentType(CONTENT_TYPE);
+		response.setStatus(HttpServletResponse.SC_OK);
+		OutputStream out = response.getOutputStream();
+		GZIPOutputStream gzip = null;
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = gzip = new GZIPOutputStream(out, 8192);
+		}
+
+		ResponseWriter writer = ResponseWriter.open(out);
+		try {
+			writeSensors(writer);
+		} finally {
+			writer.finish();
+		}
+		if (gzip != null) {
+			gzip.finish();
+		}
+		((Request) request).setHandled(true);
+	}
+
+	private void writeSensors(ResponseWriter writer) throws IOException {
+		writer.print("# HELP monitor_sensors Number of registered sensors\n");
+		writer.print("# TYPE monitor_sensors gauge\n");
+		writer.print("monitor_sensors ")
+				.print(sensorDataCollector.getRegistry().size()).println();
+
+		writer.print("# HELP monitor_sensor_value Last value reported by a sensor\n");
+		writer.print("# TYPE monitor_sensor_value gauge\n");
+		for (Sensor sensor : sensorDataCollector.getSensors()) {
+			Measurement sample = sensor.getLastSample();
+			if (sample.getTimestamp() == 0) {
+				continue;
+			}
+			writer.print("monitor_sensor_value{resource=\"");
+			printLabel(writer, sensor.getResource());
+			writer.print("\",metric=\"");
+			printLabel(writer, sensor.getMetric());
+			writer.print("\"} ");
+			printValue(writer, sample.getValue());
+			writer.println();
+		}
+	}
+
+	/**
+	 * Wartość etykiety z sekwencjami \\, \" i \n
+	 */
+	private static void printLabel(ResponseWriter writer, String value)
+			throws IOException {
+		int length = value.length();
+		int i = 0;
+		while (i < length) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"' || c == '\n') {
+				break;
+			}
+			i++;
+		}
+		if (i == length) {
+			// typowy przypadek - nic do zamiany
+			writer.print(value);
+			return;
+		}
+		// całość jednym print(String) - pojedyncze znaki rozbiłyby pary
+		// surogatów przy kodowaniu
+		StringBuilder escaped = new StringBuilder(length + 8);
+		escaped.append(value, 0, i);
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == '\\') {
+				escaped.append("\\\\");
+			} else if (c == '"') {
+				escaped.append("\\\"");
+			} else if (c == '\n') {
+				escaped.append("\\n");
+			} else {
+				escaped.append(c);
+			}
+		}
+		writer.print(escaped.toString());
+	}
+
+	private static void printValue(ResponseWriter writer, float value)
+			throws IOException {
+		if (Float.isNaN(value)) {
+			writer.print("NaN");
+		} else if (value == Float.POSITIVE_INFINITY) {
+			writer.print("+Inf");
+		} else if (value == Float.NEGATIVE_INFINITY) {
+			writer.print("-Inf");
+		} else {
+			writer.print(value);
+		}
+	}
+
+	private SensorDataCollector sensorDataCollector;
+}
@@ -0,0 +1,143 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Bufor odpowiedzi tekstowych wielokrotnego użytku - jeden na wątek Jetty, bez
+ * alokacji przy każdym żądaniu. Tekst kodowany jest w UTF-8 bezpośrednio do
+ * bufora, a pełny bufor trafia do strumienia odpowiedzi, więc duże listingi
+ * wysyłane są porcjami (chunked), bez składania całej treści w pamięci.
+ *
+ * Po zakończeniu trzeba wywołać {@link #finish()}.
+ */
+final class ResponseWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final ThreadLocal<ResponseWriter> POOL = new ThreadLocal<ResponseWriter>() {
+		@Override
+		protected ResponseWriter initialValue() {
+			return new ResponseWriter();
+		}
+	};
+
+	private ResponseWriter() {
+	}
+
+	/**
+	 * Bufor bieżącego wątku piszący do podanego strumienia
+	 *
+	 * @param out
+	 * @return
+	 */
+	static ResponseWriter open(OutputStream out) {
+		ResponseWriter writer = POOL.get();
+		writer.out = out;
+		writer.count = 0;
+		return writer;
+	}
+
+	ResponseWriter print(String text) throws IOException {
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x80) {
+				// rzadki przypadek - reszta tekstu przez koder UTF-8
+				write(text.substring(i).getBytes("UTF-8"));
+				return this;
+			}
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) c;
+		}
+		return this;
+	}
+
+	ResponseWriter print(char c) throws IOException {
+		if (c >= 0x80) {
+			return print(String.valueOf(c));
+		}
+		if (count == buffer.length) {
+			flush();
+		}
+		buffer[count++] = (byte) c;
+		return this;
+	}
+
+	ResponseWriter print(long value) throws IOException {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				return print(Long.toString(value));
+			}
+			print('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		if (count + digits > buffer.length) {
+			flush();
+		}
+		for (int i = count + digits - 1; i >= count; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+		return this;
+	}
+
+	/**
+	 * Liczba w tym samym formacie co PrintWriter.print(float)
+	 */
+	ResponseWriter print(float value) throws IOException {
+		return print(Float.toString(value));
+	}
+
+	ResponseWriter print(double value) throws IOException {
+		return print(Double.toString(value));
+	}
+
+	ResponseWriter println() throws IOException {
+		return print('\n');
+	}
+
+	private void write(byte[] data) throws IOException {
+		for (int offset = 0; offset < data.length;) {
+			if (count == buffer.length) {
+				flush();
+			}
+			int length = Math.min(data.length - offset, buffer.length - count);
+			System.arraycopy(data, offset, buffer, count, length);
+			count += length;
+			offset += length;
+		}
+	}
+
+	private void flush() throws IOException {
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+
+	/**
+	 * Wysyła resztę bufora i zwalnia go dla kolejnego żądania
+	 *
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		try {
+			if (count > 0) {
+				flush();
+			}
+		} finally {
+			out = null;
+			count = 0;
+		}
+	}
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private OutputStream out;
+	private int count;
+}
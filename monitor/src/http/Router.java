@@ -0,0 +1,184 @@
+package http;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tabela tras HTTP budowana raz, przy tworzeniu handlera.
+ *
+ * Szablon trasy to ścieżka względem kontekstu, np. <code>{id}/stream</code>
+ * albo <code>history/{}/{}</code>: <code>{id}</code> pasuje do liczby,
+ * <code>{}</code> do dowolnego niepustego segmentu, pozostałe segmenty
+ * porównywane są dosłownie (bez rozróżniania wielkości liter). Dopasowanie
+ * przegląda ścieżkę w miejscu - bez wyrażeń regularnych i bez dzielenia jej
+ * na segmenty; tworzone są tylko wartości parametrów dopasowanej trasy.
+ * Trasy sprawdzane są w kolejności dodania.
+ */
+class Router {
+
+	/**
+	 * Obsługa trasy
+	 */
+	interface Action {
+		/**
+		 * @param parameters
+		 *            wartości segmentów {id} i {} (zdekodowane z URL), w
+		 *            kolejności występowania
+		 */
+		void handle(HttpServletRequest request, HttpServletResponse response,
+				String[] parameters) throws IOException;
+	}
+
+	private static final String NUMBER = "{id}";
+	private static final String ANY = "{}";
+	private static final String[] NO_PARAMETERS = new String[0];
+
+	private static final class Route {
+
+		Route(String[] segments, Action action) {
+			this.segments = segments;
+			this.action = action;
+			int count = 0;
+			for (String segment : segments) {
+				if (segment == NUMBER || segment == ANY) {
+					count++;
+				}
+			}
+			this.parameterCount = count;
+		}
+
+		final String[] segments;
+		final Action action;
+		final int parameterCount;
+	}
+
+	/**
+	 * Dodaje trasę
+	 *
+	 * @param method
+	 *            metoda HTTP
+	 * @param template
+	 *            szablon ścieżki względem kontekstu ("" - sam kontekst)
+	 * @param action
+	 */
+	void add(String method, String template, Action action) {
+		String[] segments = template.isEmpty() ? new String[0] : template
+				.split("/");
+		for (int i = 0; i < segments.length; i++) {
+			// stałe porównywane przez referencję przy dopasowaniu
+			if (segments[i].equals(NUMBER)) {
+				segments[i] = NUMBER;
+			} else if (segments[i].equals(ANY)) {
+				segments[i] = ANY;
+			}
+		}
+		String key = method.toUpperCase();
+		Route[] current = routes.get(key);
+		Route[] updated = new Route[current == null ? 1 : current.length + 1];
+		if (current != null) {
+			System.arraycopy(current, 0, updated, 0, current.length);
+		}
+		updated[updated.length - 1] = new Route(segments, action);
+		routes.put(key, updated);
+	}
+
+	/**
+	 * Wykonuje trasę pasującą do żądania
+	 *
+	 * @return false, jeżeli żadna trasa nie pasuje
+	 * @throws IOException
+	 */
+	boolean dispatch(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		Route[] candidates = routes.get(request.getMethod().toUpperCase());
+		if (candidates == null) {
+			return false;
+		}
+		String path = request.getRequestURI();
+		// pierwszy segment to ścieżka kontekstu; końcowy '/' jest pomijany
+		int start = path.indexOf('/', 1);
+		start = start < 0 ? path.length() : start + 1;
+		int end = path.length();
+		if (end > start && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		for (Route route : candidates) {
+			if (matches(route, path, start, end)) {
+				route.action.handle(request, response,
+						parameters(route, path, start));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(Route route, String path, int start,
+			int end) {
+		if (route.segments.length == 0) {
+			return start >= end;
+		}
+		int position = start;
+		for (String segment : route.segments) {
+			if (position > end) {
+				return false;
+			}
+			int segmentEnd = path.indexOf('/', position);
+			if (segmentEnd < 0 || segmentEnd > end) {
+				segmentEnd = end;
+			}
+			int length = segmentEnd - position;
+			if (segment == ANY) {
+				if (length == 0) {
+					return false;
+				}
+			} else if (segment == NUMBER) {
+				if (length == 0 || length > 9) {
+					return false;
+				}
+				for (int i = position; i < segmentEnd; i++) {
+					if (path.charAt(i) < '0' || path.charAt(i) > '9') {
+						return false;
+					}
+				}
+			} else if (length != segment.length()
+					|| !path.regionMatches(true, position, segment, 0, length)) {
+				return false;
+			}
+			position = segmentEnd + 1;
+		}
+		// cała ścieżka musi zostać dopasowana
+		return position > end;
+	}
+
+	private static String[] parameters(Route route, String path, int start)
+			throws IOException {
+		if (route.parameterCount == 0) {
+			return NO_PARAMETERS;
+		}
+		String[] parameters = new String[route.parameterCount];
+		int position = start;
+		int index = 0;
+		for (String segment : route.segments) {
+			int segmentEnd = path.indexOf('/', position);
+			if (segmentEnd < 0) {
+				segmentEnd = path.length();
+			}
+			if (segment == NUMBER) {
+				parameters[index++] = path.substring(position, segmentEnd);
+			} else if (segment == ANY) {
+				parameters[index++] = URLDecoder.decode(
+						path.substring(position, segmentEnd), "UTF-8");
+			}
+			position = segmentEnd + 1;
+		}
+		return parameters;
+	}
+
+	// metoda HTTP -> trasy w kolejności dodania
+	private final HashMap<String, Route[]> routes = new HashMap<String, Route[]>();
+}
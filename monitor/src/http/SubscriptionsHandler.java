@@ -1,146 +1,869 @@
 package http;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import aggregation.RollupResult;
+import aggregation.RollupStage;
+import aggregation.WindowedAggregates;
+
+import derived.DerivedMetrics;
+
+import network.LoopStats;
 import network.MessageQueue;
 
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
 
+import sensors.Measurement;
 import sensors.Sensor;
 import sensors.SensorDataCollector;
+import sensors.SensorHistory;
+import sensors.SensorPattern;
+import subscription.EventLog;
 import subscription.Subscription;
+import subscription.SubscriptionOptions;
+import subscription.SubscriptionServer;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SubscriptionsHandler extends AbstractHandler {
+	// jak długo żądanie strumienia czeka na wiadomość (ms)
+	private static final long STREAM_TIMEOUT = Long.getLong(
+			"monitor.stream.timeout", 30000);
+	// najwięcej wiadomości w jednej odpowiedzi strumienia
+	private static final int STREAM_BATCH = 1024;
+	// atrybut żądania: numer ostatniej wiadomości znanej klientowi
+	private static final String STREAM_AFTER = "monitor.stream.after";
+	// atrybut żądania: zarejestrowany oczekujący (żądanie było zawieszone)
+	private static final String STREAM_WAITER = "monitor.stream.waiter";
+
 	private SensorDataCollector sensorDataCollector;
 	private MessageQueue messageQueue;
-	private ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+	private RollupStage rollupStage;
+	private SubscriptionServer subscriptionServer;
+	private final ListingCache listingCache = new ListingCache();
+	private WindowedAggregates windowedAggregates;
+	private DerivedMetrics derivedMetrics;
+	// trasy budowane raz - obsługa żądania nie kompiluje wyrażeń regularnych
+	private final Router router = new Router();
 
-	public SubscriptionsHandler(SensorDataCollector sensorDataCollectorInput, MessageQueue messageQueue) {
+	public SubscriptionsHandler(SensorDataCollector sensorDataCollectorInput, MessageQueue messageQueue, RollupStage rollupStage, SubscriptionServer subscriptionServer, WindowedAggregates windowedAggregates, DerivedMetrics derivedMetrics) {
 		this.sensorDataCollector = sensorDataCollectorInput;
 		this.messageQueue = messageQueue;
+		this.rollupStage = rollupStage;
+		this.subscriptionServer = subscriptionServer;
+		this.windowedAggregates = windowedAggregates;
+		this.derivedMetrics = derivedMetrics;
+		addRoutes();
+	}
+
+	/**
+	 * Trasy względem kontekstu (/subscriptions); {id} - numer subskrypcji, {}
+	 * - dowolny segment (zdekodowany z URL)
+	 */
+	private void addRoutes() {
+		router.add("POST", "", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				create(request, response);
+			}
+		});
+		router.add("GET", "", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				// opcjonalnie: ?prefix=host&after=<ostatni z poprzedniej strony>&limit=100
+				writeListing(request, response, null);
+			}
+		});
+		router.add("POST", "batch", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				createSubscriptions(request, response);
+			}
+		});
+		Router.Action latest = new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeLatest(request, response);
+			}
+		};
+		router.add("GET", "latest", latest);
+		router.add("POST", "latest", latest);
+		router.add("GET", "changes", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeChanges(request, response);
+			}
+		});
+		router.add("GET", "stats", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeStats(response);
+			}
+		});
+		router.add("POST", "derived", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				defineDerived(request, response);
+			}
+		});
+		router.add("GET", "derived", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				response.setContentType("text/plain");
+				response.setStatus(HttpServletResponse.SC_OK);
+				PrintWriter writer = response.getWriter();
+				for (String definition : derivedMetrics.list()) {
+					writer.println(definition);
+				}
+			}
+		});
+		router.add("DELETE", "derived/{}/{}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				removeDerived(response, parameters[0], parameters[1]);
+			}
+		});
+		router.add("POST", "{id}/lease", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				renewLease(response, Integer.parseInt(parameters[0]));
+			}
+		});
+		router.add("GET", "{id}/stream", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeStream(request, response, Integer.parseInt(parameters[0]));
+			}
+		});
+		router.add("GET", "{id}/clients", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeClients(response, Integer.parseInt(parameters[0]));
+			}
+		});
+		router.add("GET", "{id}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeSubscription(response, Integer.parseInt(parameters[0]));
+			}
+		});
+		router.add("DELETE", "{id}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				removeSubscription(response, Integer.parseInt(parameters[0]));
+			}
+		});
+		router.add("GET", "metrics/{}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeListing(request, response, parameters[0]);
+			}
+		});
+		router.add("GET", "history/{}/{}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeHistory(request, response, parameters[0], parameters[1]);
+			}
+		});
+		router.add("GET", "rollup/{}/{}", new Router.Action() {
+			@Override
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response, String[] parameters)
+					throws IOException {
+				writeRollup(request, response, parameters[0], parameters[1]);
+			}
+		});
 	}
 
 	public void handle(String target, HttpServletRequest request,
 			HttpServletResponse response, int dispatch) throws IOException,
 			ServletException {
+		route(request, response);
+		((Request) request).setHandled(true);
+	}
+
+	/**
+	 * Obsługa żądania według tabeli tras, bez zależności od obiektów Jetty
+	 * (używana też przez benchmark tras)
+	 */
+	void route(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		if (!router.dispatch(request, response)) {
+			response.setContentType("text/html");
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			response.getWriter().println("<h1>Nie znaleziono</h1>");
+		}
+	}
 
-		Pattern p = Pattern.compile("^/.[a-z]*/(.[\\d]*)$");
-		Matcher m = p.matcher(request.getRequestURI());
-		
-		Pattern metricListPattern = Pattern.compile("^/.[a-z]*/metrics/(.[a-zA-Z0-9\\.]*)$");
-		Matcher metricListMatcher = metricListPattern.matcher(request.getRequestURI());
-		
-		
-		
-
-		if (request.getRequestURI().equalsIgnoreCase("/subscriptions/")
-				&& request.getMethod().equalsIgnoreCase("POST")) {
-			// TODO: Poszedł post do servera
-			
-			String resource = request.getReader().readLine();
-			String metric = request.getReader().readLine();
-			Sensor sensor = null;
-			sensor = sensorDataCollector.findSensor(resource, metric);
-			
-			Subscription subscription = new Subscription(sensorDataCollector.getMessageQueue(), sensor, sensorDataCollector);
-			subscriptions.add(subscription);
-			
-			if(sensor != null){
-				response.getWriter().println(
-						subscription.getId() + "\n" +
-						resource+"\n"+
-						metric+"\n"+
-						subscription.getPort()
-						);
-			}
-			
+	/**
+	 * Tworzy subskrypcję: w treści zasób, metryka i opcjonalnie linie
+	 * klucz=wartość, np. overflow=conflate
+	 */
+	private void create(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		String resource = request.getReader().readLine();
+		String metric = request.getReader().readLine();
+		if (resource == null || metric == null) {
+			response.setContentType("text/html");
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().println(
+					"<h1>Oczekiwano zasobu i metryki</h1>");
+			return;
+		}
+		SubscriptionOptions options = new SubscriptionOptions();
+		String option;
+		while ((option = request.getReader().readLine()) != null) {
+			if (!option.trim().isEmpty() && !options.set(option)) {
+				response.setContentType("text/html");
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				response.getWriter().printf(
+						"<h1>Nieprawidłowa opcja subskrypcji: %s</h1>",
+						option);
+				return;
+			}
+		}
+		Subscription subscription;
+		try {
+			subscription = createSubscription(resource, metric, options);
+		} catch (IllegalArgumentException e) {
+			response.setContentType("text/html");
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			response.getWriter().printf("<h1>%s</h1>", e.getMessage());
+			return;
+		}
 
+		if (subscription != null) {
 			response.setContentType("text/plain");
 			response.setStatus(HttpServletResponse.SC_CREATED);
-			System.out.printf("Nowa subskrypcja o id %d utworzona\n", subscription.getId());
-			// response.getWriter().println("Wpisać listę");
-		} else if (request.getRequestURI().equalsIgnoreCase("/subscriptions/")
-				&& request.getMethod().equalsIgnoreCase("GET")) {
-			
-			// Wypisz listę sensorów
+			response.getWriter().println(
+					subscription.getId() + "\n" +
+					resource+"\n"+
+					metric+"\n"+
+					subscription.getPort()
+					);
+		} else {
+			sensorNotFound(response, resource, metric);
+		}
+	}
+
+	/**
+	 * Statystyki pętli MessageQueue
+	 */
+	private void writeStats(HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getWriter().println(
+				"acceptor " + messageQueue.getAcceptorStats());
+		LoopStats[] workerStats = messageQueue.getWorkerStats();
+		for (int i = 0; i < workerStats.length; i++) {
+			response.getWriter().println(
+					"worker-" + i + " " + workerStats[i]);
+		}
+	}
+
+	private void removeDerived(HttpServletResponse response, String resource,
+			String metric) throws IOException {
+		if (derivedMetrics.remove(resource, metric)) {
+			System.out.printf("Metryka wyliczana %s:%s usunieta\n", resource, metric);
 			response.setContentType("text/plain");
 			response.setStatus(HttpServletResponse.SC_OK);
-			ArrayList<String> listResources = sensorDataCollector.listResources();
-			
-			for (String resource : listResources) {
-				response.getWriter().println(resource);
-			}
-		} else if (m.find() && request.getMethod().equalsIgnoreCase("GET")) {
-			// TODO: poszedł odpowiedni GET o numerze m.group(1)
-			
-			Subscription subscription = null;
-			int id = Integer.parseInt(m.group(1));
-			for (Subscription sub: subscriptions) {
-				if (sub.getId() == id) {
-					subscription = sub;
-				}
+		} else {
+			sensorNotFound(response, resource, metric);
+		}
+	}
+
+	/**
+	 * Odnowienie dzierżawy; odpowiedź - czas do wygaśnięcia w ms
+	 */
+	private void renewLease(HttpServletResponse response, int id)
+			throws IOException {
+		Subscription subscription = subscriptionServer.find(id);
+		if (subscription != null) {
+			subscription.renewLease();
+			response.setContentType("text/plain");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().println(subscription.getLeaseRemaining());
+		} else {
+			subscriptionNotFound(response, id);
+		}
+	}
+
+	private void writeSubscription(HttpServletResponse response, int id)
+			throws IOException {
+		Subscription subscription = subscriptionServer.find(id);
+		if (subscription != null) {
+			response.setContentType("text/plain");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().println(subscription.getId() + "\n" +
+					subscription.getResource()+"\n"+
+					subscription.getMetric()+"\n"+
+					subscription.getPort()
+					);
+		} else {
+			subscriptionNotFound(response, id);
+		}
+	}
+
+	private void removeSubscription(HttpServletResponse response, int id)
+			throws IOException {
+		Subscription subscription = subscriptionServer.find(id);
+		if (subscription != null) {
+			subscription.close();
+			System.out.printf("Subskrypcja o id %d usunieta\n", id);
+			response.setContentType("text/plain");
+			response.setStatus(HttpServletResponse.SC_OK);
+		} else {
+			subscriptionNotFound(response, id);
+		}
+	}
+
+	/**
+	 * Tworzy subskrypcję sensora lub wzorca
+	 *
+	 * @return null, jeżeli nie ma takiego sensora
+	 * @throws IllegalArgumentException
+	 *             opcje nie pasują do subskrypcji
+	 */
+	private Subscription createSubscription(String resource, String metric,
+			SubscriptionOptions options) {
+		Subscription subscription;
+		if (SensorPattern.isPattern(resource) || SensorPattern.isPattern(metric)) {
+			if (options.getWindow() != null) {
+				throw new IllegalArgumentException(
+						"Okno agregatu tylko dla pojedynczego sensora");
 			}
-			
-			if (subscription != null) {
-				response.setContentType("text/plain");
-				response.setStatus(HttpServletResponse.SC_OK);
-				response.getWriter().println(subscription.getId() + "\n" +
-						subscription.getSensor().getResource()+"\n"+
-						subscription.getSensor().getMetric()+"\n"+
-						subscription.getPort()
-						);
-			} else {
-				response.setContentType("text/html");
-				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-				response.getWriter().printf("<h1>Nie znaleziono subskrypcji o id %d</h1>", id);
+			// np. host* / cpu-* - także sensory, które pojawią się później
+			subscription = new Subscription(subscriptionServer,
+					new SensorPattern(resource, metric), sensorDataCollector,
+					options);
+		} else {
+			Sensor sensor = sensorDataCollector.findSensor(resource, metric);
+			if (sensor == null) {
+				return null;
 			}
+			// z opcją window subskrypcja dotyczy agregatu okienkowego
+			subscription = new Subscription(subscriptionServer, sensor,
+					sensorDataCollector, options, windowedAggregates);
+		}
+		System.out.printf("Nowa subskrypcja o id %d utworzona\n",
+				subscription.getId());
+		return subscription;
+	}
 
-		} else if (m.find() && request.getMethod().equalsIgnoreCase("DELETE")) {
+	/**
+	 * Tworzy wiele subskrypcji jednym żądaniem. Każda linia treści to
+	 * "zasób metryka [klucz=wartość ...]"; odpowiedź ma po jednej linii na
+	 * linię żądania: "id zasób metryka port" albo "ERR zasób metryka powód".
+	 */
+	private void createSubscriptions(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		ArrayList<String> results = new ArrayList<String>();
+		String line;
+		while ((line = request.getReader().readLine()) != null) {
+			String[] tokens = line.trim().split("\\s+");
+			if (tokens.length < 2) {
+				if (!line.trim().isEmpty()) {
+					results.add("ERR " + line.trim() + " expected resource and metric");
+				}
+				continue;
+			}
+			String resource = tokens[0];
+			String metric = tokens[1];
+			SubscriptionOptions options = new SubscriptionOptions();
+			String error = null;
+			for (int i = 2; i < tokens.length && error == null; i++) {
+				if (!options.set(tokens[i])) {
+					error = "invalid option " + tokens[i];
+				}
+			}
 			Subscription subscription = null;
-			int id = Integer.parseInt(m.group(1));
-			for (Subscription sub: subscriptions) {
-				if (sub.getId() == id) {
-					subscription = sub;
+			if (error == null) {
+				try {
+					subscription = createSubscription(resource, metric, options);
+					if (subscription == null) {
+						error = "not found";
+					}
+				} catch (IllegalArgumentException e) {
+					error = e.getMessage();
 				}
 			}
-			
-			if (subscription != null) {
-				subscriptions.remove(subscription);
-				System.out.printf("Subskrypcja o id %d usunieta\n", id);
-				response.setContentType("text/plain");
-				response.setStatus(HttpServletResponse.SC_OK);
+			results.add(error != null ? "ERR " + resource + " " + metric + " "
+					+ error : subscription.getId() + " " + resource + " "
+					+ metric + " " + subscription.getPort());
+		}
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter writer = response.getWriter();
+		for (String result : results) {
+			writer.println(result);
+		}
+	}
+
+	/**
+	 * Ostatnie wartości wielu sensorów jednym żądaniem, jako linie "zasób
+	 * metryka czas wartość". GET zwraca wszystkie sensory (opcjonalnie
+	 * ?prefix= zasobu), POST - sensory wymienione w treści ("zasób metryka" w
+	 * linii; nieistniejące są pomijane). Wszystkie wartości są odczytywane
+	 * przed wysłaniem odpowiedzi, każda razem ze swoim czasem.
+	 */
+	private void writeLatest(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		ArrayList<Sensor> sensors = new ArrayList<Sensor>();
+		if (request.getMethod().equalsIgnoreCase("POST")) {
+			String line;
+			while ((line = request.getReader().readLine()) != null) {
+				String[] tokens = line.trim().split("\\s+");
+				if (tokens.length == 2) {
+					Sensor sensor = sensorDataCollector.findSensor(tokens[0],
+							tokens[1]);
+					if (sensor != null) {
+						sensors.add(sensor);
+					}
+				}
 			}
-			else {
-				response.setContentType("text/html");
-				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-				response.getWriter().printf("<h1>Nie znaleziono subskrypcji o id %d</h1>", id);
+		} else {
+			for (String resource : sensorDataCollector.listResources(
+					request.getParameter("prefix"), null, -1)) {
+				for (String metric : sensorDataCollector.listMetrics(resource)) {
+					Sensor sensor = sensorDataCollector.findSensor(resource,
+							metric);
+					if (sensor != null) {
+						sensors.add(sensor);
+					}
+				}
 			}
-		} else if (metricListMatcher.find() && request.getMethod().equalsIgnoreCase("GET")) {
-			// TODO: poszedł odpowiedni GET o numerze metricListMatcher.group(1)
-//			System.out.println();
-			response.setContentType("text/plain");
-			response.setStatus(HttpServletResponse.SC_OK);
-			
-			ArrayList<String> listMetrics = sensorDataCollector.listMetrics(metricListMatcher.group(1));
-			
-			for (String metric : listMetrics) {
-				response.getWriter().println(metric);
+		}
+
+		Measurement[] samples = new Measurement[sensors.size()];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = sensors.get(i).getLastSample();
+		}
+
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		ResponseWriter writer = ResponseWriter.open(response.getOutputStream());
+		try {
+			for (int i = 0; i < samples.length; i++) {
+				Sensor sensor = sensors.get(i);
+				writer.print(sensor.getResource()).print(' ')
+						.print(sensor.getMetric()).print(' ')
+						.print(samples[i].getTimestamp()).print(' ')
+						.print(samples[i].getValue()).println();
 			}
+		} finally {
+			writer.finish();
+		}
+	}
+
+	/**
+	 * Listing zasobów (resource == null) lub metryk zasobu z nagłówkiem ETag
+	 * równym wersji rejestru sensorów. Na If-None-Match z aktualną wersją
+	 * odpowiada 304 bez treści; w pozostałych przypadkach wysyła treść z
+	 * cache, budując ją tylko po zmianie rejestru.
+	 */
+	private void writeListing(HttpServletRequest request,
+			HttpServletResponse response, String resource) throws IOException {
+		// wersja przed odczytem - listing może być najwyżej nowszy niż ETag
+		long version = sensorDataCollector.getRegistry().getVersion();
+		if (notModified(request, response, version)) {
+			return;
+		}
+		String prefix = request.getParameter("prefix");
+		String after = request.getParameter("after");
+		int limit = parseLimit(request);
+		String key = (resource == null ? "R" : "M" + resource) + "\n"
+				+ prefix + "\n" + after + "\n" + limit;
+		byte[] body = listingCache.get(key, version);
+		if (body == null) {
+			ArrayList<String> names = resource == null ? sensorDataCollector
+					.listResources(prefix, after, limit) : sensorDataCollector
+					.listMetrics(resource, prefix, after, limit);
+			StringBuilder text = new StringBuilder();
+			for (String name : names) {
+				text.append(name).append('\n');
+			}
+			body = text.toString().getBytes("UTF-8");
+			listingCache.put(key, version, body);
+		}
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
 
-		}else {
+	/**
+	 * Zmiany rejestru sensorów od wersji ?since=N: pierwsza linia to bieżąca
+	 * wersja, kolejne "+ zasób metryka" lub "- zasób metryka". Jeżeli zmian
+	 * nie ma już w dzienniku - 410 (trzeba pobrać cały listing).
+	 */
+	private void writeChanges(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		long since = parseLong(request.getParameter("since"), -1);
+		if (notModified(request, response, sensorDataCollector.getRegistry()
+				.getVersion())) {
+			return;
+		}
+		ArrayList<String> changes = new ArrayList<String>();
+		long version = sensorDataCollector.getRegistry().changesSince(since,
+				changes);
+		if (version < 0) {
 			response.setContentType("text/html");
-			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-			response.getWriter().println("<h1>Nie znaleziono</h1>");
+			response.setStatus(HttpServletResponse.SC_GONE);
+			response.getWriter().printf(
+					"<h1>Brak zmian od wersji %d - pobierz cały listing</h1>",
+					since);
+			return;
 		}
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setHeader("ETag", etag(version));
+		PrintWriter writer = response.getWriter();
+		writer.println(version);
+		for (String change : changes) {
+			writer.println(change);
+		}
+	}
 
-		((Request) request).setHandled(true);
+	/**
+	 * Ustawia ETag wersji rejestru i odpowiada 304, jeżeli klient ma już tę
+	 * wersję
+	 *
+	 * @return true, jeżeli odpowiedź 304 została wysłana
+	 */
+	private static boolean notModified(HttpServletRequest request,
+			HttpServletResponse response, long version) {
+		String etag = etag(version);
+		response.setHeader("ETag", etag);
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	private static String etag(long version) {
+		return "\"" + version + "\"";
+	}
+
+	/**
+	 * Odczytuje parametr limit (rozmiar strony listingu); brak lub błędna
+	 * wartość oznacza brak ograniczenia
+	 */
+	private static int parseLimit(HttpServletRequest request) {
+		String limit = request.getParameter("limit");
+		if (limit == null) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(limit);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Wypisuje historię sensora z przedziału [from, to] (ms od epoki) jako
+	 * linie "czas wartość". Odpowiedź wysyłana jest porcjami przez
+	 * {@link ResponseWriter}, bez długości treści, więc Jetty stosuje kodowanie
+	 * chunked.
+	 */
+	private void writeHistory(HttpServletRequest request,
+			HttpServletResponse response, String resource, String metric)
+			throws IOException {
+		Sensor sensor = sensorDataCollector.findSensor(resource, metric);
+		if (sensor == null) {
+			sensorNotFound(response, resource, metric);
+			return;
+		}
+		long from = parseLong(request.getParameter("from"), 0);
+		long to = parseLong(request.getParameter("to"), Long.MAX_VALUE);
+
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		ResponseWriter writer = ResponseWriter.open(response.getOutputStream());
+		try {
+			SensorHistory history = sensor.getHistory();
+			SensorHistory.Cursor cursor = history.cursor(history
+					.findSequence(from));
+			while (cursor.next() && cursor.getTimestamp() <= to) {
+				writer.print(cursor.getTimestamp()).print(' ')
+						.print(cursor.getValue()).println();
+			}
+		} finally {
+			writer.finish();
+		}
+	}
+
+	/**
+	 * Wypisuje agregaty sensora z przedziału [from, to] w krokach step (ms)
+	 * jako linie "początek min max średnia liczba". Domyślnie ostatnia
+	 * godzina w krokach minutowych.
+	 */
+	private void writeRollup(HttpServletRequest request,
+			HttpServletResponse response, String resource, String metric)
+			throws IOException {
+		Sensor sensor = sensorDataCollector.findSensor(resource, metric);
+		if (sensor == null) {
+			sensorNotFound(response, resource, metric);
+			return;
+		}
+		long to = parseLong(request.getParameter("to"),
+				System.currentTimeMillis());
+		long from = parseLong(request.getParameter("from"), to - 3600000);
+		long step = parseLong(request.getParameter("step"), 60000);
+
+		RollupResult result = rollupStage.query(sensor, from, to, step);
+
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		ResponseWriter writer = ResponseWriter.open(response.getOutputStream());
+		try {
+			for (int i = 0; i < result.size(); i++) {
+				writer.print(result.getStart(i)).print(' ')
+						.print(result.getMin(i)).print(' ')
+						.print(result.getMax(i)).print(' ')
+						.print(result.getAverage(i)).print(' ')
+						.print(result.getCount(i)).println();
+			}
+		} finally {
+			writer.finish();
+		}
+	}
+
+	/**
+	 * Definiuje metryki wyliczane - po jednej definicji w linii, np.
+	 * "host1:mem-pct = mem-usage / mem-total * 100". Odpowiedź zawiera
+	 * zasób i metrykę każdego nowego sensora.
+	 */
+	private void defineDerived(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		ArrayList<Sensor> defined = new ArrayList<Sensor>();
+		String line;
+		while ((line = request.getReader().readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				defined.add(derivedMetrics.define(line));
+			} catch (IllegalArgumentException e) {
+				// wcześniejsze linie zostają zdefiniowane
+				response.setContentType("text/html");
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				response.getWriter().printf(
+						"<h1>Nieprawidłowa metryka wyliczana: %s</h1>",
+						e.getMessage());
+				return;
+			}
+		}
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_CREATED);
+		PrintWriter writer = response.getWriter();
+		for (Sensor sensor : defined) {
+			writer.println(sensor.getResource() + "\n" + sensor.getMetric());
+		}
+	}
+
+	/**
+	 * Strumień subskrypcji jako Server-Sent Events w trybie long-poll: jeżeli
+	 * nie ma wiadomości nowszych niż Last-Event-ID (nagłówek lub parametr
+	 * lastEventId), żądanie jest zawieszane (Jetty Continuation) bez zajmowania
+	 * wątku i wznawiane przy najbliższej wiadomości albo po
+	 * -Dmonitor.stream.timeout ms. Odpowiedź zawiera wszystkie zaległe
+	 * wiadomości; EventSource przeglądarki łączy się ponownie z Last-Event-ID,
+	 * więc między odpowiedziami nic nie ginie, dopóki wiadomości mieszczą się
+	 * w buforze.
+	 *
+	 * Jeżeli część wiadomości po Last-Event-ID wypadła już z bufora, przed
+	 * pozostałymi wysyłane jest zdarzenie <code>gap</code> (data: pierwszy i
+	 * ostatni utracony numer). Numer nowszy niż ostatnia wiadomość (np. po
+	 * restarcie monitora) daje od razu zdarzenie <code>reset</code> z
+	 * bieżącym numerem. W obu przypadkach klient powinien pobrać aktualny
+	 * stan (np. /subscriptions/latest).
+	 */
+	private void writeStream(HttpServletRequest request,
+			HttpServletResponse response, int id) throws IOException {
+		Subscription subscription = subscriptionServer.find(id);
+		if (subscription == null) {
+			subscriptionNotFound(response, id);
+			return;
+		}
+		// klienci HTTP nie są zapisani na porcie strumieniowym - każde
+		// żądanie strumienia odnawia dzierżawę
+		subscription.renewLease();
+		EventLog log = subscription.getEventLog();
+
+		// przy ponownym wywołaniu (po wznowieniu) atrybut już jest
+		Long after = (Long) request.getAttribute(STREAM_AFTER);
+		if (after == null) {
+			String lastEventId = request.getHeader("Last-Event-ID");
+			if (lastEventId == null) {
+				lastEventId = request.getParameter("lastEventId");
+			}
+			long lastId = log.getLastId();
+			after = parseLong(lastEventId, lastId);
+			if (after > lastId) {
+				// numer spoza tego bufora - klient musi zacząć od nowa
+				PrintWriter writer = startEventStream(response);
+				writer.print("event: reset\nid: ");
+				writer.print(lastId);
+				writer.print("\ndata: ");
+				writer.print(lastId);
+				writer.print("\n\n");
+				return;
+			}
+			request.setAttribute(STREAM_AFTER, after);
+		}
+
+		EventLog.Waiter waiter = (EventLog.Waiter) request
+				.getAttribute(STREAM_WAITER);
+		if (waiter != null) {
+			// ponowne wywołanie po resume() lub po timeout
+			log.cancel(waiter);
+		} else {
+			final Continuation continuation = ContinuationSupport
+					.getContinuation(request, null);
+			waiter = new EventLog.Waiter() {
+				@Override
+				public void onEvent() {
+					continuation.resume();
+				}
+			};
+			if (log.await(after, waiter)) {
+				request.setAttribute(STREAM_WAITER, waiter);
+				// z konektorem NIO zwalnia wątek (wyjątek RetryRequest) -
+				// handle() zostanie wywołane ponownie po resume() lub
+				// timeout; z konektorem blokującym czeka w miejscu
+				continuation.suspend(STREAM_TIMEOUT);
+				log.cancel(waiter);
+			}
+		}
+
+		ArrayList<byte[]> events = new ArrayList<byte[]>();
+		long eventId = log.read(after, STREAM_BATCH, events);
+		PrintWriter writer = startEventStream(response);
+		if (eventId > after + 1) {
+			// wiadomości after+1 .. eventId-1 wypadły z bufora
+			writer.print("event: gap\nid: ");
+			writer.print(eventId - 1);
+			writer.print("\ndata: ");
+			writer.print(after + 1);
+			writer.print(' ');
+			writer.print(eventId - 1);
+			writer.print("\n\n");
+		}
+		if (events.isEmpty()) {
+			// timeout bez wiadomości - komentarz podtrzymujący
+			writer.print(": keepalive\n\n");
+		}
+		for (byte[] event : events) {
+			writer.print("id: ");
+			writer.print(eventId++);
+			writer.print("\ndata: ");
+			writer.print(new String(event, "UTF-8"));
+			writer.print("\n\n");
+		}
+	}
+
+	private static PrintWriter startEventStream(HttpServletResponse response)
+			throws IOException {
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter writer = response.getWriter();
+		// szybkie ponowne połączenie - odpowiedź kończy się po każdej porcji
+		writer.print("retry: 100\n\n");
+		return writer;
+	}
+
+	/**
+	 * Wypisuje ustawienia subskrypcji i stan kolejek jej klientów
+	 */
+	private void writeClients(HttpServletResponse response, int id)
+			throws IOException {
+		Subscription subscription = subscriptionServer.find(id);
+		if (subscription == null) {
+			subscriptionNotFound(response, id);
+			return;
+		}
+
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter writer = response.getWriter();
+		writer.println(subscription.getOptions());
+		writer.println("leaseRemaining=" + subscription.getLeaseRemaining());
+		writer.println("disconnects=" + subscription.getDisconnects());
+		for (String client : subscription.getClientStats()) {
+			writer.println(client);
+		}
+	}
+
+	private static void sensorNotFound(HttpServletResponse response,
+			String resource, String metric) throws IOException {
+		response.setContentType("text/html");
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		response.getWriter().printf("<h1>Nie znaleziono sensora %s:%s</h1>",
+				resource, metric);
+	}
+
+	private static void subscriptionNotFound(HttpServletResponse response,
+			int id) throws IOException {
+		response.setContentType("text/html");
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		response.getWriter().printf(
+				"<h1>Nie znaleziono subskrypcji o id %d</h1>", id);
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package network;
+
+/**
+ * Statystyki pętli jednego reaktora. Zapisywane wyłącznie przez wątek
+ * reaktora, odczytywane z dowolnego wątku (np. przez HTTP).
+ */
+public class LoopStats {
+
+	void record(int keysSelected, long handlerNanos, long loopNanos) {
+		loops++;
+		lastKeysSelected = keysSelected;
+		this.keysSelected += keysSelected;
+		this.handlerNanos += handlerNanos;
+		this.loopNanos += loopNanos;
+		lastLoopNanos = loopNanos;
+		if (loopNanos > maxLoopNanos) {
+			maxLoopNanos = loopNanos;
+		}
+	}
+
+	/**
+	 * Liczba obiegów pętli
+	 * 
+	 * @return
+	 */
+	public long getLoops() {
+		return loops;
+	}
+
+	/**
+	 * Łączna liczba kluczy zwróconych przez select()
+	 * 
+	 * @return
+	 */
+	public long getKeysSelected() {
+		return keysSelected;
+	}
+
+	public int getLastKeysSelected() {
+		return lastKeysSelected;
+	}
+
+	/**
+	 * Łączny czas spędzony w handlerach
+	 * 
+	 * @return
+	 */
+	public long getHandlerNanos() {
+		return handlerNanos;
+	}
+
+	/**
+	 * Łączny czas obiegów pętli, bez oczekiwania w select()
+	 * 
+	 * @return
+	 */
+	public long getLoopNanos() {
+		return loopNanos;
+	}
+
+	public long getLastLoopNanos() {
+		return lastLoopNanos;
+	}
+
+	public long getMaxLoopNanos() {
+		return maxLoopNanos;
+	}
+
+	@Override
+	public String toString() {
+		long loops = this.loops;
+		return String.format(
+				"loops=%d keys=%d lastKeys=%d handlerNs=%d loopNs=%d "
+						+ "avgLoopNs=%d maxLoopNs=%d", loops, keysSelected,
+				lastKeysSelected, handlerNanos, loopNanos,
+				loops == 0 ? 0 : loopNanos / loops, maxLoopNanos);
+	}
+
+	private volatile long loops;
+	private volatile long keysSelected;
+	private volatile int lastKeysSelected;
+	private volatile long handlerNanos;
+	private volatile long loopNanos;
+	private volatile long lastLoopNanos;
+	private volatile long maxLoopNanos;
+}
@@ -1,110 +1,401 @@
 package network;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Pętla zdarzeń obsługująca kanały sieciowe monitora.
+ *
+ * W trybie domyślnym wszystkie kanały obsługuje jeden Selector w wątku, który
+ * wywołał {@link #run()}. W trybie wielu reaktorów ten wątek obsługuje tylko
+ * kanały nasłuchujące (akceptor), a pozostałe kanały rozdzielane są pomiędzy
+ * N wątków roboczych, każdy z własnym Selectorem - nowy kanał trafia do
+ * najmniej obciążonego z nich.
+ *
+ * Rejestracja i wyrejestrowanie kanału mogą być wywoływane z dowolnego wątku:
+ * jeżeli wywołujący nie jest wątkiem danego reaktora, operacja jest kolejkowana
+ * i wykonywana przez reaktor po wybudzeniu go przez {@link Selector#wakeup()}.
+ */
 public class MessageQueue {
 
-	private static class ChannelRecord {
+	/**
+	 * Jeden Selector wraz z wątkiem, który go obsługuje
+	 */
+	private static class Reactor implements Runnable {
+
+		public Reactor(String name,
+				ConcurrentHashMap<SelectableChannel, Reactor> owners) {
+			this.name = name;
+			this.owners = owners;
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Unable to create Selector. Exiting...");
+				throw new RuntimeException();
+			}
+		}
+
+		/**
+		 * Wykonuje zadanie w wątku reaktora: od razu, jeżeli wywołujący jest
+		 * tym wątkiem, w przeciwnym razie przy najbliższym obiegu pętli.
+		 *
+		 * @param task
+		 */
+		public void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			} else {
+				pendingTasks.add(task);
+				selector.wakeup();
+			}
+		}
 
-		public ChannelRecord(SelectionKey selectionKey,
-				ChannelSelectionHandler handler) {
-			this.key = selectionKey;
-			this.handler = handler;
+		public void register(final SelectableChannel channel,
+				final ChannelSelectionHandler selectionHandler,
+				final int selectionOptions) {
+			owners.put(channel, this);
+			channelCount.incrementAndGet();
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if (owners.get(channel) != Reactor.this) {
+						// wyrejestrowany, zanim reaktor wykonał rejestrację
+						return;
+					}
+					try {
+						// handler dołączony do klucza - obsługa zdarzenia nie
+						// wymaga przeszukiwania żadnej listy
+						channel.register(selector, selectionOptions,
+								selectionHandler);
+					} catch (ClosedChannelException e) {
+						System.err.println("Unable to register channel.");
+						release(channel);
+					}
+				}
+			});
 		}
 
-		public SelectionKey getKey() {
-			return key;
+		/**
+		 * Wyrejestrowuje kanał. Licznik kanałów zmniejszany jest od razu, na
+		 * podstawie zapisanego właściciela - nie zależy od tego, czy klucz
+		 * jeszcze istnieje (kanał mógł zostać zamknięty przez inny wątek).
+		 */
+		public void unregister(final SelectableChannel channel) {
+			if (!release(channel)) {
+				return;
+			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					SelectionKey key = channel.keyFor(selector);
+					if (key != null) {
+						key.attach(null);
+						key.cancel();
+					}
+				}
+			});
 		}
 
-		public ChannelSelectionHandler getHandler() {
-			return handler;
+		/**
+		 * Zwalnia kanał tego reaktora (co najwyżej raz na rejestrację)
+		 *
+		 * @return false, jeżeli kanał nie należał do reaktora
+		 */
+		private boolean release(SelectableChannel channel) {
+			if (owners.remove(channel, this)) {
+				channelCount.decrementAndGet();
+				return true;
+			}
+			return false;
 		}
 
-		private SelectionKey key;
-		private ChannelSelectionHandler handler;
+		/**
+		 * Zmienia zbiór obsługiwanych operacji kanału w wątku reaktora
+		 *
+		 * @return false, jeżeli kanał nie jest (jeszcze) zarejestrowany w tym
+		 *         reaktorze
+		 */
+		public boolean setInterestOps(final SelectableChannel channel,
+				final int ops) {
+			SelectionKey key = channel.keyFor(selector);
+			if (key == null) {
+				return false;
+			}
+			if (Thread.currentThread() == thread) {
+				if (key.isValid()) {
+					key.interestOps(ops);
+				}
+				return true;
+			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					SelectionKey key = channel.keyFor(selector);
+					if (key != null && key.isValid()) {
+						key.interestOps(ops);
+					}
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Planuje zadanie w kole czasowym reaktora
+		 */
+		public void schedule(ScheduledTask task, long delayMillis) {
+			task.deadline = currentMillis() + Math.max(0, delayMillis);
+			if (Thread.currentThread() == thread) {
+				timers.schedule(task, task.deadline);
+			} else {
+				pendingTimers.add(task);
+				selector.wakeup();
+			}
+		}
+
+		public int getChannelCount() {
+			return channelCount.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public LoopStats getStats() {
+			return stats;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			while (true) {
+				long tasksStart = System.nanoTime();
+				Runnable task;
+				while ((task = pendingTasks.poll()) != null) {
+					task.run();
+				}
+				ScheduledTask timer;
+				while ((timer = pendingTimers.poll()) != null) {
+					timers.schedule(timer, timer.deadline);
+				}
+
+				long selectStart = System.nanoTime();
+				try {
+					// bez zaplanowanych zadań timeout 0 - czekanie bez
+					// ograniczenia
+					selector.select(timers.timeout(currentMillis()));
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+					throw new RuntimeException(); // temporary
+				}
+
+				long loopStart = System.nanoTime();
+				Set<SelectionKey> keys = selector.selectedKeys();
+				int keysSelected = keys.size();
+
+				for (SelectionKey key : keys) {
+					// handler mógł w międzyczasie wyrejestrować ten kanał
+					ChannelSelectionHandler handler = (ChannelSelectionHandler) key
+							.attachment();
+					if (handler != null && key.isValid()) {
+						handler.onSelected(key.channel(), key.readyOps());
+					}
+				}
+
+				keys.clear();
+				timers.advance(currentMillis());
+				long loopEnd = System.nanoTime();
+				// czas oczekiwania w select() nie wlicza się do czasu obiegu
+				stats.record(keysSelected, loopEnd - loopStart, loopEnd
+						- loopStart + selectStart - tasksStart);
+			}
+		}
+
+		private final String name;
+		private Selector selector;
+		private final LoopStats stats = new LoopStats();
+		private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+		private final ConcurrentLinkedQueue<ScheduledTask> pendingTimers = new ConcurrentLinkedQueue<ScheduledTask>();
+		private final TimerWheel timers = new TimerWheel(currentMillis());
+		private final AtomicInteger channelCount = new AtomicInteger();
+		// kanał -> reaktor, który go obsługuje (wspólna dla wszystkich
+		// reaktorów kolejki)
+		private final ConcurrentHashMap<SelectableChannel, Reactor> owners;
+		private volatile Thread thread;
+	}
+
+	/**
+	 * Czas monotoniczny w ms, używany przez koła czasowe reaktorów
+	 *
+	 * @return
+	 */
+	public static long currentMillis() {
+		return System.nanoTime() / 1000000;
 	}
 
-	private Selector selector;
-	private ArrayList<ChannelRecord> channelRecords = new ArrayList<ChannelRecord>();
+	private final Reactor acceptor;
+	private final Reactor[] workers;
+	private int nextWorker = 0;
+	// reaktor obsługujący kanał, zapisywany przy rejestracji
+	private final ConcurrentHashMap<SelectableChannel, Reactor> owners = new ConcurrentHashMap<SelectableChannel, Reactor>();
 
+	/**
+	 * Tworzy kolejkę z jednym Selectorem obsługującym wszystkie kanały
+	 */
 	public MessageQueue() {
-		try {
-			selector = Selector.open();
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.err.println("Unable to create Selector. Exiting...");
-			throw new RuntimeException();
+		this(0);
+	}
+
+	/**
+	 * Tworzy kolejkę z akceptorem i podaną liczbą wątków roboczych. Dla zera
+	 * wszystkie kanały obsługuje akceptor.
+	 *
+	 * @param workerCount
+	 */
+	public MessageQueue(int workerCount) {
+		acceptor = new Reactor("MessageQueue-acceptor", owners);
+		workers = new Reactor[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Reactor("MessageQueue-worker-" + i, owners);
 		}
 	}
 
-	public SelectionKey registerChannel(SelectableChannel channel,
+	/**
+	 * Rejestruje kanał. Kanały nasłuchujące trafiają do akceptora, pozostałe do
+	 * najmniej obciążonego reaktora roboczego. Samo dołączenie do Selectora
+	 * może nastąpić asynchronicznie, w wątku wybranego reaktora.
+	 *
+	 * @param channel
+	 * @param selectionHandler
+	 * @param selectionOptions
+	 * @throws IOException
+	 */
+	public void registerChannel(SelectableChannel channel,
 			ChannelSelectionHandler selectionHandler, int selectionOptions)
 			throws IOException {
-		SelectionKey key;
 		try {
 			channel.configureBlocking(false);
-			key = channel.register(selector, selectionOptions);
 		} catch (IOException e) {
 			System.err.println("Unable to register channel.");
 			throw e;
 		}
-		channelRecords.add(new ChannelRecord(key, selectionHandler));
-		return key;
+		selectReactor(channel).register(channel, selectionHandler,
+				selectionOptions);
 	}
 
 	/**
-	 * Usuwa WSZYSTKIE rekordy związane z danym kanałem
-	 * 
+	 * Wyrejestrowuje kanał z reaktora, który go obsługuje (zapisanego przy
+	 * rejestracji)
+	 *
 	 * @param channel
 	 */
 	public void unregisterChannel(SelectableChannel channel) {
-		Iterator<ChannelRecord> it = channelRecords.iterator();
-		while (it.hasNext()) {
-			ChannelRecord record = it.next();
-			if (record.getKey().channel() == channel) {
-				record.getKey().cancel();
-				it.remove(); // usunięcie w ten sposób powinno być bezpieczne
-			}
+		Reactor owner = owners.get(channel);
+		if (owner != null) {
+			owner.unregister(channel);
 		}
 	}
 
-	public void run() {
-		while (true) {
-			try {
-				selector.select();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				throw new RuntimeException(); // temporary
+	/**
+	 * Zmienia zbiór operacji (np. dodaje OP_WRITE), na które czeka kanał.
+	 * Można wywoływać z dowolnego wątku - zmiana jest wykonywana przez
+	 * reaktor obsługujący kanał.
+	 *
+	 * @param channel
+	 * @param ops
+	 */
+	public void setInterestOps(final SelectableChannel channel, final int ops) {
+		Reactor owner = owners.get(channel);
+		if (owner == null || owner.setInterestOps(channel, ops)) {
+			return;
+		}
+		// rejestracja czeka jeszcze w kolejce reaktora - zadania wykonywane są
+		// w kolejności, więc zmiana nastąpi po niej
+		deferInterestOps(owner, channel, ops);
+	}
+
+	private static void deferInterestOps(final Reactor reactor,
+			final SelectableChannel channel, final int ops) {
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				reactor.setInterestOps(channel, ops);
 			}
+		});
+	}
 
-			Set<SelectionKey> keys = selector.selectedKeys();
-
-			for (SelectionKey key : keys) {
-				ChannelRecord record = null;
-				for (ChannelRecord r : channelRecords) {
-					if (key == r.getKey()) {
-						record = r;
-						// Ten break jest dosyć istotny: metoda onSelected mogła
-						// spowodować modyfikację channelRecords
-						// (dodanie/usunięcie), więc dalsza iteracja mogłaby
-						// spowodować rzucenie wyjątku.
-						break;
-					}
-				}
-				if (record != null) {
-					record.getHandler().onSelected(record.getKey().channel(),
-							record.getKey().readyOps());
+	private Reactor selectReactor(SelectableChannel channel) {
+		if (workers.length == 0 || channel instanceof ServerSocketChannel) {
+			return acceptor;
+		}
+		synchronized (workers) {
+			// najmniej obciążony; przy remisie kolejny w kolejności
+			Reactor selected = null;
+			for (int i = 0; i < workers.length; i++) {
+				Reactor candidate = workers[(nextWorker + i) % workers.length];
+				if (selected == null
+						|| candidate.getChannelCount() < selected
+								.getChannelCount()) {
+					selected = candidate;
 				}
 			}
+			nextWorker = (nextWorker + 1) % workers.length;
+			return selected;
+		}
+	}
+
+	/**
+	 * Planuje jednorazowe wykonanie zadania po delayMillis ms (względem
+	 * {@link #currentMillis()}). Wszystkie zadania obsługuje jedno koło
+	 * czasowe w wątku akceptora - zadanie nie może blokować.
+	 *
+	 * @param task
+	 * @param delayMillis
+	 */
+	public void schedule(ScheduledTask task, long delayMillis) {
+		acceptor.schedule(task, delayMillis);
+	}
 
-			keys.clear();
+	/**
+	 * Statystyki pętli akceptora
+	 *
+	 * @return
+	 */
+	public LoopStats getAcceptorStats() {
+		return acceptor.getStats();
+	}
+
+	/**
+	 * Statystyki pętli wątków roboczych (pusta tablica w trybie z jednym
+	 * Selectorem)
+	 *
+	 * @return
+	 */
+	public LoopStats[] getWorkerStats() {
+		LoopStats[] stats = new LoopStats[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			stats[i] = workers[i].getStats();
+		}
+		return stats;
+	}
+
+	/**
+	 * Uruchamia wątki robocze, a następnie pętlę akceptora w bieżącym wątku
+	 */
+	public void run() {
+		for (Reactor worker : workers) {
+			Thread thread = new Thread(worker, worker.getName());
+			thread.start();
 		}
+		acceptor.run();
 	}
 }
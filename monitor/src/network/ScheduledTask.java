@@ -0,0 +1,18 @@
+package network;
+
+/**
+ * Zadanie wykonywane jednorazowo przez {@link TimerWheel} po upływie zadanego
+ * czasu. Pola listy są częścią zadania, więc planowanie nie alokuje pamięci -
+ * ten sam obiekt można planować wielokrotnie, ale nie ponownie przed
+ * wykonaniem.
+ */
+public abstract class ScheduledTask {
+
+	/**
+	 * Wywoływane w wątku reaktora, do którego należy koło
+	 */
+	public abstract void run();
+
+	long deadline;
+	ScheduledTask next;
+}
@@ -0,0 +1,59 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wiadomość zakodowana raz i wysyłana do wielu kanałów. Dane są tylko do
+ * odczytu; każdy odbiorca pisze z własnego widoku ({@link #view()}), więc
+ * pozycje odbiorców są niezależne.
+ * 
+ * Licznik referencji decyduje o zwrocie bufora do puli: twórca ma jedną
+ * referencję, a każdy, kto przechowuje widok na później (np. w kolejce
+ * wysyłania), musi wywołać {@link #retain()} i po wysłaniu
+ * {@link #release()}.
+ */
+public class SharedMessage {
+
+	/**
+	 * @param buffer
+	 *            bufor z zakodowaną wiadomością (przed flip)
+	 * @param pool
+	 *            pula, do której bufor wraca (może być null)
+	 */
+	public SharedMessage(ByteBuffer buffer, BufferPool pool) {
+		buffer.flip();
+		this.buffer = buffer;
+		this.data = buffer.asReadOnlyBuffer();
+		this.pool = pool;
+	}
+
+	/**
+	 * Nowy widok danych wiadomości z pozycją na początku
+	 * 
+	 * @return
+	 */
+	public ByteBuffer view() {
+		return data.duplicate();
+	}
+
+	public int size() {
+		return data.remaining();
+	}
+
+	public SharedMessage retain() {
+		references.incrementAndGet();
+		return this;
+	}
+
+	public void release() {
+		if (references.decrementAndGet() == 0 && pool != null) {
+			pool.release(buffer);
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final ByteBuffer data;
+	private final BufferPool pool;
+	private final AtomicInteger references = new AtomicInteger(1);
+}
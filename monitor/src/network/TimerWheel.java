@@ -0,0 +1,102 @@
+package network;
+
+/**
+ * Haszowane koło czasowe (hashed timing wheel). Zadanie trafia do szczeliny
+ * wyznaczonej przez czas wykonania; przesunięcie koła przegląda tylko
+ * szczeliny, których czas minął. Planowanie i wykonanie to O(1) niezależnie
+ * od liczby zadań, bez osobnego wątku i obiektu Timer na zadanie.
+ *
+ * Nie jest bezpieczne wielowątkowo - używa go tylko wątek reaktora.
+ */
+class TimerWheel {
+
+	private static final int SLOTS = 512;
+	private static final long TICK_MILLIS = 10;
+
+	TimerWheel(long nowMillis) {
+		currentTick = nowMillis / TICK_MILLIS;
+	}
+
+	void schedule(ScheduledTask task, long deadlineMillis) {
+		task.deadline = deadlineMillis;
+		// zadanie spóźnione trafia do bieżącej szczeliny
+		long tick = Math.max(deadlineMillis / TICK_MILLIS, currentTick);
+		int slot = (int) (tick & (SLOTS - 1));
+		task.next = slots[slot];
+		slots[slot] = task;
+		count++;
+	}
+
+	/**
+	 * Wykonuje wszystkie zadania, których czas minął
+	 *
+	 * @param nowMillis
+	 */
+	void advance(long nowMillis) {
+		long targetTick = nowMillis / TICK_MILLIS;
+		// pełny obrót wystarcza - dalsze szczeliny to te same
+		long firstTick = Math.max(currentTick, targetTick - SLOTS + 1);
+		for (long tick = firstTick; tick <= targetTick && count > 0; tick++) {
+			expire((int) (tick & (SLOTS - 1)), nowMillis);
+		}
+		currentTick = targetTick;
+	}
+
+	private void expire(int slot, long nowMillis) {
+		ScheduledTask expired = null;
+		ScheduledTask previous = null;
+		ScheduledTask task = slots[slot];
+		while (task != null) {
+			ScheduledTask next = task.next;
+			if (task.deadline <= nowMillis) {
+				// zadanie z bieżącego obrotu - przenieś do listy do wykonania
+				if (previous == null) {
+					slots[slot] = next;
+				} else {
+					previous.next = next;
+				}
+				task.next = expired;
+				expired = task;
+				count--;
+			} else {
+				previous = task;
+			}
+			task = next;
+		}
+		// wykonanie po odpięciu - zadanie może zaplanować się ponownie
+		while (expired != null) {
+			ScheduledTask next = expired.next;
+			expired.next = null;
+			expired.run();
+			expired = next;
+		}
+	}
+
+	/**
+	 * Czas do najbliższej niepustej szczeliny w ms (0 - brak zadań). Zadanie
+	 * z tej szczeliny może należeć do dalszego obrotu; wtedy reaktor zostanie
+	 * wybudzony niepotrzebnie, ale nie za późno.
+	 *
+	 * @param nowMillis
+	 * @return
+	 */
+	long timeout(long nowMillis) {
+		if (count == 0) {
+			return 0;
+		}
+		for (long tick = currentTick; tick < currentTick + SLOTS; tick++) {
+			if (slots[(int) (tick & (SLOTS - 1))] != null) {
+				return Math.max(1, (tick + 1) * TICK_MILLIS - nowMillis);
+			}
+		}
+		return TICK_MILLIS;
+	}
+
+	int size() {
+		return count;
+	}
+
+	private final ScheduledTask[] slots = new ScheduledTask[SLOTS];
+	private long currentTick;
+	private int count;
+}
@@ -0,0 +1,257 @@
+package sensors;
+
+import java.util.Arrays;
+
+/**
+ * Niezmienny, skompresowany blok historii pomiarów (schemat z bazy Gorilla):
+ * czasy kodowane są jako różnice drugiego rzędu, wartości jako XOR z
+ * poprzednią wartością, wszystko upakowane w strumień bitów w tablicy long[].
+ *
+ * Po utworzeniu blok jest tylko czytany, więc może być dekodowany równolegle
+ * przez wiele wątków - każdy używa własnego {@link Decoder}.
+ */
+final class CompressedBlock {
+
+	/**
+	 * Stan dekodowania jednego bloku. Obiekt wielokrotnego użytku - dekodowanie
+	 * kolejnych punktów nie alokuje pamięci.
+	 */
+	static final class Decoder {
+
+		/**
+		 * Ustawia dekoder na początek bloku (null - brak bloku, hasNext()
+		 * zwraca false)
+		 */
+		void reset(CompressedBlock block) {
+			this.block = block;
+			this.index = 0;
+			this.bitPosition = 0;
+			this.timestamp = block == null ? 0 : block.firstTimestamp;
+			this.delta = 0;
+			this.valueBits = 0;
+			this.leading = 0;
+			this.trailing = 0;
+		}
+
+		boolean hasNext() {
+			return block != null && index < block.count;
+		}
+
+		/**
+		 * Dekoduje kolejny punkt; wynik w getTimestamp()/getValue()
+		 */
+		void next() {
+			if (index == 0) {
+				valueBits = (int) read(32);
+			} else {
+				delta += readDeltaOfDelta();
+				timestamp += delta;
+				readValue();
+			}
+			index++;
+		}
+
+		private long readDeltaOfDelta() {
+			if (read(1) == 0) {
+				return 0;
+			}
+			if (read(1) == 0) {
+				return signed(read(7), 7);
+			}
+			if (read(1) == 0) {
+				return signed(read(9), 9);
+			}
+			if (read(1) == 0) {
+				return signed(read(12), 12);
+			}
+			return read(64);
+		}
+
+		private void readValue() {
+			if (read(1) == 0) {
+				return; // wartość bez zmian
+			}
+			if (read(1) == 1) {
+				leading = (int) read(5);
+				int meaningful = (int) read(5) + 1;
+				trailing = 32 - leading - meaningful;
+			}
+			int meaningful = 32 - leading - trailing;
+			valueBits ^= (int) (read(meaningful) << trailing);
+		}
+
+		private long read(int bits) {
+			long value = CompressedBlock.read(block.words, bitPosition, bits);
+			bitPosition += bits;
+			return value;
+		}
+
+		long getSequence() {
+			return block.firstSequence + index - 1;
+		}
+
+		long getTimestamp() {
+			return timestamp;
+		}
+
+		float getValue() {
+			return Float.intBitsToFloat(valueBits);
+		}
+
+		private CompressedBlock block;
+		private int index;
+		private long bitPosition;
+		private long timestamp;
+		private long delta;
+		private int valueBits;
+		private int leading;
+		private int trailing;
+	}
+
+	/**
+	 * Kompresuje count punktów z podanych tablic
+	 */
+	static CompressedBlock encode(long firstSequence, long[] timestamps,
+			float[] values, int count) {
+		Encoder encoder = new Encoder(count);
+		encoder.write(Float.floatToRawIntBits(values[0]) & 0xffffffffL, 32);
+		long delta = 0;
+		int previousBits = Float.floatToRawIntBits(values[0]);
+		int leading = -1;
+		int trailing = 0;
+		for (int i = 1; i < count; i++) {
+			long newDelta = timestamps[i] - timestamps[i - 1];
+			encoder.writeDeltaOfDelta(newDelta - delta);
+			delta = newDelta;
+
+			int bits = Float.floatToRawIntBits(values[i]);
+			int xor = bits ^ previousBits;
+			previousBits = bits;
+			if (xor == 0) {
+				encoder.write(0, 1);
+				continue;
+			}
+			int newLeading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+			int newTrailing = Integer.numberOfTrailingZeros(xor);
+			if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+				// mieści się w poprzednim oknie znaczących bitów
+				encoder.write(2, 2);
+				encoder.write((xor >>> trailing) & mask(32 - leading - trailing),
+						32 - leading - trailing);
+			} else {
+				leading = newLeading;
+				trailing = newTrailing;
+				int meaningful = 32 - leading - trailing;
+				encoder.write(3, 2);
+				encoder.write(leading, 5);
+				encoder.write(meaningful - 1, 5);
+				encoder.write((xor >>> trailing) & mask(meaningful), meaningful);
+			}
+		}
+		return new CompressedBlock(firstSequence, timestamps[0],
+				timestamps[count - 1], count, encoder.toWords(),
+				encoder.bitLength);
+	}
+
+	private static final class Encoder {
+
+		Encoder(int points) {
+			words = new long[Math.max(1, points / 4)];
+		}
+
+		void writeDeltaOfDelta(long dod) {
+			if (dod == 0) {
+				write(0, 1);
+			} else if (dod >= -64 && dod <= 63) {
+				write(2, 2);
+				write(dod, 7);
+			} else if (dod >= -256 && dod <= 255) {
+				write(6, 3);
+				write(dod, 9);
+			} else if (dod >= -2048 && dod <= 2047) {
+				write(14, 4);
+				write(dod, 12);
+			} else {
+				write(15, 4);
+				write(dod, 64);
+			}
+		}
+
+		void write(long value, int bits) {
+			if (bits == 0) {
+				return;
+			}
+			if (bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+			int word = (int) (bitLength >>> 6);
+			int offset = (int) (bitLength & 63);
+			if (word + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2 + 2);
+			}
+			int free = 64 - offset;
+			if (bits <= free) {
+				words[word] |= value << (free - bits);
+			} else {
+				words[word] |= value >>> (bits - free);
+				words[word + 1] |= value << (64 - (bits - free));
+			}
+			bitLength += bits;
+		}
+
+		long[] toWords() {
+			return Arrays.copyOf(words, (int) ((bitLength + 63) >>> 6));
+		}
+
+		private long[] words;
+		private long bitLength;
+	}
+
+	private static long mask(int bits) {
+		return bits >= 64 ? -1L : (1L << bits) - 1;
+	}
+
+	private static long signed(long value, int bits) {
+		return (value << (64 - bits)) >> (64 - bits);
+	}
+
+	private static long read(long[] words, long bitPosition, int bits) {
+		int word = (int) (bitPosition >>> 6);
+		int offset = (int) (bitPosition & 63);
+		int available = 64 - offset;
+		long value;
+		if (bits <= available) {
+			value = words[word] >>> (available - bits);
+		} else {
+			value = (words[word] << (bits - available))
+					| (words[word + 1] >>> (64 - (bits - available)));
+		}
+		return value & mask(bits);
+	}
+
+	private CompressedBlock(long firstSequence, long firstTimestamp,
+			long lastTimestamp, int count, long[] words, long bitLength) {
+		this.firstSequence = firstSequence;
+		this.firstTimestamp = firstTimestamp;
+		this.lastTimestamp = lastTimestamp;
+		this.count = count;
+		this.words = words;
+		this.bitLength = bitLength;
+	}
+
+	/**
+	 * Rozmiar skompresowanych danych w bajtach
+	 *
+	 * @return
+	 */
+	int getSizeInBytes() {
+		return words.length * 8;
+	}
+
+	final long firstSequence;
+	final long firstTimestamp;
+	final long lastTimestamp;
+	final int count;
+	private final long[] words;
+	private final long bitLength;
+}
@@ -0,0 +1,30 @@
+package sensors;
+
+/**
+ * Pomiar sensora: czas i wartość odczytane razem
+ * 
+ * @see Sensor#getLastSample()
+ */
+public final class Measurement {
+
+	Measurement(long timestamp, float value) {
+		this.timestamp = timestamp;
+		this.value = value;
+	}
+
+	/**
+	 * Czas pomiaru (ms od epoki)
+	 * 
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public float getValue() {
+		return value;
+	}
+
+	private final long timestamp;
+	private final float value;
+}
@@ -7,8 +7,15 @@ public class Sensor {
 	 * @param metric
 	 */
 	Sensor(String resource, String metric) {
+		this(resource, metric, false);
+	}
+
+	Sensor(String resource, String metric, boolean derived) {
+		this.derived = derived;
 		this.resource = resource;
 		this.metric = metric;
+		this.resourceBytes = resource.getBytes(SensorFrameDecoder.CHARSET);
+		this.metricBytes = metric.getBytes(SensorFrameDecoder.CHARSET);
 	}
 	
 	public String getResource() {
@@ -18,14 +25,184 @@ public class Sensor {
 		return metric;
 	}
 
+	/**
+	 * Nazwa zasobu w UTF-8 (do kodowania wiadomości bez tworzenia String).
+	 * Tablicy nie wolno modyfikować.
+	 * 
+	 * @return
+	 */
+	public byte[] getResourceBytes() {
+		return resourceBytes;
+	}
+
+	/**
+	 * Nazwa metryki w UTF-8. Tablicy nie wolno modyfikować.
+	 * 
+	 * @return
+	 */
+	public byte[] getMetricBytes() {
+		return metricBytes;
+	}
+
 	public float getLastMeasurement() {
 		return lastValue;
 	}
+	/**
+	 * Czas ostatniego pomiaru (ms od epoki, czas odbioru przez monitor)
+	 * 
+	 * @return
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Ostatni pomiar - czas i wartość z tej samej aktualizacji (odczyt
+	 * sprawdzany numerem wersji, bez blokowania zapisującego). Po
+	 * {@link #READ_RETRIES} nieudanych próbach odczyt odbywa się pod blokadą
+	 * zapisu.
+	 * 
+	 * @return
+	 */
+	public Measurement getLastSample() {
+		for (int i = 0; i < READ_RETRIES; i++) {
+			int before = version;
+			long timestamp = lastTimestamp;
+			float value = lastValue;
+			if ((before & 1) == 0 && version == before) {
+				return new Measurement(timestamp, value);
+			}
+			Thread.yield();
+		}
+		synchronized (writeLock) {
+			return new Measurement(lastTimestamp, lastValue);
+		}
+	}
+
+	/**
+	 * Czy wartości sensora wylicza monitor (agregaty okienkowe, wyrażenia),
+	 * a nie fizyczny sensor
+	 * 
+	 * @return
+	 */
+	public boolean isDerived() {
+		return derived;
+	}
+
+	public SensorHistory getHistory() {
+		return history;
+	}
+
 	public void updateMeasurement(float value) {
-		lastValue = value;
+		updateMeasurement(System.currentTimeMillis(), value);
 	}
 
+	/**
+	 * Zapisuje pomiar. Ten sam sensor może dostawać pomiary z kilku połączeń
+	 * (także na różnych reaktorach), więc zapisy są serializowane - bez
+	 * blokady dwa wątki mogłyby zgubić zwiększenie wersji i zostawić ją
+	 * nieparzystą.
+	 * 
+	 * @param timestamp
+	 * @param value
+	 */
+	public void updateMeasurement(long timestamp, float value) {
+		synchronized (writeLock) {
+			// historia wymaga niemalejących czasów (np. po korekcie zegara)
+			if (timestamp < lastTimestamp) {
+				timestamp = lastTimestamp;
+			}
+			// nieparzysta wersja - zapis w toku
+			version++;
+			lastValue = value;
+			lastTimestamp = timestamp;
+			version++;
+			history.add(timestamp, value);
+		}
+	}
+
+	/**
+	 * Słuchacze pomiarów sensora. Tablicy nie wolno modyfikować - każda zmiana
+	 * tworzy nową kopię, więc wątek sensora iteruje bez blokady i bez
+	 * szukania sensora w mapie.
+	 * 
+	 * @return
+	 */
+	SensorUpdateListener[] getListeners() {
+		return listeners;
+	}
+
+	synchronized void addListener(SensorUpdateListener listener) {
+		SensorUpdateListener[] current = listeners;
+		SensorUpdateListener[] updated = new SensorUpdateListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		listeners = updated;
+	}
+
+	synchronized void removeListener(SensorUpdateListener listener) {
+		SensorUpdateListener[] current = listeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				SensorUpdateListener[] updated = new SensorUpdateListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length
+						- i - 1);
+				listeners = updated;
+				return;
+			}
+		}
+	}
+
+	synchronized void removeAllListeners() {
+		listeners = NO_LISTENERS;
+	}
+
+	/**
+	 * Sprawdza, czy podane fragmenty tablicy to nazwa zasobu i metryki tego
+	 * sensora (bez dekodowania do String)
+	 */
+	boolean matches(byte[] data, int resourceFrom, int resourceTo,
+			int metricFrom, int metricTo) {
+		return regionEquals(resourceBytes, data, resourceFrom, resourceTo)
+				&& regionEquals(metricBytes, data, metricFrom, metricTo);
+	}
+
+	private static boolean regionEquals(byte[] name, byte[] data, int from,
+			int to) {
+		if (to - from != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (name[i] != data[from + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final SensorUpdateListener[] NO_LISTENERS = new SensorUpdateListener[0];
+
+	/**
+	 * Liczba prób odczytu bez blokady w {@link #getLastSample()}
+	 */
+	private static final int READ_RETRIES = 64;
+
+	private final boolean derived;
+	private volatile SensorUpdateListener[] listeners = NO_LISTENERS;
 	private String resource;
 	private String metric;
-	private float lastValue;
+	private byte[] resourceBytes;
+	private byte[] metricBytes;
+	// usunięty z rejestru (tylko sensory wyliczane)
+	volatile boolean removed;
+	// sensor wyliczany spoza rejestru (agregat okienkowy)
+	boolean unlisted;
+	private volatile float lastValue;
+	private volatile long lastTimestamp;
+	private volatile int version;
+	// serializuje zapisy pomiarów (wersja, ostatnia wartość, historia)
+	private final Object writeLock = new Object();
+	private final SensorHistory history = new SensorHistory(
+			SensorHistory.DEFAULT_CAPACITY);
 }
@@ -0,0 +1,11 @@
+package sensors;
+
+/**
+ * Słuchacz powiadamiany o sensorach pasujących do wzorca
+ * 
+ * @see SensorDataCollector#addSensorPatternListener(SensorPattern,
+ *      SensorCreationListener)
+ */
+public interface SensorCreationListener {
+	void onSensorCreated(Sensor sensor);
+}
@@ -2,15 +2,13 @@ package sensors;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import network.ChannelSelectionHandler;
 import network.MessageQueue;
@@ -41,10 +39,13 @@ public class SensorDataCollector {
 		}
 	}
 
-	private class SensorMessageHandler implements ChannelSelectionHandler {
+	private class SensorMessageHandler implements ChannelSelectionHandler,
+			SensorFrameDecoder.Sink {
 
 		public SensorMessageHandler(SocketChannel socket) {
 			this.socket = socket;
+			this.decoder = new SensorFrameDecoder(SensorDataCollector.this,
+					this);
 		}
 
 		@Override
@@ -54,21 +55,20 @@ public class SensorDataCollector {
 					&& channel == this.socket) {
 				SocketChannel socketChannel = (SocketChannel) channel;
 				try {
-					ByteBuffer buff = ByteBuffer.allocate(1024);
-					int readed = socketChannel.read(buff);
-					buff.flip();
+					int readed = socketChannel.read(decoder.getBuffer());
 
 					if (readed == -1) {
 						System.out.printf("Sensor %s has disconnected\n",
 								socketChannel.getRemoteAddress().toString());
 
+						decoder.finish();
 						close();
-					} else {
-						CharBuffer cbuff = Charset.defaultCharset()
-								.decode(buff);
-
-						updateMeasurement(cbuff.toString());
+					} else if (!decoder.decode()) {
+						System.out.printf(
+								"Sensor %s violated protocol, disconnecting\n",
+								socketChannel.getRemoteAddress().toString());
 
+						close();
 					}
 
 				} catch (IOException e) {
@@ -84,10 +84,8 @@ public class SensorDataCollector {
 				try {
 					socket.close();
 					messageQueue.unregisterChannel(socket);
-					if (listeners.containsKey(sensor)) {
-						for (SensorUpdateListener listener : listeners
-								.get(sensor))
-							listener.onDisconnected(sensor);
+					for (Sensor sensor : decoder.getSensors()) {
+						notifyDisconnected(sensor);
 					}
 					socket = null;
 				} catch (Exception e) {
@@ -95,36 +93,14 @@ public class SensorDataCollector {
 				}
 			}
 		}
-		
-		@Override
-		protected void finalize() throws Throwable{
-			try {
-				close();
-			} finally {
-				super.finalize();
-			}
-		}
-
-		void createSensor(String msg) {
-			String[] tokens = msg.split("#");
-			sensor = makeSensor(tokens[0], tokens[1]);
-			// tymczasowo do testow:
-			// new Distributor(messageQueue, sensor, SensorDataCollector.this);
-		}
-
-		void updateMeasurement(String msg) {
-			if (sensor == null)
-				createSensor(msg);
-			String[] tokens = msg.split("#");
-			sensor.updateMeasurement(Float.parseFloat(tokens[2]));
-			if (listeners.containsKey(sensor)) {
-				for (SensorUpdateListener listener : listeners.get(sensor))
-					listener.onUpdate(sensor);
-			}
 
+		@Override
+		public void onMeasurement(Sensor sensor, float value) {
+			sensor.updateMeasurement(value);
+			notifyUpdate(sensor);
 		}
 
-		private Sensor sensor;
+		private final SensorFrameDecoder decoder;
 		private SocketChannel socket;
 
 	}
@@ -157,32 +133,33 @@ public class SensorDataCollector {
 	 * @return
 	 */
 	public Sensor findSensor(String resource, String metric) {
-		for (Sensor sensor : sensors) {
-			if (sensor.getResource().equals(resource)
-					&& sensor.getMetric().equals(metric)) {
-				return sensor;
-			}
-		}
-		return null;
+		return registry.find(resource, metric);
 	}
 
 	/**
-	 * Listuje wszystkie zasoby, dla których istnieje co najmniej jeden
-	 * zarejestrowany sensor.
+	 * Listuje (posortowane) wszystkie zasoby, dla których istnieje co najmniej
+	 * jeden zarejestrowany sensor.
 	 * 
 	 * @return
 	 */
 	public ArrayList<String> listResources() {
-		// TODO zmienić reprezentację sensorów, żeby to zczytywanie było szybsze
-		// (sortowanie?)
-		ArrayList<String> resources = new ArrayList<String>();
-		for (Sensor sensor : sensors) {
-			if (!resources.contains(sensor.getResource())) {
-				resources.add(sensor.getResource());
-			}
-		}
+		return registry.listResources(null, null, -1);
+	}
 
-		return resources;
+	/**
+	 * Listuje posortowane zasoby z uwzględnieniem prefiksu i stronicowania
+	 * 
+	 * @param prefix
+	 *            prefiks nazwy zasobu (null - dowolny)
+	 * @param after
+	 *            ostatni zasób poprzedniej strony (null - od początku)
+	 * @param limit
+	 *            rozmiar strony (ujemny - bez ograniczenia)
+	 * @return
+	 */
+	public ArrayList<String> listResources(String prefix, String after,
+			int limit) {
+		return registry.listResources(prefix, after, limit);
 	}
 	
 	public MessageQueue getMessageQueue(){
@@ -197,45 +174,214 @@ public class SensorDataCollector {
 	 * @return
 	 */
 	public ArrayList<String> listMetrics(String resource) {
-		ArrayList<String> metrics = new ArrayList<String>();
-		for (Sensor sensor : sensors) {
-			if (sensor.getResource().equals(resource)
-					&& !metrics.contains(sensor.getMetric())) {
-				metrics.add(sensor.getMetric());
-			}
-		}
+		return registry.listMetrics(resource, null, null, -1);
+	}
 
-		return metrics;
+	/**
+	 * Listuje posortowane metryki zasobu z uwzględnieniem prefiksu i
+	 * stronicowania
+	 * 
+	 * @param resource
+	 * @param prefix
+	 * @param after
+	 * @param limit
+	 * @return
+	 */
+	public ArrayList<String> listMetrics(String resource, String prefix,
+			String after, int limit) {
+		return registry.listMetrics(resource, prefix, after, limit);
 	}
 
 	public void addSensorUpdateListener(Sensor sensor,
 			SensorUpdateListener listener) {
-		if (!listeners.containsKey(sensor)) {
-			listeners.put(sensor, new ArrayList<SensorUpdateListener>());
-		}
-		listeners.get(sensor).add(listener);
+		sensor.addListener(listener);
 	}
 
 	public void removeSensorListener(Sensor sensor,
 			SensorUpdateListener listener) {
-		ArrayList<SensorUpdateListener> listenersList = listeners.get(sensor);
-		if (listenersList != null) {
-			listenersList.remove(listener);
+		sensor.removeListener(listener);
+	}
+
+	/**
+	 * Rejestruje słuchacza sensorów pasujących do wzorca. Słuchacz jest
+	 * wywoływany dla już istniejących pasujących sensorów, a później dla
+	 * każdego nowego pasującego sensora - może dostać ten sam sensor dwa razy,
+	 * jeżeli sensor powstaje w trakcie rejestracji.
+	 * 
+	 * @param pattern
+	 * @param listener
+	 */
+	public void addSensorPatternListener(SensorPattern pattern,
+			SensorCreationListener listener) {
+		// najpierw indeks - sensor utworzony w trakcie przeglądania nie
+		// zostanie pominięty
+		patterns.add(pattern, listener);
+		for (String resource : registry.listResources(
+				pattern.getResourcePrefix(), null, -1)) {
+			if (!pattern.matchesResource(resource)) {
+				continue;
+			}
+			for (String metric : registry.listMetrics(resource,
+					pattern.getMetricPrefix(), null, -1)) {
+				Sensor sensor = registry.find(resource, metric);
+				if (sensor != null && pattern.matches(sensor)) {
+					listener.onSensorCreated(sensor);
+				}
+			}
 		}
 	}
 
-	public ArrayList<Sensor> getSensors() {
-		return sensors;
+	public void removeSensorPatternListener(SensorPattern pattern,
+			SensorCreationListener listener) {
+		patterns.remove(pattern, listener);
 	}
 
-	// Tworzenie sensorów tylko przez tę metodę!
+	/**
+	 * Dodaje etap przetwarzania wywoływany przy pomiarze KAŻDEGO sensora, przed
+	 * słuchaczami poszczególnych sensorów
+	 * 
+	 * @param stage
+	 */
+	public void addUpdateStage(SensorUpdateListener stage) {
+		stages.add(stage);
+	}
+
+	public void removeUpdateStage(SensorUpdateListener stage) {
+		stages.remove(stage);
+	}
+
+	/**
+	 * Powiadamia etapy i słuchaczy o nowym pomiarze sensora
+	 * 
+	 * @param sensor
+	 */
+	void notifyUpdate(Sensor sensor) {
+		for (SensorUpdateListener stage : stages)
+			stage.onUpdate(sensor);
+		// tablica słuchaczy przechowywana w sensorze - bez blokad i
+		// haszowania w ścieżce pomiaru
+		for (SensorUpdateListener listener : sensor.getListeners())
+			listener.onUpdate(sensor);
+	}
+
+	void notifyDisconnected(Sensor sensor) {
+		for (SensorUpdateListener stage : stages)
+			stage.onDisconnected(sensor);
+		for (SensorUpdateListener listener : sensor.getListeners())
+			listener.onDisconnected(sensor);
+	}
+
+	public Collection<Sensor> getSensors() {
+		return registry.getSensors();
+	}
+
+	public SensorRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Zwraca istniejący sensor o podanym zasobie i metryce lub tworzy nowy.
+	 * Dzięki temu sensor, który połączy się ponownie, nie jest duplikowany.
+	 * 
+	 * @param resource
+	 * @param metric
+	 * @return
+	 */
+	public Sensor getOrCreateSensor(String resource, String metric) {
+		Sensor sensor = findSensor(resource, metric);
+		if (sensor == null) {
+			sensor = makeSensor(resource, metric);
+		}
+		return sensor;
+	}
+
+	/**
+	 * Zwraca istniejący lub tworzy nowy sensor, którego wartości wylicza
+	 * monitor. Wartości publikuje się przez {@link #publish(Sensor, long, float)}.
+	 * 
+	 * @param resource
+	 * @param metric
+	 * @return
+	 */
+	public Sensor getOrCreateDerivedSensor(String resource, String metric) {
+		Sensor sensor = findSensor(resource, metric);
+		if (sensor == null) {
+			Sensor created = new Sensor(resource, metric, true);
+			sensor = registry.add(created);
+			if (sensor == created) {
+				patterns.match(sensor);
+			}
+		}
+		return sensor;
+	}
+
+	/**
+	 * Tworzy sensor wyliczany poza rejestrem: nie jest listowany ani
+	 * wyszukiwany, nie pasuje do wzorców i nie zmienia wersji rejestru ani
+	 * dziennika zmian. Dla agregatów okienkowych, które powstają i znikają
+	 * razem z subskrypcjami. Usuwa się go przez
+	 * {@link #removeDerivedSensor(Sensor)}.
+	 * 
+	 * @param resource
+	 * @param metric
+	 * @return
+	 */
+	public Sensor createUnlistedSensor(String resource, String metric) {
+		Sensor sensor = new Sensor(resource, metric, true);
+		sensor.unlisted = true;
+		return sensor;
+	}
+
+	/**
+	 * Usuwa sensor wyliczany, którego nikt już nie używa (z rejestru, o ile
+	 * w nim jest)
+	 * 
+	 * @param sensor
+	 */
+	public void removeDerivedSensor(Sensor sensor) {
+		if (!sensor.isDerived()) {
+			return;
+		}
+		if (sensor.unlisted ? !sensor.removed : registry.remove(sensor)) {
+			// spóźnione publish() nie odtworzą stanu etapów
+			sensor.removed = true;
+			for (SensorUpdateListener stage : stages)
+				stage.onRemoved(sensor);
+			for (SensorUpdateListener listener : sensor.getListeners())
+				listener.onRemoved(sensor);
+			sensor.removeAllListeners();
+		}
+	}
+
+	/**
+	 * Zapisuje wartość sensora wyliczanego i powiadamia etapy oraz słuchaczy
+	 * tak jak przy pomiarze od fizycznego sensora. Dla jednego sensora nie
+	 * można wywoływać równolegle z kilku wątków.
+	 * 
+	 * @param sensor
+	 * @param timestamp
+	 * @param value
+	 */
+	public void publish(Sensor sensor, long timestamp, float value) {
+		if (sensor.removed) {
+			return;
+		}
+		sensor.updateMeasurement(timestamp, value);
+		notifyUpdate(sensor);
+	}
+
+	// Tworzenie sensorów pomiarowych tylko przez tę metodę!
 	Sensor makeSensor(String resource, String metric) {
-		Sensor sensor = new Sensor(resource, metric);
-		sensors.add(sensor);
+		Sensor created = new Sensor(resource, metric);
+		Sensor sensor = registry.add(created);
+		if (sensor == created) {
+			patterns.match(sensor);
+		}
 		return sensor;
 	}
 
 	private MessageQueue messageQueue;
-	private ArrayList<Sensor> sensors = new ArrayList<Sensor>();
-	private HashMap<Sensor, ArrayList<SensorUpdateListener>> listeners = new HashMap<Sensor, ArrayList<SensorUpdateListener>>();
+	private final SensorRegistry registry = new SensorRegistry();
+	private final SensorPatternIndex patterns = new SensorPatternIndex();
+	private CopyOnWriteArrayList<SensorUpdateListener> stages = new CopyOnWriteArrayList<SensorUpdateListener>();
 }
@@ -0,0 +1,323 @@
+package sensors;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import network.MessageQueue;
+
+/**
+ * Dekoder strumienia pomiarów przychodzących od jednego sensora.
+ *
+ * Format ramki: <code>zasob#metryka#wartosc\n</code>. Jedno połączenie może
+ * przesyłać wiele ramek w jednym odczycie, a pojedyncza ramka może być
+ * rozdzielona pomiędzy kilka odczytów - niepełna końcówka zostaje w buforze do
+ * następnego odczytu.
+ *
+ * Tryb zgodności: stary format to jedna wiadomość
+ * <code>zasob#metryka#wartosc</code> na odczyt, bez znaku nowej linii. Format
+ * nie jest wybierany na podstawie niepełnych danych - pierwsza ramka nowego
+ * formatu może przyjść w kilku odczytach. Dopóki nie pojawi się znak nowej
+ * linii, dane czekają w buforze; za stary format uznawane jest połączenie,
+ * którego kolejny odczyt bez nowej linii przychodzi co najmniej
+ * {@link #LEGACY_DELAY_MILLIS} ms po pierwszym (stare sensory wysyłają
+ * wiadomość co sekundę), albo które zamknięto przed nową linią. Od tej
+ * chwili każdy odczyt to jedna wiadomość.
+ *
+ * Dla znanych już sensorów parsowanie odbywa się bezpośrednio na bajtach
+ * bufora, bez tworzenia obiektów String ani tablic.
+ */
+class SensorFrameDecoder {
+
+	/**
+	 * Odbiorca zdekodowanych pomiarów
+	 */
+	interface Sink {
+		void onMeasurement(Sensor sensor, float value);
+	}
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final byte SEPARATOR = '#';
+	private static final byte FRAME_END = '\n';
+
+	/**
+	 * Najmniejszy odstęp między odczytami bez nowej linii, od którego
+	 * połączenie uznawane jest za stary format
+	 */
+	static final long LEGACY_DELAY_MILLIS = 100;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	SensorFrameDecoder(SensorDataCollector collector, Sink sink) {
+		this.collector = collector;
+		this.sink = sink;
+	}
+
+	/**
+	 * Bufor, do którego należy czytać dane z kanału. Po odczycie należy wywołać
+	 * {@link #decode()}.
+	 *
+	 * @return
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Sensory, o których połączenie przysłało co najmniej jeden pomiar
+	 *
+	 * @return
+	 */
+	ArrayList<Sensor> getSensors() {
+		return sensors;
+	}
+
+	/**
+	 * Dekoduje wszystkie pełne ramki znajdujące się w buforze. Niepełna ramka
+	 * przenoszona jest na początek bufora.
+	 *
+	 * @return false, jeżeli ramka nie mieści się w buforze (połączenie należy
+	 *         zamknąć)
+	 */
+	boolean decode() {
+		byte[] data = buffer.array();
+		int end = buffer.position();
+
+		if (legacy) {
+			// stary format - jeden odczyt to jedna wiadomość
+			decodeFrame(data, 0, end);
+			buffer.clear();
+			return true;
+		}
+
+		int frameStart = 0;
+		for (int i = 0; i < end; i++) {
+			if (data[i] == FRAME_END) {
+				framed = true;
+				decodeFrame(data, frameStart, i);
+				frameStart = i + 1;
+			}
+		}
+
+		if (!framed) {
+			return decodeUndecided(data, end);
+		}
+
+		if (frameStart == 0 && end == data.length) {
+			System.err.println("Sensor frame too long");
+			return false;
+		}
+
+		buffer.position(frameStart);
+		buffer.limit(end);
+		buffer.compact();
+		return true;
+	}
+
+	/**
+	 * Dane bez nowej linii, zanim wiadomo, który to format: niepełna pierwsza
+	 * ramka albo wiadomość w starym formacie
+	 */
+	private boolean decodeUndecided(byte[] data, int end) {
+		long now = MessageQueue.currentMillis();
+		if (pending > 0 && now - pendingSince >= LEGACY_DELAY_MILLIS) {
+			// poprzednie odczyty to pełna wiadomość, bieżący - kolejna
+			legacy = true;
+			decodeFrame(data, 0, pending);
+			decodeFrame(data, pending, end);
+			buffer.clear();
+			return true;
+		}
+		if (end == data.length) {
+			System.err.println("Sensor frame too long");
+			return false;
+		}
+		if (pending == 0) {
+			pendingSince = now;
+		}
+		pending = end;
+		return true;
+	}
+
+	/**
+	 * Połączenie zamknięte: dane czekające na wybór formatu to wiadomość w
+	 * starym formacie
+	 */
+	void finish() {
+		if (!framed && !legacy && buffer.position() > 0) {
+			decodeFrame(buffer.array(), 0, buffer.position());
+		}
+		buffer.clear();
+	}
+
+	private void decodeFrame(byte[] data, int from, int to) {
+		// końcówka \r (np. od telnetu) i białe znaki nie należą do wartości
+		while (to > from && data[to - 1] <= ' ') {
+			to--;
+		}
+		if (to == from) {
+			return;
+		}
+
+		int first = indexOf(data, from, to, SEPARATOR);
+		int second = first < 0 ? -1 : indexOf(data, first + 1, to, SEPARATOR);
+		if (second < 0) {
+			System.err.println("Malformed sensor frame: "
+					+ new String(data, from, to - from, CHARSET));
+			return;
+		}
+
+		Sensor sensor = resolveSensor(data, from, first, first + 1, second);
+		if (!parseValue(data, second + 1, to)) {
+			System.err.println("Malformed sensor value: "
+					+ new String(data, second + 1, to - second - 1, CHARSET));
+			return;
+		}
+		sink.onMeasurement(sensor, value);
+	}
+
+	/**
+	 * Odnajduje sensor po bajtach nazwy zasobu i metryki. Obiekty String
+	 * tworzone są tylko wtedy, gdy połączenie przysyła pomiar nowego sensora.
+	 */
+	private Sensor resolveSensor(byte[] data, int resourceFrom, int resourceTo,
+			int metricFrom, int metricTo) {
+		if (lastSensor != null
+				&& lastSensor.matches(data, resourceFrom, resourceTo,
+						metricFrom, metricTo)) {
+			return lastSensor;
+		}
+		for (int i = 0; i < sensors.size(); i++) {
+			Sensor sensor = sensors.get(i);
+			if (sensor.matches(data, resourceFrom, resourceTo, metricFrom,
+					metricTo)) {
+				lastSensor = sensor;
+				return sensor;
+			}
+		}
+
+		String resource = new String(data, resourceFrom, resourceTo
+				- resourceFrom, CHARSET);
+		String metric = new String(data, metricFrom, metricTo - metricFrom,
+				CHARSET);
+		lastSensor = collector.getOrCreateSensor(resource, metric);
+		sensors.add(lastSensor);
+		return lastSensor;
+	}
+
+	private static int indexOf(byte[] data, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parsuje liczbę zmiennoprzecinkową bez alokacji; wynik zapisywany jest w
+	 * polu value. Nietypowe zapisy (NaN, Infinity, bardzo długie mantysy)
+	 * obsługiwane są przez Float.parseFloat.
+	 */
+	private boolean parseValue(byte[] data, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (data[i] == '-' || data[i] == '+')) {
+			negative = data[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		boolean anyDigit = false;
+		int digits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		for (; i < to; i++) {
+			byte b = data[i];
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (fraction) {
+						exponent--;
+					}
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigit) {
+			return parseValueSlow(data, from, to);
+		}
+
+		if (i < to && (data[i] == 'e' || data[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < to && (data[i] == '-' || data[i] == '+')) {
+				negativeExponent = data[i] == '-';
+				i++;
+			}
+			int explicitExponent = 0;
+			int start = i;
+			for (; i < to && data[i] >= '0' && data[i] <= '9'; i++) {
+				explicitExponent = explicitExponent * 10 + (data[i] - '0');
+				if (explicitExponent > 1000) {
+					return parseValueSlow(data, from, to);
+				}
+			}
+			if (i == start) {
+				return parseValueSlow(data, from, to);
+			}
+			exponent += negativeExponent ? -explicitExponent
+					: explicitExponent;
+		}
+		if (i != to) {
+			return parseValueSlow(data, from, to);
+		}
+
+		double result = mantissa;
+		if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			result /= POWERS_OF_TEN[-exponent];
+		} else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+			result *= POWERS_OF_TEN[exponent];
+		} else if (exponent != 0) {
+			return parseValueSlow(data, from, to);
+		}
+		value = (float) (negative ? -result : result);
+		return true;
+	}
+
+	private boolean parseValueSlow(byte[] data, int from, int to) {
+		try {
+			value = Float.parseFloat(new String(data, from, to - from, CHARSET));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final ArrayList<Sensor> sensors = new ArrayList<Sensor>();
+	private final SensorDataCollector collector;
+	private final Sink sink;
+	private Sensor lastSensor;
+	// format połączenia: oba false - jeszcze nie wybrany
+	private boolean framed;
+	private boolean legacy;
+	// długość danych czekających na wybór formatu i czas ich pierwszego
+	// odczytu
+	private int pending;
+	private long pendingSince;
+	private float value;
+}
@@ -0,0 +1,266 @@
+package sensors;
+
+/**
+ * Ograniczona historia pomiarów sensora.
+ *
+ * Najnowsze pomiary trafiają do otwartego bloku - pary tablic long[]/float[].
+ * Pełny blok jest kompresowany do niezmiennego {@link CompressedBlock}
+ * (różnice drugiego rzędu czasów, XOR wartości), co przy wolno zmieniających
+ * się pomiarach daje kilkanaście bitów na punkt zamiast 96. Przechowywanych
+ * jest tyle bloków, żeby zmieścić zadaną liczbę pomiarów.
+ *
+ * Każdy pomiar dostaje kolejny numer sekwencyjny. Zapisy są serializowane
+ * przez {@link Sensor#updateMeasurement(long, float)}, czytać można z
+ * dowolnego wątku bez blokowania: zamknięte bloki są niezmienne, otwarty blok nigdy nie jest
+ * używany ponownie, a oba są publikowane przez pola volatile.
+ */
+public class SensorHistory {
+
+	/**
+	 * Domyślna liczba przechowywanych pomiarów (-Dmonitor.history.size)
+	 */
+	public static final int DEFAULT_CAPACITY = Integer.getInteger(
+			"monitor.history.size", 3600);
+
+	/**
+	 * Liczba pomiarów w jednym bloku
+	 */
+	static final int BLOCK_SIZE = 256;
+
+	/**
+	 * Blok, do którego dopisywane są nowe pomiary
+	 */
+	private static final class OpenBlock {
+
+		OpenBlock(long firstSequence) {
+			this.firstSequence = firstSequence;
+		}
+
+		final long firstSequence;
+		final long[] timestamps = new long[BLOCK_SIZE];
+		final float[] values = new float[BLOCK_SIZE];
+		volatile int count;
+	}
+
+	/**
+	 * Kursor do sekwencyjnego odczytu historii. Jeden obiekt na cały odczyt -
+	 * kolejne pomiary, także dekodowane ze skompresowanych bloków, nie
+	 * powodują alokacji.
+	 */
+	public class Cursor {
+
+		Cursor(long sequence) {
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Przechodzi do kolejnego pomiaru. Pomiary usunięte w czasie odczytu
+		 * są pomijane.
+		 *
+		 * @return false, jeżeli nie ma już więcej pomiarów
+		 */
+		public boolean next() {
+			if (decoder.hasNext()) {
+				decoder.next();
+				timestamp = decoder.getTimestamp();
+				value = decoder.getValue();
+				currentSequence = sequence++;
+				return true;
+			}
+
+			// kolejność odczytu ważna: bloki zamknięte przed danym otwartym
+			// blokiem są już opublikowane
+			OpenBlock open = SensorHistory.this.open;
+			CompressedBlock[] blocks = SensorHistory.this.blocks;
+			long first = blocks.length > 0 ? blocks[0].firstSequence
+					: open.firstSequence;
+			if (sequence < first) {
+				sequence = first;
+			}
+
+			if (sequence >= open.firstSequence) {
+				int index = (int) (sequence - open.firstSequence);
+				if (index >= open.count) {
+					return false;
+				}
+				timestamp = open.timestamps[index];
+				value = open.values[index];
+				currentSequence = sequence++;
+				return true;
+			}
+
+			CompressedBlock block = blocks[blockIndex(blocks, sequence)];
+			decoder.reset(block);
+			for (long skip = sequence - block.firstSequence; skip > 0; skip--) {
+				decoder.next();
+			}
+			return next();
+		}
+
+		/**
+		 * Ustawia kursor tak, żeby kolejne next() zwróciło pomiar o podanym
+		 * numerze (lub najstarszy dostępny). Pozwala używać jednego kursora
+		 * wielokrotnie.
+		 *
+		 * @param sequence
+		 */
+		public void seek(long sequence) {
+			this.sequence = sequence;
+			decoder.reset(null);
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public float getValue() {
+			return value;
+		}
+
+		public long getSequence() {
+			return currentSequence;
+		}
+
+		private final CompressedBlock.Decoder decoder = new CompressedBlock.Decoder();
+		private long sequence;
+		private long currentSequence;
+		private long timestamp;
+		private float value;
+	}
+
+	public SensorHistory(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.maxBlocks = Math.max(1, (this.capacity + BLOCK_SIZE - 1)
+				/ BLOCK_SIZE);
+	}
+
+	void add(long timestamp, float value) {
+		OpenBlock block = open;
+		int count = block.count;
+		block.timestamps[count] = timestamp;
+		block.values[count] = value;
+		block.count = count + 1; // publikacja zapisu (pole volatile)
+		if (count + 1 == BLOCK_SIZE) {
+			close(block);
+		}
+	}
+
+	private void close(OpenBlock block) {
+		CompressedBlock compressed = CompressedBlock.encode(
+				block.firstSequence, block.timestamps, block.values,
+				block.count);
+		CompressedBlock[] current = blocks;
+		int kept = Math.min(current.length, maxBlocks - 1);
+		CompressedBlock[] updated = new CompressedBlock[kept + 1];
+		System.arraycopy(current, current.length - kept, updated, 0, kept);
+		updated[kept] = compressed;
+		blocks = updated;
+		open = new OpenBlock(block.firstSequence + block.count);
+	}
+
+	private static int blockIndex(CompressedBlock[] blocks, long sequence) {
+		// bloki mają stały rozmiar i kolejne numery
+		return (int) ((sequence - blocks[0].firstSequence) / BLOCK_SIZE);
+	}
+
+	/**
+	 * Numer sekwencyjny najstarszego dostępnego pomiaru
+	 *
+	 * @return
+	 */
+	public long getFirstSequence() {
+		OpenBlock open = this.open;
+		CompressedBlock[] blocks = this.blocks;
+		return blocks.length > 0 ? blocks[0].firstSequence
+				: open.firstSequence;
+	}
+
+	/**
+	 * Numer sekwencyjny, który dostanie kolejny pomiar
+	 *
+	 * @return
+	 */
+	public long getNextSequence() {
+		OpenBlock open = this.open;
+		return open.firstSequence + open.count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Liczba bajtów zajmowanych przez skompresowane bloki
+	 *
+	 * @return
+	 */
+	public long getCompressedBytes() {
+		long bytes = 0;
+		for (CompressedBlock block : blocks) {
+			bytes += block.getSizeInBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Znajduje numer pierwszego pomiaru o czasie >= timestamp (czasy pomiarów
+	 * są niemalejące)
+	 *
+	 * @param timestamp
+	 * @return
+	 */
+	public long findSequence(long timestamp) {
+		OpenBlock open = this.open;
+		CompressedBlock[] blocks = this.blocks;
+
+		// pierwszy blok, którego ostatni pomiar jest >= timestamp
+		int low = 0;
+		int high = blocks.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (blocks[mid].lastTimestamp < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (low < blocks.length) {
+			CompressedBlock.Decoder decoder = new CompressedBlock.Decoder();
+			decoder.reset(blocks[low]);
+			while (decoder.hasNext()) {
+				decoder.next();
+				if (decoder.getTimestamp() >= timestamp) {
+					return decoder.getSequence();
+				}
+			}
+		}
+
+		int count = open.count;
+		int lowIndex = 0;
+		int highIndex = count;
+		while (lowIndex < highIndex) {
+			int mid = (lowIndex + highIndex) >>> 1;
+			if (open.timestamps[mid] < timestamp) {
+				lowIndex = mid + 1;
+			} else {
+				highIndex = mid;
+			}
+		}
+		return open.firstSequence + lowIndex;
+	}
+
+	/**
+	 * Tworzy kursor zaczynający od pomiaru o podanym numerze
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	public Cursor cursor(long sequence) {
+		return new Cursor(sequence);
+	}
+
+	private final int capacity;
+	private final int maxBlocks;
+	private volatile CompressedBlock[] blocks = new CompressedBlock[0];
+	private volatile OpenBlock open = new OpenBlock(0);
+}
@@ -0,0 +1,146 @@
+package sensors;
+
+/**
+ * Wzorzec nazw sensorów: glob dla zasobu i dla metryki, np.
+ * <code>host*</code> / <code>cpu-*</code>. Znak '*' oznacza dowolny ciąg
+ * znaków, '?' dokładnie jeden znak.
+ *
+ * Sensory wyliczane o nazwie agregatu okienkowego ("metryka@funkcja:okno")
+ * pasują tylko do wzorców, których metryka zawiera '@' - wzorzec cpu-* nie
+ * obejmuje cpu-usage@avg:60s. (Same agregaty subskrypcji nie trafiają do
+ * rejestru, więc wzorce ich nie widzą.)
+ */
+public class SensorPattern {
+
+	public SensorPattern(String resource, String metric) {
+		this.resource = resource;
+		this.metric = metric;
+		this.resourcePrefix = literalPrefix(resource);
+		this.metricPrefix = literalPrefix(metric);
+	}
+
+	/**
+	 * Czy tekst zawiera znaki wzorca
+	 *
+	 * @param text
+	 * @return
+	 */
+	public static boolean isPattern(String text) {
+		return text != null && (text.indexOf('*') >= 0 || text.indexOf('?') >= 0);
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+	public String getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Stały początek wzorca zasobu (przed pierwszym znakiem wzorca)
+	 *
+	 * @return
+	 */
+	public String getResourcePrefix() {
+		return resourcePrefix;
+	}
+
+	/**
+	 * Stały początek wzorca metryki
+	 *
+	 * @return
+	 */
+	public String getMetricPrefix() {
+		return metricPrefix;
+	}
+
+	public boolean matches(String resource, String metric) {
+		return glob(this.resource, resource) && glob(this.metric, metric);
+	}
+
+	/**
+	 * Dopasowanie sensora, z pominięciem agregatów okienkowych, których wzorzec
+	 * nie wymienia
+	 *
+	 * @param sensor
+	 * @return
+	 */
+	public boolean matches(Sensor sensor) {
+		if (sensor.isDerived() && sensor.getMetric().indexOf('@') >= 0
+				&& metric.indexOf('@') < 0) {
+			return false;
+		}
+		return matches(sensor.getResource(), sensor.getMetric());
+	}
+
+	public boolean matchesResource(String resource) {
+		return glob(this.resource, resource);
+	}
+
+	/**
+	 * Dopasowanie globu bez rekurencji: przy niezgodności wraca do ostatniej
+	 * gwiazdki i rozszerza jej dopasowanie o jeden znak.
+	 */
+	static boolean glob(String pattern, String text) {
+		int p = 0;
+		int t = 0;
+		int starPattern = -1;
+		int starText = 0;
+		while (t < text.length()) {
+			if (p < pattern.length()
+					&& (pattern.charAt(p) == '?' || pattern.charAt(p) == text
+							.charAt(t))) {
+				p++;
+				t++;
+			} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+				starPattern = p++;
+				starText = t;
+			} else if (starPattern >= 0) {
+				p = starPattern + 1;
+				t = ++starText;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+
+	private static String literalPrefix(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?') {
+				return pattern.substring(0, i);
+			}
+		}
+		return pattern;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof SensorPattern)) {
+			return false;
+		}
+		SensorPattern pattern = (SensorPattern) other;
+		return resource.equals(pattern.resource)
+				&& metric.equals(pattern.metric);
+	}
+
+	@Override
+	public int hashCode() {
+		return resource.hashCode() * 31 + metric.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return resource + ":" + metric;
+	}
+
+	private final String resource;
+	private final String metric;
+	private final String resourcePrefix;
+	private final String metricPrefix;
+}
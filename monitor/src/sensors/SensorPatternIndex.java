@@ -0,0 +1,148 @@
+package sensors;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Indeks wzorców sensorów - dwa drzewa trie stałych początków wzorców.
+ *
+ * Wzorce ze stałym początkiem zasobu (np. host1* / cpu) trafiają do drzewa
+ * zasobów, a wzorce zaczynające się od znaku wzorca w zasobie (np. * /
+ * cpu-usage - typowy wzorzec dla całej floty) - do drzewa stałych początków
+ * metryki. Nowy sensor sprawdzany jest tylko z wzorcami, których stały
+ * początek jest prefiksem jego zasobu lub metryki: przejście po drzewach
+ * wzdłuż nazw zbiera kandydatów, a pełne dopasowanie globu wykonywane jest
+ * tylko dla nich. Bez przeglądania wszystkich wzorców pozostają tylko wzorce
+ * bez żadnego stałego początku (np. * / *).
+ *
+ * Odczyt (dopasowanie) nie blokuje; dodawanie i usuwanie wzorców jest
+ * synchronizowane.
+ */
+class SensorPatternIndex {
+
+	private static final class Entry {
+
+		Entry(SensorPattern pattern, SensorCreationListener listener) {
+			this.pattern = pattern;
+			this.listener = listener;
+		}
+
+		final SensorPattern pattern;
+		final SensorCreationListener listener;
+	}
+
+	private static final class Node {
+		final ConcurrentHashMap<Character, Node> children = new ConcurrentHashMap<Character, Node>();
+		final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	}
+
+	/**
+	 * Drzewo wzorców według stałego początku jednej z nazw
+	 */
+	private static final class Trie {
+
+		void add(String prefix, Entry entry) {
+			Node node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				Node child = node.children.get(prefix.charAt(i));
+				if (child == null) {
+					child = new Node();
+					node.children.put(prefix.charAt(i), child);
+				}
+				node = child;
+			}
+			node.entries.add(entry);
+		}
+
+		boolean remove(String prefix, SensorPattern pattern,
+				SensorCreationListener listener) {
+			Node[] path = new Node[prefix.length() + 1];
+			path[0] = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				path[i + 1] = path[i].children.get(prefix.charAt(i));
+				if (path[i + 1] == null) {
+					return false;
+				}
+			}
+			Node node = path[prefix.length()];
+			for (Entry entry : node.entries) {
+				if (entry.listener == listener && entry.pattern.equals(pattern)) {
+					node.entries.remove(entry);
+					// usunięcie pustych gałęzi
+					for (int i = prefix.length(); i > 0; i--) {
+						if (!path[i].entries.isEmpty()
+								|| !path[i].children.isEmpty()) {
+							break;
+						}
+						path[i - 1].children.remove(prefix.charAt(i - 1));
+					}
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Powiadamia słuchaczy pasujących wzorców z węzłów na ścieżce nazwy
+		 */
+		void match(String name, Sensor sensor) {
+			Node node = root;
+			for (int i = 0; node != null; i++) {
+				for (Entry entry : node.entries) {
+					if (entry.pattern.matches(sensor)) {
+						entry.listener.onSensorCreated(sensor);
+					}
+				}
+				if (i == name.length()) {
+					break;
+				}
+				node = node.children.get(name.charAt(i));
+			}
+		}
+
+		private final Node root = new Node();
+	}
+
+	synchronized void add(SensorPattern pattern, SensorCreationListener listener) {
+		Entry entry = new Entry(pattern, listener);
+		if (pattern.getResourcePrefix().isEmpty()) {
+			byMetric.add(pattern.getMetricPrefix(), entry);
+		} else {
+			byResource.add(pattern.getResourcePrefix(), entry);
+		}
+		count++;
+	}
+
+	synchronized boolean remove(SensorPattern pattern,
+			SensorCreationListener listener) {
+		boolean removed = pattern.getResourcePrefix().isEmpty() ? byMetric
+				.remove(pattern.getMetricPrefix(), pattern, listener)
+				: byResource.remove(pattern.getResourcePrefix(), pattern,
+						listener);
+		if (removed) {
+			count--;
+		}
+		return removed;
+	}
+
+	/**
+	 * Powiadamia słuchaczy wszystkich wzorców pasujących do sensora
+	 *
+	 * @param sensor
+	 */
+	void match(Sensor sensor) {
+		if (count == 0) {
+			return;
+		}
+		byResource.match(sensor.getResource(), sensor);
+		byMetric.match(sensor.getMetric(), sensor);
+	}
+
+	int size() {
+		return count;
+	}
+
+	private final Trie byResource = new Trie();
+	private final Trie byMetric = new Trie();
+	private volatile int count;
+}
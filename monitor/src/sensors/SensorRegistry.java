@@ -0,0 +1,245 @@
+package sensors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Rejestr sensorów indeksowany parą (zasób, metryka).
+ *
+ * Wyszukiwanie sensora to dwa odczyty z ConcurrentHashMap. Dodatkowo
+ * utrzymywany jest posortowany indeks zasób -> metryki, z którego korzystają
+ * listowanie, zapytania o prefiks i stronicowanie. Odczyty nie blokują, więc
+ * wątki Jetty mogą listować sensory w czasie, gdy wątki MessageQueue dodają
+ * nowe; zapisy (rzadkie - tylko przy pojawieniu się nowego sensora) są
+ * synchronizowane.
+ *
+ * Każde dodanie i usunięcie sensora zwiększa wersję rejestru i trafia do
+ * ograniczonego dziennika zmian, więc klient może zapytać o zmiany od
+ * znanej mu wersji zamiast pobierać cały listing.
+ */
+public class SensorRegistry {
+
+	/**
+	 * Liczba ostatnich zmian przechowywanych w dzienniku
+	 * (-Dmonitor.registry.changes)
+	 */
+	public static final int CHANGE_LOG_SIZE = Integer.getInteger(
+			"monitor.registry.changes", 4096);
+
+	/**
+	 * Zwraca sensor o podanym zasobie i metryce lub null
+	 *
+	 * @param resource
+	 * @param metric
+	 * @return
+	 */
+	public Sensor find(String resource, String metric) {
+		if (resource == null || metric == null) {
+			return null;
+		}
+		ConcurrentHashMap<String, Sensor> metrics = sensors.get(resource);
+		return metrics == null ? null : metrics.get(metric);
+	}
+
+	/**
+	 * Dodaje sensor, o ile nie istnieje już sensor o tym samym zasobie i
+	 * metryce.
+	 *
+	 * @param sensor
+	 * @return sensor zapisany w rejestrze (podany lub wcześniej istniejący)
+	 */
+	synchronized Sensor add(Sensor sensor) {
+		Sensor existing = find(sensor.getResource(), sensor.getMetric());
+		if (existing != null) {
+			return existing;
+		}
+
+		ConcurrentHashMap<String, Sensor> metrics = sensors.get(sensor
+				.getResource());
+		if (metrics == null) {
+			metrics = new ConcurrentHashMap<String, Sensor>();
+			sensors.put(sensor.getResource(), metrics);
+		}
+		NavigableSet<String> sortedMetrics = index.get(sensor.getResource());
+		if (sortedMetrics == null) {
+			sortedMetrics = new ConcurrentSkipListSet<String>();
+			index.put(sensor.getResource(), sortedMetrics);
+		}
+
+		metrics.put(sensor.getMetric(), sensor);
+		sortedMetrics.add(sensor.getMetric());
+		count++;
+		recordChange('+', sensor);
+		return sensor;
+	}
+
+	/**
+	 * Usuwa sensor z rejestru
+	 *
+	 * @param sensor
+	 * @return
+	 */
+	synchronized boolean remove(Sensor sensor) {
+		ConcurrentHashMap<String, Sensor> metrics = sensors.get(sensor
+				.getResource());
+		if (metrics == null || !metrics.remove(sensor.getMetric(), sensor)) {
+			return false;
+		}
+		NavigableSet<String> sortedMetrics = index.get(sensor.getResource());
+		sortedMetrics.remove(sensor.getMetric());
+		if (metrics.isEmpty()) {
+			sensors.remove(sensor.getResource());
+			index.remove(sensor.getResource());
+		}
+		count--;
+		recordChange('-', sensor);
+		return true;
+	}
+
+	/**
+	 * Zapisuje zmianę w dzienniku; wywoływane pod blokadą rejestru
+	 */
+	private void recordChange(char operation, Sensor sensor) {
+		changes[(int) (version % changes.length)] = operation + " "
+				+ sensor.getResource() + " " + sensor.getMetric();
+		version++;
+	}
+
+	/**
+	 * Wersja rejestru - rośnie przy każdym dodaniu i usunięciu sensora
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Zmiany od podanej wersji, w kolejności, jako linie "+ zasób metryka"
+	 * (nowy sensor) lub "- zasób metryka" (usunięty)
+	 *
+	 * @param since
+	 * @param out
+	 * @return wersja rejestru po ostatniej zmianie w out; -1, jeżeli zmian od
+	 *         podanej wersji nie ma już w dzienniku (trzeba pobrać cały
+	 *         listing)
+	 */
+	public synchronized long changesSince(long since, ArrayList<String> out) {
+		if (since > version || since < version - changes.length || since < 0) {
+			return -1;
+		}
+		for (long v = since; v < version; v++) {
+			out.add(changes[(int) (v % changes.length)]);
+		}
+		return version;
+	}
+
+	/**
+	 * Listuje posortowane zasoby
+	 *
+	 * @param prefix
+	 *            tylko zasoby zaczynające się od prefiksu (null - wszystkie)
+	 * @param after
+	 *            tylko zasoby większe od podanego (kursor stronicowania; null -
+	 *            od początku)
+	 * @param limit
+	 *            maksymalna liczba wyników (ujemna - bez ograniczenia)
+	 * @return
+	 */
+	public ArrayList<String> listResources(String prefix, String after,
+			int limit) {
+		return page(restrict(index, prefix, after).keySet(), limit);
+	}
+
+	/**
+	 * Listuje posortowane metryki zasobu
+	 *
+	 * @param resource
+	 * @param prefix
+	 * @param after
+	 * @param limit
+	 * @return
+	 */
+	public ArrayList<String> listMetrics(String resource, String prefix,
+			String after, int limit) {
+		NavigableSet<String> metrics = resource == null ? null : index
+				.get(resource);
+		if (metrics == null) {
+			return new ArrayList<String>();
+		}
+		if (prefix != null && !prefix.isEmpty()) {
+			String end = prefix + Character.MAX_VALUE;
+			after = clamp(after, prefix, end);
+			metrics = after == null ? metrics.subSet(prefix, true, end, false)
+					: metrics.subSet(after, false, end, false);
+		} else if (after != null) {
+			metrics = metrics.tailSet(after, false);
+		}
+		return page(metrics, limit);
+	}
+
+	/**
+	 * Widok wszystkich sensorów (słabo spójny)
+	 *
+	 * @return
+	 */
+	public Collection<Sensor> getSensors() {
+		ArrayList<Sensor> result = new ArrayList<Sensor>(count);
+		for (Map<String, Sensor> metrics : sensors.values()) {
+			result.addAll(metrics.values());
+		}
+		return result;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private static ConcurrentNavigableMap<String, NavigableSet<String>> restrict(
+			ConcurrentNavigableMap<String, NavigableSet<String>> map,
+			String prefix, String after) {
+		if (prefix != null && !prefix.isEmpty()) {
+			String end = prefix + Character.MAX_VALUE;
+			after = clamp(after, prefix, end);
+			map = after == null ? map.subMap(prefix, true, end, false) : map
+					.subMap(after, false, end, false);
+		} else if (after != null) {
+			map = map.tailMap(after, false);
+		}
+		return map;
+	}
+
+	/**
+	 * Przycina "after" do zakresu prefiksu [prefix, end): null, jeżeli leży
+	 * przed zakresem, end (pusta strona), jeżeli za nim
+	 */
+	private static String clamp(String after, String prefix, String end) {
+		if (after == null || after.compareTo(prefix) < 0) {
+			return null;
+		}
+		return after.compareTo(end) > 0 ? end : after;
+	}
+
+	private static ArrayList<String> page(Collection<String> values, int limit) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String value : values) {
+			if (limit >= 0 && result.size() >= limit) {
+				break;
+			}
+			result.add(value);
+		}
+		return result;
+	}
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Sensor>> sensors = new ConcurrentHashMap<String, ConcurrentHashMap<String, Sensor>>();
+	private final ConcurrentSkipListMap<String, NavigableSet<String>> index = new ConcurrentSkipListMap<String, NavigableSet<String>>();
+	private volatile int count;
+	private volatile long version;
+	private final String[] changes = new String[Math.max(1, CHANGE_LOG_SIZE)];
+}
@@ -3,4 +3,10 @@ package sensors;
 public interface SensorUpdateListener {
 	void onUpdate(Sensor sensor);
 	void onDisconnected(Sensor sensor);
+
+	/**
+	 * Sensor został usunięty z rejestru (sensor wyliczany, którego nikt już
+	 * nie używa) - słuchacz powinien zwolnić związany z nim stan
+	 */
+	void onRemoved(Sensor sensor);
 }
@@ -0,0 +1,328 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import sensors.SensorUpdateListener;
+
+/**
+ * Trwały magazyn pomiarów: każdy pomiar dopisywany jest jako rekord stałej
+ * długości do segmentów zmapowanych w pamięci (patrz {@link Segment}), a
+ * definicje sensorów do katalogu (patrz {@link SensorCatalog}). Po restarcie
+ * {@link #recover(SensorDataCollector, SensorUpdateListener)} odtwarza rejestr
+ * sensorów, ostatnie wartości, historię i (przez podany etap) agregaty.
+ * 
+ * Wątek MessageQueue tylko kopiuje pomiar do bufora w pamięci; zapis do
+ * segmentów, force() co zadany czas, zakładanie nowych segmentów i usuwanie
+ * starych wykonuje osobny wątek zapisujący. Przy przepełnieniu bufora
+ * pomiary są odrzucane (i zliczane), żeby nie blokować pętli zdarzeń; wątek
+ * zapisujący zgłasza odrzucenia na standardowe wyjście błędów.
+ */
+public class MeasurementStore implements SensorUpdateListener, Runnable {
+
+	private static final int BUFFER_CAPACITY = 65536;
+	private static final long FLUSH_MILLIS = 10;
+	private static final long CLEANUP_MILLIS = 60000;
+	// najczęściej co tyle zgłaszane są odrzucone pomiary
+	private static final long DROP_REPORT_MILLIS = 10000;
+
+	/**
+	 * Tworzy magazyn z parametrami z właściwości systemowych:
+	 * monitor.store.segmentSize (bajty), monitor.store.forceMillis,
+	 * monitor.store.retentionHours
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	public MeasurementStore(File directory) throws IOException {
+		this(directory, Integer.getInteger("monitor.store.segmentSize",
+				64 * 1024 * 1024), Long.getLong("monitor.store.forceMillis",
+				1000), Long.getLong("monitor.store.retentionHours", 24) * 3600000);
+	}
+
+	public MeasurementStore(File directory, int segmentSize, long forceMillis,
+			long retentionMillis) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create store directory "
+					+ directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize - segmentSize % Segment.RECORD_SIZE;
+		this.forceMillis = forceMillis;
+		this.retentionMillis = retentionMillis;
+		this.catalog = new SensorCatalog(new File(directory, "sensors.catalog"));
+	}
+
+	/**
+	 * Odtwarza sensory i ich pomiary z plików magazynu. Wywoływać przed
+	 * {@link #start()} i przed uruchomieniem MessageQueue.
+	 * 
+	 * @param collector
+	 * @param replay
+	 *            etap, który dostaje każdy odtworzony pomiar (np. RollupStage,
+	 *            żeby agregaty obejmowały okres sprzed restartu); może być
+	 *            null
+	 * @throws IOException
+	 */
+	public void recover(final SensorDataCollector collector,
+			final SensorUpdateListener replay) throws IOException {
+		final HashMap<Integer, Sensor> byId = new HashMap<Integer, Sensor>();
+		catalog.load(new SensorCatalog.EntryVisitor() {
+			@Override
+			public void visit(int id, String resource, String metric) {
+				Sensor sensor = collector.getOrCreateSensor(resource, metric);
+				byId.put(id, sensor);
+				ids.put(sensor, id);
+				nextId = Math.max(nextId, id + 1);
+			}
+		});
+
+		File[] files = directory.listFiles();
+		ArrayList<Long> sequences = new ArrayList<Long>();
+		for (File file : files == null ? new File[0] : files) {
+			long sequence = Segment.parseSequence(file);
+			if (sequence >= 0) {
+				sequences.add(sequence);
+			}
+		}
+		Collections.sort(sequences);
+
+		long records = 0;
+		for (long sequence : sequences) {
+			Segment segment = Segment.open(directory, sequence, segmentSize);
+			segment.replay(new Segment.RecordVisitor() {
+				@Override
+				public void visit(int sensorId, long timestamp, float value) {
+					Sensor sensor = byId.get(sensorId);
+					if (sensor != null) {
+						sensor.updateMeasurement(timestamp, value);
+						if (replay != null) {
+							replay.onUpdate(sensor);
+						}
+					}
+				}
+			});
+			records += segment.getCount();
+			segments.add(segment);
+		}
+		System.out.printf(
+				"Odtworzono %d sensorow i %d pomiarow z %d segmentow\n",
+				byId.size(), records, segments.size());
+	}
+
+	/**
+	 * Uruchamia wątek zapisujący
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		if (segments.isEmpty() || !current().hasRoom()) {
+			long sequence = segments.isEmpty() ? 0 : current().getSequence() + 1;
+			segments.add(Segment.open(directory, sequence, segmentSize));
+		}
+		Thread thread = new Thread(this, "MeasurementStore-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void onUpdate(Sensor sensor) {
+		if (sensor.isDerived()) {
+			// wartości wyliczane można odtworzyć z pomiarów
+			return;
+		}
+		int id = idFor(sensor);
+		synchronized (lock) {
+			if (pendingCount == pendingIds.length) {
+				dropped++;
+				return;
+			}
+			pendingIds[pendingCount] = id;
+			pendingTimestamps[pendingCount] = sensor.getLastTimestamp();
+			pendingValues[pendingCount] = sensor.getLastMeasurement();
+			pendingCount++;
+			if (pendingCount == pendingIds.length / 2) {
+				lock.notify();
+			}
+		}
+	}
+
+	@Override
+	public void onDisconnected(Sensor sensor) {
+		// nic do zapisania
+	}
+
+	@Override
+	public void onRemoved(Sensor sensor) {
+		// usuwane są tylko sensory wyliczane, których magazyn nie zapisuje
+	}
+
+	/**
+	 * Liczba pomiarów odrzuconych z powodu przepełnienia bufora
+	 * 
+	 * @return
+	 */
+	public long getDropped() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	private int idFor(Sensor sensor) {
+		Integer id = ids.get(sensor);
+		if (id != null) {
+			return id;
+		}
+		synchronized (lock) {
+			id = ids.get(sensor);
+			if (id == null) {
+				id = nextId++;
+				pendingSensors.add(sensor);
+				pendingSensorIds.add(id);
+				ids.put(sensor, id);
+			}
+			return id;
+		}
+	}
+
+	@Override
+	public void run() {
+		int[] batchIds = new int[BUFFER_CAPACITY];
+		long[] batchTimestamps = new long[BUFFER_CAPACITY];
+		float[] batchValues = new float[BUFFER_CAPACITY];
+		ArrayList<Sensor> batchSensors = new ArrayList<Sensor>();
+		ArrayList<Integer> batchSensorIds = new ArrayList<Integer>();
+		long lastForce = System.currentTimeMillis();
+		long lastCleanup = 0;
+		long lastDropReport = 0;
+		long reportedDropped = 0;
+
+		while (true) {
+			int batchCount;
+			long droppedTotal;
+			synchronized (lock) {
+				if (pendingCount == 0 && pendingSensors.isEmpty()) {
+					try {
+						lock.wait(FLUSH_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				// zamiana buforów - producenci piszą dalej do pustych tablic
+				int[] ids = pendingIds;
+				pendingIds = batchIds;
+				batchIds = ids;
+				long[] timestamps = pendingTimestamps;
+				pendingTimestamps = batchTimestamps;
+				batchTimestamps = timestamps;
+				float[] values = pendingValues;
+				pendingValues = batchValues;
+				batchValues = values;
+				batchCount = pendingCount;
+				pendingCount = 0;
+				droppedTotal = dropped;
+
+				ArrayList<Sensor> sensors = pendingSensors;
+				pendingSensors = batchSensors;
+				batchSensors = sensors;
+				ArrayList<Integer> sensorIds = pendingSensorIds;
+				pendingSensorIds = batchSensorIds;
+				batchSensorIds = sensorIds;
+			}
+
+			try {
+				// definicje sensorów przed rekordami, które się do nich odwołują
+				for (int i = 0; i < batchSensors.size(); i++) {
+					Sensor sensor = batchSensors.get(i);
+					catalog.append(batchSensorIds.get(i), sensor.getResource(),
+							sensor.getMetric());
+				}
+				if (!batchSensors.isEmpty()) {
+					catalog.force();
+				}
+				batchSensors.clear();
+				batchSensorIds.clear();
+
+				for (int i = 0; i < batchCount; i++) {
+					if (!current().hasRoom()) {
+						roll();
+					}
+					current().append(batchIds[i], batchTimestamps[i],
+							batchValues[i]);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastForce >= forceMillis) {
+					current().force();
+					lastForce = now;
+				}
+				if (now - lastCleanup >= CLEANUP_MILLIS) {
+					deleteExpired(now);
+					lastCleanup = now;
+				}
+				if (droppedTotal > reportedDropped
+						&& now - lastDropReport >= DROP_REPORT_MILLIS) {
+					System.err.printf(
+							"Measurement store buffer full: %d samples dropped (%d total)\n",
+							droppedTotal - reportedDropped, droppedTotal);
+					reportedDropped = droppedTotal;
+					lastDropReport = now;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Measurement store write failed");
+			}
+		}
+	}
+
+	private Segment current() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private void roll() throws IOException {
+		Segment full = current();
+		full.force();
+		segments.add(Segment.open(directory, full.getSequence() + 1,
+				segmentSize));
+	}
+
+	private void deleteExpired(long now) {
+		Iterator<Segment> it = segments.iterator();
+		while (it.hasNext()) {
+			Segment segment = it.next();
+			if (segment == current()) {
+				break;
+			}
+			if (segment.getLastTimestamp() < now - retentionMillis) {
+				segment.delete();
+				it.remove();
+			}
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final long forceMillis;
+	private final long retentionMillis;
+	private final SensorCatalog catalog;
+	// segmenty posortowane wg numeru; ostatni jest aktualnie zapisywany
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private final ConcurrentHashMap<Sensor, Integer> ids = new ConcurrentHashMap<Sensor, Integer>();
+	private int nextId = 1;
+
+	private final Object lock = new Object();
+	private int[] pendingIds = new int[BUFFER_CAPACITY];
+	private long[] pendingTimestamps = new long[BUFFER_CAPACITY];
+	private float[] pendingValues = new float[BUFFER_CAPACITY];
+	private int pendingCount;
+	private ArrayList<Sensor> pendingSensors = new ArrayList<Sensor>();
+	private ArrayList<Integer> pendingSensorIds = new ArrayList<Integer>();
+	private long dropped;
+}
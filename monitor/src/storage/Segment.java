@@ -0,0 +1,191 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plik segmentu magazynu pomiarów, zmapowany w pamięci. Segment ma stały
+ * rozmiar i zawiera rekordy o stałej długości:
+ * 
+ * <pre>
+ * int idSensora | long czas | float wartość | int suma kontrolna
+ * </pre>
+ * 
+ * Koniec danych to pierwszy rekord z błędną sumą kontrolną - dzięki temu po
+ * awarii niedokończony rekord na końcu jest wykrywany i obcinany.
+ */
+class Segment {
+
+	static final int RECORD_SIZE = 20;
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".dat";
+
+	/**
+	 * Otwiera (lub tworzy) segment i odnajduje koniec zapisanych danych
+	 * 
+	 * @param directory
+	 * @param sequence
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	static Segment open(File directory, long sequence, int size)
+			throws IOException {
+		return new Segment(new File(directory, String.format("%s%016d%s",
+				PREFIX, sequence, SUFFIX)), sequence, size);
+	}
+
+	/**
+	 * Numer sekwencyjny segmentu zapisany w nazwie pliku lub -1, jeżeli plik
+	 * nie jest segmentem
+	 * 
+	 * @param file
+	 * @return
+	 */
+	static long parseSequence(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length()
+					- SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static int checksum(int sensorId, long timestamp, int valueBits) {
+		int h = 0x5bd1e995;
+		h = h * 31 + sensorId;
+		h = h * 31 + (int) (timestamp ^ (timestamp >>> 32));
+		h = h * 31 + valueBits;
+		return h ^ (h >>> 15);
+	}
+
+	private Segment(File file, long sequence, int size) throws IOException {
+		this.file = file;
+		this.sequence = sequence;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long existing = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				Math.max(size, existing));
+		recover();
+	}
+
+	/**
+	 * Przechodzi po rekordach, ustawia pozycję zapisu za ostatnim poprawnym i
+	 * zeruje ewentualny urwany rekord za nim
+	 */
+	private void recover() {
+		int position = 0;
+		while (position + RECORD_SIZE <= buffer.capacity()) {
+			int sensorId = buffer.getInt(position);
+			long timestamp = buffer.getLong(position + 4);
+			int valueBits = buffer.getInt(position + 12);
+			if (buffer.getInt(position + 16) != checksum(sensorId, timestamp,
+					valueBits)) {
+				break;
+			}
+			if (count == 0) {
+				firstTimestamp = timestamp;
+			}
+			lastTimestamp = timestamp;
+			count++;
+			position += RECORD_SIZE;
+		}
+		int tail = Math.min(position + RECORD_SIZE, buffer.capacity());
+		for (int i = position; i < tail; i++) {
+			if (buffer.get(i) != 0) {
+				System.err.printf("Truncating torn record in %s at %d\n",
+						file.getName(), position);
+				for (int j = position; j < tail; j++) {
+					buffer.put(j, (byte) 0);
+				}
+				break;
+			}
+		}
+		buffer.position(position);
+	}
+
+	boolean hasRoom() {
+		return buffer.remaining() >= RECORD_SIZE;
+	}
+
+	void append(int sensorId, long timestamp, float value) {
+		int valueBits = Float.floatToRawIntBits(value);
+		buffer.putInt(sensorId);
+		buffer.putLong(timestamp);
+		buffer.putInt(valueBits);
+		buffer.putInt(checksum(sensorId, timestamp, valueBits));
+		if (count == 0) {
+			firstTimestamp = timestamp;
+		}
+		lastTimestamp = timestamp;
+		count++;
+	}
+
+	/**
+	 * Odtwarza zapisane rekordy
+	 * 
+	 * @param visitor
+	 */
+	void replay(RecordVisitor visitor) {
+		int end = count * RECORD_SIZE;
+		for (int position = 0; position < end; position += RECORD_SIZE) {
+			visitor.visit(buffer.getInt(position),
+					buffer.getLong(position + 4),
+					Float.intBitsToFloat(buffer.getInt(position + 12)));
+		}
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	void close() {
+		force();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// mapowanie pozostaje ważne, plik i tak zostanie zamknięty
+		}
+	}
+
+	boolean delete() {
+		close();
+		return file.delete();
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	interface RecordVisitor {
+		void visit(int sensorId, long timestamp, float value);
+	}
+
+	private final File file;
+	private final long sequence;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private int count;
+	private long firstTimestamp;
+	private long lastTimestamp;
+}
@@ -0,0 +1,99 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Plik z definicjami sensorów magazynu (id -> zasób, metryka). Wpisy są
+ * dopisywane na końcu:
+ * 
+ * <pre>
+ * int id | short długość | zasób (UTF-8) | short długość | metryka (UTF-8)
+ * </pre>
+ * 
+ * Niepełny wpis na końcu pliku (po awarii) jest obcinany przy otwarciu.
+ */
+class SensorCatalog {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	interface EntryVisitor {
+		void visit(int id, String resource, String metric);
+	}
+
+	SensorCatalog(File file) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Odczytuje wszystkie kompletne wpisy i obcina plik za ostatnim z nich
+	 * 
+	 * @param visitor
+	 * @throws IOException
+	 */
+	void load(EntryVisitor visitor) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+		channel.read(data, 0);
+		data.flip();
+
+		int valid = 0;
+		while (data.remaining() >= 6) {
+			int id = data.getInt();
+			String resource = readString(data);
+			String metric = resource == null ? null : readString(data);
+			if (metric == null || id <= 0) {
+				break;
+			}
+			visitor.visit(id, resource, metric);
+			valid = data.position();
+		}
+		if (valid < channel.size()) {
+			System.err.printf("Truncating sensor catalog at %d\n", valid);
+			channel.truncate(valid);
+		}
+		channel.position(valid);
+	}
+
+	private static String readString(ByteBuffer data) {
+		if (data.remaining() < 2) {
+			return null;
+		}
+		int length = data.getShort() & 0xffff;
+		if (data.remaining() < length) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	void append(int id, String resource, String metric) throws IOException {
+		byte[] resourceBytes = resource.getBytes(CHARSET);
+		byte[] metricBytes = metric.getBytes(CHARSET);
+		ByteBuffer entry = ByteBuffer.allocate(8 + resourceBytes.length
+				+ metricBytes.length);
+		entry.putInt(id);
+		entry.putShort((short) resourceBytes.length);
+		entry.put(resourceBytes);
+		entry.putShort((short) metricBytes.length);
+		entry.put(metricBytes);
+		entry.flip();
+		while (entry.hasRemaining()) {
+			channel.write(entry);
+		}
+	}
+
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	private final FileChannel channel;
+}
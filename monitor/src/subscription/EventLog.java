@@ -0,0 +1,111 @@
+package subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import network.SharedMessage;
+
+/**
+ * Ostatnie wiadomości subskrypcji z kolejnymi numerami, dla klientów HTTP
+ * (long-poll / Server-Sent Events). Klient pyta o wiadomości po numerze
+ * ostatniej odebranej, więc ponowne połączenie niczego nie gubi, dopóki
+ * wiadomości mieszczą się w buforze.
+ *
+ * Bufor jest wspólny dla wszystkich klientów HTTP subskrypcji; czekający
+ * klienci nie zajmują wątków - rejestrują {@link Waiter}, który jest
+ * powiadamiany raz, przy najbliższej wiadomości.
+ */
+public class EventLog {
+
+	/**
+	 * Rozmiar bufora (-Dmonitor.stream.buffer)
+	 */
+	public static final int DEFAULT_CAPACITY = Integer.getInteger(
+			"monitor.stream.buffer", 1024);
+
+	/**
+	 * Jednorazowe powiadomienie o nowej wiadomości
+	 */
+	public interface Waiter {
+		void onEvent();
+	}
+
+	EventLog(int capacity) {
+		events = new byte[Math.max(1, capacity)][];
+	}
+
+	/**
+	 * Dopisuje wiadomość (kopiując jej treść bez końca linii) i budzi
+	 * czekających
+	 *
+	 * @param message
+	 */
+	void add(SharedMessage message) {
+		ByteBuffer view = message.view();
+		byte[] data = new byte[view.remaining() - 1];
+		view.get(data);
+		Waiter[] woken;
+		synchronized (this) {
+			events[(int) (nextId % events.length)] = data;
+			nextId++;
+			if (waiters.isEmpty()) {
+				return;
+			}
+			woken = waiters.toArray(new Waiter[waiters.size()]);
+			waiters.clear();
+		}
+		for (Waiter waiter : woken) {
+			waiter.onEvent();
+		}
+	}
+
+	/**
+	 * Numer ostatniej wiadomości (-1, jeżeli nie było żadnej)
+	 *
+	 * @return
+	 */
+	public synchronized long getLastId() {
+		return nextId - 1;
+	}
+
+	/**
+	 * Kopiuje do out wiadomości o numerach większych niż after (najwyżej
+	 * limit). Wiadomości usunięte już z bufora są pomijane - wtedy zwrócony
+	 * numer jest większy niż after + 1 i wywołujący musi zgłosić lukę.
+	 *
+	 * @param after
+	 * @param limit
+	 * @param out
+	 * @return numer pierwszej skopiowanej wiadomości
+	 */
+	public synchronized long read(long after, int limit, ArrayList<byte[]> out) {
+		long first = Math.max(after + 1, Math.max(0, nextId - events.length));
+		long end = Math.min(nextId, first + limit);
+		for (long id = first; id < end; id++) {
+			out.add(events[(int) (id % events.length)]);
+		}
+		return first;
+	}
+
+	/**
+	 * Rejestruje czekającego, jeżeli nie ma wiadomości po after
+	 *
+	 * @return false, jeżeli wiadomości są już dostępne (waiter nie został
+	 *         zarejestrowany)
+	 */
+	public synchronized boolean await(long after, Waiter waiter) {
+		if (nextId - 1 > after) {
+			return false;
+		}
+		waiters.add(waiter);
+		return true;
+	}
+
+	public synchronized void cancel(Waiter waiter) {
+		waiters.remove(waiter);
+	}
+
+	private final byte[][] events;
+	private long nextId;
+	private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+}
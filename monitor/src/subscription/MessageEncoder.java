@@ -0,0 +1,147 @@
+package subscription;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import network.BufferPool;
+import network.SharedMessage;
+import sensors.Sensor;
+
+/**
+ * Kodowanie wiadomości dla subskrybentów bezpośrednio do bufora, bez
+ * String.format i bez pośrednich obiektów String.
+ * 
+ * Format: <code>#id#zasob#metryka#wartosc#\n</code>, gdzie id to numer
+ * subskrypcji, a wartość ma sześć cyfr po kropce (jak %f).
+ */
+final class MessageEncoder {
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final byte SEPARATOR = '#';
+	private static final byte LINE_END = '\n';
+	private static final long FRACTION_SCALE = 1000000;
+
+	private MessageEncoder() {
+	}
+
+	/**
+	 * Koduje wartość sensora do bufora z puli
+	 * 
+	 * @param tag
+	 *            początek wiadomości: <code>#id</code> subskrypcji
+	 * @param sensor
+	 * @param value
+	 * @param pool
+	 * @return wiadomość z jedną referencją (należącą do wywołującego)
+	 */
+	static SharedMessage encode(byte[] tag, Sensor sensor, float value,
+			BufferPool pool) {
+		int size = maxLineSize(tag, sensor);
+		ByteBuffer buffer = size <= pool.getBufferSize() ? pool.acquire()
+				: ByteBuffer.allocateDirect(size);
+		putLine(buffer, tag, sensor, value);
+		return new SharedMessage(buffer, pool);
+	}
+
+	/**
+	 * Górne ograniczenie długości wiadomości sensora
+	 * 
+	 * @param tag
+	 * @param sensor
+	 * @return
+	 */
+	static int maxLineSize(byte[] tag, Sensor sensor) {
+		return tag.length + sensor.getResourceBytes().length
+				+ sensor.getMetricBytes().length + 48;
+	}
+
+	/**
+	 * Dopisuje do bufora wiadomość z podaną wartością sensora (np. z
+	 * historii)
+	 * 
+	 * @param buffer
+	 * @param tag
+	 * @param sensor
+	 * @param value
+	 */
+	static void putLine(ByteBuffer buffer, byte[] tag, Sensor sensor,
+			float value) {
+		buffer.put(tag);
+		buffer.put(SEPARATOR);
+		buffer.put(sensor.getResourceBytes());
+		buffer.put(SEPARATOR);
+		buffer.put(sensor.getMetricBytes());
+		buffer.put(SEPARATOR);
+		putFloat(buffer, value);
+		buffer.put(SEPARATOR);
+		buffer.put(LINE_END);
+	}
+
+	/**
+	 * Początek wiadomości subskrypcji o podanym id
+	 * 
+	 * @param id
+	 * @return
+	 */
+	static byte[] tag(int id) {
+		return ("#" + id).getBytes(CHARSET);
+	}
+
+	/**
+	 * Koduje linię tekstu (odpowiedź na komendę klienta)
+	 * 
+	 * @param text
+	 * @return
+	 */
+	static SharedMessage encodeLine(String text) {
+		byte[] bytes = text.getBytes(CHARSET);
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+		buffer.put(bytes);
+		buffer.put(LINE_END);
+		return new SharedMessage(buffer, null);
+	}
+
+	/**
+	 * Zapisuje liczbę w formacie %f. Wartości nieskończone, NaN i bardzo duże
+	 * zapisywane są przez Float.toString.
+	 * 
+	 * @param buffer
+	 * @param value
+	 */
+	static void putFloat(ByteBuffer buffer, float value) {
+		if (Float.isNaN(value) || Float.isInfinite(value)
+				|| Math.abs(value) >= 1e12f) {
+			buffer.put(Float.toString(value).getBytes(CHARSET));
+			return;
+		}
+		long scaled = Math.round(Math.abs((double) value) * FRACTION_SCALE);
+		if (value < 0 && scaled != 0) {
+			buffer.put((byte) '-');
+		}
+		putLong(buffer, scaled / FRACTION_SCALE);
+		buffer.put((byte) '.');
+		long fraction = scaled % FRACTION_SCALE;
+		for (long divisor = FRACTION_SCALE / 10; divisor > 0; divisor /= 10) {
+			buffer.put((byte) ('0' + (fraction / divisor) % 10));
+		}
+	}
+
+	/**
+	 * Zapisuje nieujemną liczbę całkowitą w systemie dziesiętnym
+	 * 
+	 * @param buffer
+	 * @param value
+	 */
+	static void putLong(ByteBuffer buffer, long value) {
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int end = buffer.position() + digits;
+		for (int i = end - 1; i >= buffer.position(); i--) {
+			buffer.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		buffer.position(end);
+	}
+}
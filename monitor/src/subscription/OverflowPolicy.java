@@ -0,0 +1,40 @@
+package subscription;
+
+/**
+ * Zachowanie subskrypcji, gdy kolejka wychodząca klienta jest pełna (klient
+ * nie nadąża odbierać)
+ */
+public enum OverflowPolicy {
+	/**
+	 * Najstarsza niewysłana wiadomość jest usuwana z kolejki
+	 */
+	DROP_OLDEST,
+	/**
+	 * Niewysłane wiadomości zastępowane są najnowszą wartością
+	 */
+	CONFLATE,
+	/**
+	 * Klient jest rozłączany
+	 */
+	DISCONNECT;
+
+	/**
+	 * Odczytuje politykę z nazwy (wielkość liter i '-' zamiast '_' bez
+	 * znaczenia), np. "drop-oldest"
+	 *
+	 * @param name
+	 * @return null dla nieznanej nazwy
+	 */
+	public static OverflowPolicy parse(String name) {
+		if (name == null) {
+			return null;
+		}
+		String normalized = name.trim().toUpperCase().replace('-', '_');
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equals(normalized)) {
+				return policy;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,428 @@
+package subscription;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import network.ChannelSelectionHandler;
+import network.MessageQueue;
+import network.SharedMessage;
+
+/**
+ * Połączenie jednego klienta portu strumieniowego ({@link SubscriptionServer})
+ * z ograniczoną kolejką wychodzącą.
+ *
+ * Wiadomość wysyłana jest od razu, jeżeli kolejka jest pusta. To, czego nie
+ * udało się zapisać, czeka w kolejce (jako widoki współdzielonych buforów), a
+ * kanał zgłasza w MessageQueue gotowość do zapisu - kolejka dosyłana jest
+ * jednym zapisem zbierającym (gathering write) w wątku reaktora, nigdy nie
+ * blokując wątku sensora. Po przepełnieniu kolejki stosowana jest polityka
+ * subskrypcji, której wiadomość się nie zmieściła ({@link OverflowPolicy}),
+ * więc wolny klient nie wpływa na pozostałych.
+ *
+ * Z kanału czytane są komendy SUB/UNSUB; przy okazji wykrywane jest
+ * zamknięcie połączenia przez klienta.
+ */
+class SubscriberConnection implements ChannelSelectionHandler {
+
+	private static final int MAX_COMMAND_LENGTH = 256;
+
+	/**
+	 * Wiadomość czekająca w kolejce; tworzona tylko wtedy, gdy nie udało się
+	 * jej wysłać od razu
+	 */
+	private static final class Pending {
+
+		Pending(SharedMessage message, ByteBuffer view,
+				Subscription.Feed owner) {
+			this.message = message;
+			this.view = view;
+			this.owner = owner;
+		}
+
+		final SharedMessage message;
+		final ByteBuffer view;
+		// null dla odpowiedzi na komendy - nigdy nie są usuwane
+		final Subscription.Feed owner;
+	}
+
+	SubscriberConnection(SubscriptionServer server, SocketChannel socket) {
+		this.server = server;
+		this.socket = socket;
+		this.messageQueue = server.getMessageQueue();
+	}
+
+	SocketChannel getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Wysyła wiadomość subskrypcji lub dopisuje ją do kolejki
+	 *
+	 * @param message
+	 * @param owner
+	 *            strumień sensora w subskrypcji; ustawienia subskrypcji
+	 *            decydują o zachowaniu przy przepełnieniu kolejki
+	 * @param sequence
+	 *            numer pomiaru w historii sensora
+	 * @return false, jeżeli kolejka jest pełna, a polityka każe rozłączyć
+	 *         klienta
+	 * @throws IOException
+	 *             klient jest niedostępny
+	 */
+	synchronized boolean send(SharedMessage message, Subscription.Feed owner,
+			long sequence) throws IOException {
+		if (closed) {
+			return true;
+		}
+		if (!replayMarks.isEmpty()) {
+			Long mark = replayMarks.get(owner);
+			if (mark != null) {
+				if (sequence < mark) {
+					// pomiar był już w historii wysłanej po SUB
+					return true;
+				}
+				replayMarks.remove(owner);
+			}
+		}
+		ByteBuffer view = message.view();
+		if (pending.isEmpty()) {
+			socket.write(view);
+			if (view.hasRemaining()) {
+				enqueue(view, message, owner);
+				messageQueue.setInterestOps(socket, SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+			}
+			return true;
+		}
+
+		// kolejka niepusta - zostanie dosłana po zgłoszeniu OP_WRITE
+		SubscriptionOptions options = owner.getSubscription().getOptions();
+		if (pending.size() >= options.getMaxQueued()) {
+			switch (options.getOverflow()) {
+			case DISCONNECT:
+				return false;
+			case CONFLATE:
+				// niewysłane wiadomości tego sensora w tej subskrypcji to
+				// nieaktualne wartości; jeżeli nie ma żadnej - najstarsza
+				// w ogóle
+				if (dropUnsent(owner, Integer.MAX_VALUE) == 0) {
+					dropUnsent(null, 1);
+				}
+				break;
+			default:
+				dropUnsent(null, 1);
+				break;
+			}
+			if (pending.size() >= options.getMaxQueued()) {
+				// w kolejce nie ma niczego, co można usunąć
+				dropped++;
+				return true;
+			}
+		}
+		enqueue(view, message, owner);
+		return true;
+	}
+
+	/**
+	 * Wysyła odpowiedź na komendę. Odpowiedzi nie podlegają limitowi kolejki.
+	 */
+	private void reply(String text) throws IOException {
+		sendUnlimited(MessageEncoder.encodeLine(text));
+	}
+
+	/**
+	 * Wysyła wiadomość z pominięciem limitu kolejki i przejmuje referencję
+	 * wywołującego
+	 */
+	private synchronized void sendUnlimited(SharedMessage message)
+			throws IOException {
+		if (closed) {
+			message.release();
+			return;
+		}
+		ByteBuffer view = message.view();
+		if (pending.isEmpty()) {
+			socket.write(view);
+		}
+		if (view.hasRemaining()) {
+			boolean wasEmpty = pending.isEmpty();
+			enqueue(view, message, null);
+			if (wasEmpty) {
+				messageQueue.setInterestOps(socket, SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+			}
+		}
+		message.release();
+	}
+
+	private void enqueue(ByteBuffer view, SharedMessage message,
+			Subscription.Feed owner) {
+		pending.add(new Pending(message.retain(), view, owner));
+		queuedBytes += view.remaining();
+	}
+
+	/**
+	 * Usuwa z kolejki do limit najstarszych wiadomości strumienia owner (null -
+	 * dowolnego), których wysyłanie jeszcze się nie zaczęło (częściowo
+	 * wysłanej nie można usunąć bez zerwania strumienia)
+	 *
+	 * @return liczba usuniętych wiadomości
+	 */
+	private int dropUnsent(Subscription.Feed owner, int limit) {
+		int removed = 0;
+		Iterator<Pending> iterator = pending.iterator();
+		while (removed < limit && iterator.hasNext()) {
+			Pending entry = iterator.next();
+			if (entry.view.position() > 0 || entry.owner == null
+					|| (owner != null && entry.owner != owner)) {
+				continue;
+			}
+			queuedBytes -= entry.view.remaining();
+			iterator.remove();
+			entry.message.release();
+			removed++;
+		}
+		dropped += removed;
+		return removed;
+	}
+
+	@Override
+	public void onSelected(SelectableChannel channel, int readyOperationsMask) {
+		try {
+			if ((readyOperationsMask & SelectionKey.OP_READ) != 0) {
+				if (socket.read(commandBuffer) < 0) {
+					close();
+					return;
+				}
+				if (!readCommands()) {
+					System.err.println("Subscriber command too long");
+					close();
+					return;
+				}
+			}
+			if ((readyOperationsMask & SelectionKey.OP_WRITE) != 0) {
+				synchronized (this) {
+					flush();
+					if (pending.isEmpty() && !closed) {
+						// zmiana pod blokadą - send() nie może w tym czasie
+						// zgłosić OP_WRITE, który zostałby tu nadpisany
+						messageQueue.setInterestOps(socket,
+								SelectionKey.OP_READ);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Client no longer available");
+			close();
+		}
+	}
+
+	/**
+	 * Wykonuje wszystkie pełne komendy z bufora
+	 *
+	 * @return false, jeżeli komenda nie mieści się w buforze
+	 */
+	private boolean readCommands() throws IOException {
+		byte[] data = commandBuffer.array();
+		int end = commandBuffer.position();
+		int lineStart = 0;
+		for (int i = 0; i < end; i++) {
+			if (data[i] == '\n') {
+				execute(new String(data, lineStart, i - lineStart,
+						MessageEncoder.CHARSET).trim());
+				lineStart = i + 1;
+			}
+		}
+		if (lineStart == 0 && end == data.length) {
+			return false;
+		}
+		commandBuffer.position(lineStart);
+		commandBuffer.limit(end);
+		commandBuffer.compact();
+		return true;
+	}
+
+	private void execute(String command) throws IOException {
+		if (command.isEmpty()) {
+			return;
+		}
+		String[] tokens = command.split("\\s+");
+		int id;
+		try {
+			id = tokens.length == 2 ? Integer.parseInt(tokens[1]) : -1;
+		} catch (NumberFormatException e) {
+			id = -1;
+		}
+		Subscription subscription = id < 0 ? null : server.find(id);
+
+		if (tokens[0].equalsIgnoreCase("SUB") && subscription != null
+				&& subscription.isValid()) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				if (subscriptions.contains(subscription)) {
+					reply("OK SUB " + id);
+					return;
+				}
+				subscriptions.add(subscription);
+				subscription.addClient(this);
+				reply("OK SUB " + id);
+				if (subscription.getOptions().isReplay()) {
+					// pod blokadą - wiadomości bieżące czekają na send() i
+					// trafią do kolejki po historii
+					SharedMessage replay = subscription
+							.encodeReplay(replayMarks);
+					if (replay != null) {
+						sendUnlimited(replay);
+					}
+				}
+			}
+		} else if (tokens[0].equalsIgnoreCase("UNSUB") && subscription != null) {
+			synchronized (this) {
+				subscriptions.remove(subscription);
+				removeReplayMarks(subscription);
+			}
+			subscription.removeClient(this);
+			reply("OK UNSUB " + id);
+		} else {
+			reply("ERR " + command);
+		}
+	}
+
+	private void removeReplayMarks(Subscription subscription) {
+		Iterator<Subscription.Feed> iterator = replayMarks.keySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getSubscription() == subscription) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Subskrypcja została usunięta - klient dostaje informację END
+	 *
+	 * @param subscription
+	 */
+	void subscriptionClosed(Subscription subscription) {
+		synchronized (this) {
+			if (!subscriptions.remove(subscription)) {
+				return;
+			}
+			removeReplayMarks(subscription);
+		}
+		try {
+			reply("END " + subscription.getId());
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Dosyła zaległe wiadomości jednym zapisem zbierającym
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		if (gather.length < pending.size()) {
+			gather = new ByteBuffer[Math.max(pending.size(), gather.length * 2)];
+		}
+		int count = 0;
+		for (Pending entry : pending) {
+			gather[count++] = entry.view;
+		}
+		queuedBytes -= socket.write(gather, 0, count);
+		for (int i = 0; i < count; i++) {
+			gather[i] = null;
+		}
+		while (!pending.isEmpty() && !pending.peek().view.hasRemaining()) {
+			pending.poll().message.release();
+		}
+	}
+
+	/**
+	 * Liczba bajtów czekających na wysłanie
+	 *
+	 * @return
+	 */
+	long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * Liczba wiadomości usuniętych z powodu przepełnienia kolejki
+	 *
+	 * @return
+	 */
+	long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Zamyka połączenie i wypisuje klienta ze wszystkich subskrypcji
+	 */
+	void close() {
+		Subscription[] joined;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			messageQueue.unregisterChannel(socket);
+			Pending entry;
+			while ((entry = pending.poll()) != null) {
+				entry.message.release();
+			}
+			queuedBytes = 0;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// mały problem - można olać :P
+			}
+			joined = subscriptions.toArray(new Subscription[subscriptions
+					.size()]);
+			subscriptions.clear();
+			replayMarks.clear();
+		}
+		for (Subscription subscription : joined) {
+			subscription.removeClient(this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		String address;
+		try {
+			address = String.valueOf(socket.getRemoteAddress());
+		} catch (IOException e) {
+			address = "?";
+		}
+		return address + " queuedBytes=" + queuedBytes + " dropped="
+				+ dropped;
+	}
+
+	private final SubscriptionServer server;
+	private final SocketChannel socket;
+	private final MessageQueue messageQueue;
+	private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+	private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+	private final ByteBuffer commandBuffer = ByteBuffer
+			.allocate(MAX_COMMAND_LENGTH);
+	// strumień -> numer pierwszego pomiaru, którego nie było w historii
+	// wysłanej po SUB; usuwane przy pierwszej nowszej wiadomości
+	private final HashMap<Subscription.Feed, Long> replayMarks = new HashMap<Subscription.Feed, Long>();
+	private ByteBuffer[] gather = new ByteBuffer[4];
+	private volatile long queuedBytes;
+	private volatile long dropped;
+	private boolean closed;
+}
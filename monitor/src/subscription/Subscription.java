@@ -1,166 +1,572 @@
 package subscription;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Random;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import aggregation.WindowedAggregates;
 
 import sensors.Sensor;
+import sensors.SensorCreationListener;
 import sensors.SensorDataCollector;
+import sensors.SensorHistory;
+import sensors.SensorPattern;
 import sensors.SensorUpdateListener;
 
-import network.ChannelSelectionHandler;
+import network.BufferPool;
 import network.MessageQueue;
+import network.ScheduledTask;
+import network.SharedMessage;
 
 /**
- * Klasa zajmująca się dystrybuowaniem pomiarów do zainteresowanych klientów
- * 
- * 
+ * Klasa zajmująca się dystrybuowaniem pomiarów do zainteresowanych klientów.
+ * Klienci zapisują się na subskrypcję przez wspólny port strumieniowy
+ * ({@link SubscriptionServer}).
+ *
+ * Subskrypcja dotyczy jednego sensora albo wszystkich sensorów pasujących do
+ * wzorca ({@link SensorPattern}) - także tych, które pojawią się później.
+ * Filtry i limit wiadomości działają osobno dla każdego sensora.
+ *
+ * Subskrypcja jest dzierżawiona: jeżeli przez czas dzierżawy nikt jej nie
+ * odnowił ({@link #renewLease()}) i nie ma zapisanych klientów portu
+ * strumieniowego, jest zamykana przez zadanie w kole czasowym MessageQueue.
  */
-public class Subscription implements ChannelSelectionHandler,
-		SensorUpdateListener {
-	private static int instancesCount = 0;
+public class Subscription implements SensorCreationListener {
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+	// wspólna pula buforów wiadomości wszystkich subskrypcji
+	private static final BufferPool MESSAGE_POOL = new BufferPool(256, 4096);
 
-	public Subscription(MessageQueue messageQueue, Sensor sensor,
-			SensorDataCollector collector) {
-		this.sensor = sensor;
-		this.id = instancesCount++;
-		this.messageQueue = messageQueue;
-		this.collector = collector;
+	/**
+	 * Strumień pomiarów jednego sensora w ramach subskrypcji, ze stanem filtra
+	 * i limitu wiadomości
+	 */
+	final class Feed implements SensorUpdateListener {
 
-		try {
-			serverChannel = ServerSocketChannel.open();
-			boolean bound = false;
-			while (!bound) {
-				try {
-					// losuj port pomiedzy 1000, a 65000
-					int port = 1000 + new Random().nextInt(64000);
-					serverChannel.bind(new InetSocketAddress(port));
-					bound = true;
-					this.port = port;
-					System.out.printf("Subskrybcja %s:%s na porcie %d\n",
-							sensor.getResource(), sensor.getMetric(), port);
-				} catch (IOException e) {
-					// port zajety; próbuj jeszcze raz
+		Feed(Sensor sensor) {
+			this.sensor = sensor;
+		}
+
+		Subscription getSubscription() {
+			return Subscription.this;
+		}
+
+		@Override
+		public void onUpdate(Sensor sensor) {
+			float value = sensor.getLastMeasurement();
+			if (filtered || minInterval > 0) {
+				synchronized (flushTask) {
+					if (filtered && !passesFilter(value)) {
+						return;
+					}
+					if (minInterval > 0 && !acquireSend()) {
+						return;
+					}
+					if (filtered) {
+						markSent(value);
+					}
+				}
+			}
+			publish(this, value);
+		}
+
+		@Override
+		public void onDisconnected(Sensor sensor) {
+			// sensor wzorca może połączyć się ponownie - subskrypcja zostaje
+			if (pattern == null) {
+				close();
+			}
+		}
+
+		@Override
+		public void onRemoved(Sensor sensor) {
+			if (pattern == null) {
+				close();
+			} else {
+				feeds.remove(sensor, this);
+			}
+		}
+
+		/**
+		 * Filtr deadband/próg względem ostatniej wysłanej wartości, sprawdzany
+		 * przed kodowaniem wiadomości. Nie zmienia stanu - ten zmienia dopiero
+		 * {@link #markSent(float)}, gdy wartość faktycznie zostanie wysłana.
+		 * Wywoływany pod blokadą flushTask.
+		 *
+		 * @param value
+		 * @return true, jeżeli wartość należy wysłać
+		 */
+		private boolean passesFilter(float value) {
+			if (!anySent) {
+				return true;
+			}
+			if (!Float.isNaN(threshold) && (value >= threshold) != lastAbove) {
+				return true;
+			}
+			if (!Float.isNaN(deadband)
+					&& Math.abs(value - lastSent) > deadband) {
+				return true;
+			}
+			return !Float.isNaN(relativeDeadband)
+					&& Math.abs(value - lastSent) > relativeDeadband
+							* Math.abs(lastSent);
+		}
+
+		/**
+		 * Zapamiętuje wysłaną wartość w stanie filtra
+		 */
+		private void markSent(float value) {
+			anySent = true;
+			lastSent = value;
+			lastAbove = value >= threshold;
+		}
+
+		/**
+		 * Sprawdza limit wiadomości na sekundę. Jeżeli od ostatniej wiadomości
+		 * minęło za mało czasu, planuje w kole czasowym MessageQueue wysłanie
+		 * najnowszej wartości po upływie odstępu - pośrednie wartości
+		 * przepadają. Wywoływany pod blokadą flushTask.
+		 *
+		 * @return true, jeżeli wiadomość można wysłać od razu
+		 */
+		private boolean acquireSend() {
+			long now = MessageQueue.currentMillis();
+			if (now >= nextSend) {
+				nextSend = now + minInterval;
+				skipped = false;
+				return true;
+			}
+			skipped = true;
+			if (!flushScheduled) {
+				flushScheduled = true;
+				server.getMessageQueue().schedule(flushTask, nextSend - now);
+			}
+			return false;
+		}
+
+		// wysłanie wartości pominiętej przez limit maxRate; filtr jest
+		// sprawdzany ponownie dla wartości aktualnej w chwili wysłania
+		private final ScheduledTask flushTask = new ScheduledTask() {
+			@Override
+			public void run() {
+				float value;
+				synchronized (this) {
+					long now = MessageQueue.currentMillis();
+					if (!skipped) {
+						// najnowsza wartość została już wysłana
+						flushScheduled = false;
+						return;
+					}
+					if (now < nextSend) {
+						server.getMessageQueue().schedule(this, nextSend - now);
+						return;
+					}
+					flushScheduled = false;
+					skipped = false;
+					value = sensor.getLastMeasurement();
+					if (filtered && !passesFilter(value)) {
+						return;
+					}
+					nextSend = now + minInterval;
+					if (filtered) {
+						markSent(value);
+					}
+				}
+				if (valid) {
+					publish(Feed.this, value);
 				}
 			}
+		};
+
+		final Sensor sensor;
+		// stan filtra wartości i limitu - chroniony blokadą flushTask
+		private boolean anySent;
+		private float lastSent;
+		private boolean lastAbove;
+		private long nextSend;
+		private boolean flushScheduled;
+		// pominięto wartość, której jeszcze nie wysłano
+		private boolean skipped;
+	}
+
+	public Subscription(SubscriptionServer server, Sensor sensor,
+			SensorDataCollector collector) {
+		this(server, sensor, collector, new SubscriptionOptions());
+	}
+
+	public Subscription(SubscriptionServer server, Sensor sensor,
+			SensorDataCollector collector, SubscriptionOptions options) {
+		this(server, sensor, null, collector, options, null);
+	}
+
+	/**
+	 * Subskrypcja sensora; z opcją window - agregatu okienkowego tego sensora,
+	 * zwalnianego przy zamknięciu subskrypcji
+	 */
+	public Subscription(SubscriptionServer server, Sensor sensor,
+			SensorDataCollector collector, SubscriptionOptions options,
+			WindowedAggregates windows) {
+		this(server, sensor, null, collector, options, windows);
+	}
 
-			messageQueue.registerChannel(serverChannel, this,
-					SelectionKey.OP_ACCEPT);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.exit(1); // temporary
+	/**
+	 * Subskrypcja wszystkich sensorów pasujących do wzorca
+	 */
+	public Subscription(SubscriptionServer server, SensorPattern pattern,
+			SensorDataCollector collector, SubscriptionOptions options) {
+		this(server, null, pattern, collector, options, null);
+	}
+
+	private Subscription(SubscriptionServer server, Sensor sensor,
+			SensorPattern pattern, SensorDataCollector collector,
+			SubscriptionOptions options, WindowedAggregates windows) {
+		if (sensor != null && windows != null && options.getWindow() != null) {
+			// agregat wspólny dla wszystkich subskrypcji tego okna
+			sensor = windows.acquire(sensor, options.getWindow());
+			this.windows = windows;
+		} else {
+			this.windows = null;
 		}
+		this.sensor = sensor;
+		this.pattern = pattern;
+		this.options = options;
+		this.id = NEXT_ID.getAndIncrement();
+		this.tag = MessageEncoder.tag(id);
+		this.minInterval = options.getMinIntervalMillis();
+		this.filtered = options.isFiltered();
+		this.deadband = options.getDeadband();
+		this.relativeDeadband = options.getRelativeDeadband();
+		this.threshold = options.getThreshold();
+		this.server = server;
+		this.collector = collector;
 
-		collector.addSensorUpdateListener(sensor, this);
+		server.add(this);
+		if (pattern != null) {
+			collector.addSensorPatternListener(pattern, this);
+		} else if (sensor != null) {
+			attach(sensor);
+		}
+		renewLease();
+		server.getMessageQueue().schedule(leaseTask, options.getLeaseMillis());
+	}
+
+	/**
+	 * Przedłuża dzierżawę subskrypcji o jej czas dzierżawy
+	 */
+	public void renewLease() {
+		leaseExpires = MessageQueue.currentMillis() + options.getLeaseMillis();
+	}
 
+	/**
+	 * Czas do wygaśnięcia dzierżawy w ms
+	 *
+	 * @return
+	 */
+	public long getLeaseRemaining() {
+		return Math.max(0, leaseExpires - MessageQueue.currentMillis());
 	}
 
+	// sprawdzenie dzierżawy, w wątku akceptora MessageQueue
+	private final ScheduledTask leaseTask = new ScheduledTask() {
+		@Override
+		public void run() {
+			if (!valid) {
+				return;
+			}
+			if (!clients.isEmpty()) {
+				// zapisani klienci utrzymują subskrypcję
+				renewLease();
+			}
+			long remaining = leaseExpires - MessageQueue.currentMillis();
+			if (remaining > 0) {
+				server.getMessageQueue().schedule(this, remaining);
+				return;
+			}
+			System.out.printf("Dzierzawa subskrypcji o id %d wygasla\n", id);
+			close();
+		}
+	};
+
+	/**
+	 * Port strumieniowy, na którym można zapisać się na subskrypcję
+	 *
+	 * @return
+	 */
 	public int getPort() {
-		return port;
+		return server.getPort();
 	}
 
+	/**
+	 * Sensor subskrypcji (null dla subskrypcji wzorca)
+	 *
+	 * @return
+	 */
 	public Sensor getSensor() {
 		return sensor;
 	}
 
+	/**
+	 * Wzorzec subskrypcji (null dla subskrypcji jednego sensora)
+	 *
+	 * @return
+	 */
+	public SensorPattern getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Zasób sensora lub wzorzec zasobu
+	 *
+	 * @return
+	 */
+	public String getResource() {
+		return pattern != null ? pattern.getResource() : sensor.getResource();
+	}
+
+	/**
+	 * Metryka sensora lub wzorzec metryki
+	 *
+	 * @return
+	 */
+	public String getMetric() {
+		return pattern != null ? pattern.getMetric() : sensor.getMetric();
+	}
+
+	/**
+	 * Liczba sensorów obsługiwanych przez subskrypcję
+	 *
+	 * @return
+	 */
+	public int getSensorCount() {
+		return feeds.size();
+	}
+
 	public int getId() {
 		return id;
 	}
 
-	@Override
-	public void onSelected(SelectableChannel channel, int readyOperationsMask) {
-		if ((readyOperationsMask & SelectionKey.OP_ACCEPT) != 0) {
-			ServerSocketChannel serverChannel = (ServerSocketChannel) channel;
-			try {
-				SocketChannel socket = serverChannel.accept();
-				System.out.printf("New connection from client at %s\n", socket
-						.getRemoteAddress().toString());
+	public SubscriptionOptions getOptions() {
+		return options;
+	}
 
-				clients.add(socket);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				System.exit(1); // temporary
-			}
+	/**
+	 * Liczba klientów rozłączonych, bo nie nadążali odbierać
+	 *
+	 * @return
+	 */
+	public long getDisconnects() {
+		return disconnects.get();
+	}
+
+	/**
+	 * Stan kolejek podłączonych klientów - po jednej linii na klienta
+	 *
+	 * @return
+	 */
+	public ArrayList<String> getClientStats() {
+		ArrayList<String> stats = new ArrayList<String>();
+		for (SubscriberConnection client : clients) {
+			stats.add(client.toString());
 		}
+		return stats;
 	}
 
-	@Override
-	public void onUpdate(Sensor sensor) {
-		String msg = createMessage(sensor);
-		ByteBuffer buff = ByteBuffer.wrap(msg.getBytes());
-		Iterator<SocketChannel> it = clients.iterator();
-		while (it.hasNext()) {
-			try {
-				SocketChannel socket = it.next();
-				socket.write(buff);
-			} catch (IOException e) {
-				System.out.println("Client no longer available");
-				it.remove();
+	/**
+	 * Bufor wiadomości dla klientów HTTP, tworzony przy pierwszym użyciu
+	 *
+	 * @return
+	 */
+	public EventLog getEventLog() {
+		EventLog log = eventLog;
+		if (log == null) {
+			synchronized (this) {
+				if (eventLog == null) {
+					eventLog = new EventLog(EventLog.DEFAULT_CAPACITY);
+				}
+				log = eventLog;
 			}
 		}
+		return log;
 	}
 
+	/**
+	 * Dopisuje klienta portu strumieniowego (komenda SUB)
+	 *
+	 * @param client
+	 */
+	void addClient(SubscriberConnection client) {
+		clients.addIfAbsent(client);
+	}
+
+	/**
+	 * Wypisuje klienta (komenda UNSUB lub rozłączenie)
+	 *
+	 * @param client
+	 */
+	void removeClient(SubscriberConnection client) {
+		clients.remove(client);
+	}
+
+	/**
+	 * Nowy (lub istniejący w chwili utworzenia subskrypcji) sensor pasujący
+	 * do wzorca
+	 */
 	@Override
-	public void onDisconnected(Sensor sensor) {
-		close();
+	public void onSensorCreated(Sensor sensor) {
+		attach(sensor);
 	}
 
-	private String createMessage(Sensor sensor) {
-		// format: #zasob#metryka#timestamp#wartosc#
-		return String.format("#%s#%s#%f#", sensor.getResource(),
-				sensor.getMetric(), sensor.getLastMeasurement());
+	private void attach(Sensor sensor) {
+		Feed feed = new Feed(sensor);
+		if (valid && feeds.putIfAbsent(sensor, feed) == null) {
+			collector.addSensorUpdateListener(sensor, feed);
+			if (!valid) {
+				// close() w międzyczasie - mógł nie zobaczyć tego słuchacza
+				feeds.remove(sensor, feed);
+				collector.removeSensorListener(sensor, feed);
+			}
+		}
 	}
 
-	public void close() {
-		if (serverChannel != null) {
-			messageQueue.unregisterChannel(serverChannel);
-			serverChannel = null;
-			for (SocketChannel client : clients) {
+	/**
+	 * Koduje w jednym buforze pomiary z historii wszystkich sensorów
+	 * subskrypcji (według opcji replay). Wywoływane po dopisaniu klienta, więc
+	 * każdy pomiar, którego nie ma w historii w chwili odczytu, dotrze do
+	 * klienta na bieżąco.
+	 *
+	 * @param marks
+	 *            dla każdego sensora numer pierwszego pomiaru, którego nie ma
+	 *            w wyniku - wcześniejsze wiadomości bieżące klient musi pominąć
+	 * @return null, jeżeli historia jest pusta
+	 */
+	SharedMessage encodeReplay(HashMap<Feed, Long> marks) {
+		ArrayList<Feed> replayed = new ArrayList<Feed>(feeds.values());
+		long[] starts = new long[replayed.size()];
+		long[] ends = new long[replayed.size()];
+		long now = System.currentTimeMillis();
+		long size = 0;
+		for (int i = 0; i < replayed.size(); i++) {
+			Feed feed = replayed.get(i);
+			SensorHistory history = feed.sensor.getHistory();
+			ends[i] = history.getNextSequence();
+			starts[i] = options.getReplayCount() > 0 ? Math.max(
+					history.getFirstSequence(),
+					ends[i] - options.getReplayCount()) : history
+					.findSequence(now - options.getReplayMillis());
+			starts[i] = Math.min(starts[i], ends[i]);
+			size += (ends[i] - starts[i])
+					* MessageEncoder.maxLineSize(tag, feed.sensor);
+			marks.put(feed, ends[i]);
+		}
+		if (size == 0 || size > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		for (int i = 0; i < replayed.size(); i++) {
+			Feed feed = replayed.get(i);
+			SensorHistory.Cursor cursor = feed.sensor.getHistory().cursor(
+					starts[i]);
+			while (cursor.next() && cursor.getSequence() < ends[i]) {
+				MessageEncoder.putLine(buffer, tag, feed.sensor,
+						cursor.getValue());
+			}
+		}
+		return new SharedMessage(buffer, null);
+	}
+
+	/**
+	 * Wysyła klientom wartość sensora (tę, którą sprawdził filtr)
+	 */
+	private void publish(Feed feed, float value) {
+		// numer pomiaru w historii - pozwala pominąć pomiary wysłane już
+		// klientowi z historii (opcja replay)
+		long sequence = feed.sensor.getHistory().getNextSequence() - 1;
+		// kodowanie raz na aktualizację, niezależnie od liczby klientów
+		SharedMessage message = MessageEncoder.encode(tag, feed.sensor,
+				value, MESSAGE_POOL);
+		try {
+			EventLog log = eventLog;
+			if (log != null) {
+				log.add(message);
+			}
+			for (SubscriberConnection client : clients) {
 				try {
-					client.close();
+					if (!client.send(message, feed, sequence)) {
+						System.out.printf(
+								"Slow client %s disconnected by subscription %d\n",
+								client, id);
+						disconnects.incrementAndGet();
+						client.close();
+					}
 				} catch (IOException e) {
-					// mały problem - można olać :P
+					System.out.println("Client no longer available");
+					client.close();
 				}
 			}
+		} finally {
+			message.release();
+		}
+	}
+
+	public synchronized void close() {
+		if (valid) {
+			valid = false;
+			server.remove(this);
+			if (pattern != null) {
+				collector.removeSensorPatternListener(pattern, this);
+			}
+			for (Feed feed : feeds.values()) {
+				collector.removeSensorListener(feed.sensor, feed);
+			}
+			feeds.clear();
+			// klienci zostają połączeni - dostają tylko informację END
+			for (SubscriberConnection client : clients) {
+				client.subscriptionClosed(this);
+			}
 			clients.clear();
-			collector.removeSensorListener(sensor, this);
+			if (windows != null) {
+				windows.release(sensor);
+			}
 		}
 	}
 
 	/**
-	 * Sprawdza czy skojarzony channel jest prawidlowy. Jezeli nie, to obiekt
-	 * nie nadaje się dłużej do użytku
-	 * 
+	 * Sprawdza czy subskrypcja jest aktywna. Jezeli nie, to obiekt nie nadaje
+	 * się dłużej do użytku
+	 *
 	 * @return
 	 */
 	public boolean isValid() {
-		return (serverChannel != null);
-	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			close();
-		} finally {
-			super.finalize();
-		}
+		return valid;
 	}
 
-	private ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>();
-	private ServerSocketChannel serverChannel;
-	private MessageQueue messageQueue;
+	// ustawienia filtra wartości
+	private final boolean filtered;
+	private final float deadband;
+	private final float relativeDeadband;
+	private final float threshold;
+	private final long minInterval;
+	private final AtomicLong disconnects = new AtomicLong();
+	// dodawani i usuwani przez reaktory połączeń klientów, obsługiwani w
+	// wątku sensora
+	private CopyOnWriteArrayList<SubscriberConnection> clients = new CopyOnWriteArrayList<SubscriberConnection>();
+	// tylko gdy są klienci HTTP
+	private volatile EventLog eventLog;
+	private final ConcurrentHashMap<Sensor, Feed> feeds = new ConcurrentHashMap<Sensor, Feed>();
+	private volatile boolean valid = true;
+	private volatile long leaseExpires;
+	private final WindowedAggregates windows;
+	private SubscriptionServer server;
 	private SensorDataCollector collector;
 	private Sensor sensor;
-	private int port;
+	private SensorPattern pattern;
+	private SubscriptionOptions options;
+	private final byte[] tag;
 	private int id;
 
 }
@@ -0,0 +1,273 @@
+package subscription;
+
+import aggregation.WindowSpec;
+
+/**
+ * Ustawienia subskrypcji przekazywane przy jej tworzeniu, w treści żądania
+ * POST jako linie <code>klucz=wartość</code> po nazwie zasobu i metryki.
+ *
+ * Wartości domyślne można zmienić właściwościami systemowymi
+ * -Dmonitor.subscriber.overflow, -Dmonitor.subscriber.queue i
+ * -Dmonitor.subscription.lease (ms).
+ *
+ * <ul>
+ * <li>lease - czas dzierżawy, np. lease=60s; subskrypcja bez klientów
+ * portu strumieniowego, której dzierżawy nikt nie odnowił, jest usuwana</li>
+ * <li>overflow - polityka przy przepełnieniu kolejki klienta
+ * (drop-oldest, conflate, disconnect)</li>
+ * <li>queue - maksymalna liczba wiadomości w kolejce klienta</li>
+ * <li>maxRate - maksymalna liczba wiadomości na sekundę; pośrednie wartości
+ * są pomijane, wysyłana jest zawsze najnowsza</li>
+ * <li>deadband - wysyłaj tylko, gdy wartość zmieniła się o więcej niż podana
+ * wartość bezwzględna od ostatnio wysłanej</li>
+ * <li>relativeDeadband - jak deadband, ale względnie (0.01 = 1% ostatnio
+ * wysłanej wartości)</li>
+ * <li>threshold - wysyłaj, gdy wartość przekroczy próg w którąkolwiek
+ * stronę</li>
+ * <li>replay - po zapisaniu się klient dostaje najpierw ostatnie pomiary z
+ * historii: liczba pomiarów (replay=100) lub czas (replay=30s), a potem
+ * pomiary na bieżąco - bez przerwy i bez powtórzeń</li>
+ * <li>window - zamiast surowych pomiarów agregat w przesuwnym oknie, np.
+ * avg:60s, max:5m, p95:1h (funkcje avg, sum, min, max, count, pNN)</li>
+ * </ul>
+ * Przy kilku filtrach wystarczy spełnienie jednego z nich; pierwsza wartość
+ * jest wysyłana zawsze.
+ */
+public class SubscriptionOptions {
+
+	public static final OverflowPolicy DEFAULT_OVERFLOW = parseDefaultOverflow();
+	public static final int DEFAULT_MAX_QUEUED = Integer.getInteger(
+			"monitor.subscriber.queue", 64);
+	public static final long DEFAULT_LEASE = Long.getLong(
+			"monitor.subscription.lease", 300000);
+
+	/**
+	 * Ustawia opcję z linii <code>klucz=wartość</code>
+	 *
+	 * @param line
+	 * @return false, jeżeli opcja jest nieznana lub wartość nieprawidłowa
+	 */
+	public boolean set(String line) {
+		int separator = line.indexOf('=');
+		if (separator < 0) {
+			return false;
+		}
+		String key = line.substring(0, separator).trim();
+		String value = line.substring(separator + 1).trim();
+		try {
+			if (key.equals("lease")) {
+				long millis = WindowSpec.parseDuration(value);
+				if (millis <= 0) {
+					return false;
+				}
+				leaseMillis = millis;
+			} else if (key.equals("overflow")) {
+				OverflowPolicy policy = OverflowPolicy.parse(value);
+				if (policy == null) {
+					return false;
+				}
+				overflow = policy;
+			} else if (key.equals("queue")) {
+				int queue = Integer.parseInt(value);
+				if (queue < 1) {
+					return false;
+				}
+				maxQueued = queue;
+			} else if (key.equals("maxRate")) {
+				double rate = Double.parseDouble(value);
+				if (!(rate > 0)) {
+					return false;
+				}
+				maxRate = rate;
+			} else if (key.equals("deadband")
+					|| key.equals("relativeDeadband")) {
+				float epsilon = Float.parseFloat(value);
+				if (!(epsilon >= 0) || Float.isInfinite(epsilon)) {
+					return false;
+				}
+				if (key.equals("deadband")) {
+					deadband = epsilon;
+				} else {
+					relativeDeadband = epsilon;
+				}
+			} else if (key.equals("threshold")) {
+				float limit = Float.parseFloat(value);
+				if (Float.isNaN(limit) || Float.isInfinite(limit)) {
+					return false;
+				}
+				threshold = limit;
+			} else if (key.equals("replay")) {
+				if (!value.isEmpty() && Character.isDigit(value.charAt(value.length() - 1))) {
+					int count = Integer.parseInt(value);
+					if (count < 0) {
+						return false;
+					}
+					replayCount = count;
+					replayMillis = 0;
+				} else {
+					long millis = WindowSpec.parseDuration(value);
+					if (millis < 0) {
+						return false;
+					}
+					replayMillis = millis;
+					replayCount = 0;
+				}
+			} else if (key.equals("window")) {
+				WindowSpec spec = WindowSpec.parse(value);
+				if (spec == null) {
+					return false;
+				}
+				window = spec;
+			} else {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Czas dzierżawy subskrypcji w ms
+	 *
+	 * @return
+	 */
+	public long getLeaseMillis() {
+		return leaseMillis;
+	}
+
+	public OverflowPolicy getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Maksymalna liczba wiadomości czekających na wysłanie do jednego klienta
+	 *
+	 * @return
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * Maksymalna liczba wiadomości na sekundę (0 - bez ograniczenia)
+	 *
+	 * @return
+	 */
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	/**
+	 * Minimalny odstęp pomiędzy wiadomościami w ms (0 - bez ograniczenia)
+	 *
+	 * @return
+	 */
+	public long getMinIntervalMillis() {
+		return maxRate > 0 ? Math.max(1, Math.round(1000 / maxRate)) : 0;
+	}
+
+	/**
+	 * Minimalna bezwzględna zmiana wartości (NaN - brak filtra)
+	 *
+	 * @return
+	 */
+	public float getDeadband() {
+		return deadband;
+	}
+
+	/**
+	 * Minimalna względna zmiana wartości (NaN - brak filtra)
+	 *
+	 * @return
+	 */
+	public float getRelativeDeadband() {
+		return relativeDeadband;
+	}
+
+	/**
+	 * Próg, którego przekroczenie powoduje wysłanie wartości (NaN - brak
+	 * filtra)
+	 *
+	 * @return
+	 */
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Liczba pomiarów z historii wysyłanych po zapisaniu się klienta (0 - bez
+	 * limitu liczby)
+	 *
+	 * @return
+	 */
+	public int getReplayCount() {
+		return replayCount;
+	}
+
+	/**
+	 * Okres historii w ms wysyłany po zapisaniu się klienta (0 - bez limitu
+	 * czasu)
+	 *
+	 * @return
+	 */
+	public long getReplayMillis() {
+		return replayMillis;
+	}
+
+	/**
+	 * Czy klient dostaje na początek pomiary z historii
+	 *
+	 * @return
+	 */
+	public boolean isReplay() {
+		return replayCount > 0 || replayMillis > 0;
+	}
+
+	/**
+	 * Okno agregatu (null - surowe pomiary)
+	 *
+	 * @return
+	 */
+	public WindowSpec getWindow() {
+		return window;
+	}
+
+	/**
+	 * Czy ustawiono którykolwiek filtr wartości
+	 *
+	 * @return
+	 */
+	public boolean isFiltered() {
+		return !Float.isNaN(deadband) || !Float.isNaN(relativeDeadband)
+				|| !Float.isNaN(threshold);
+	}
+
+	@Override
+	public String toString() {
+		return "lease=" + leaseMillis + "ms\noverflow=" + overflow.name().toLowerCase().replace('_', '-')
+				+ "\nqueue=" + maxQueued + "\nmaxRate=" + maxRate
+				+ "\ndeadband=" + deadband + "\nrelativeDeadband="
+				+ relativeDeadband + "\nthreshold=" + threshold
+				+ (replayCount > 0 ? "\nreplay=" + replayCount : "")
+				+ (replayMillis > 0 ? "\nreplay=" + replayMillis + "ms" : "")
+				+ (window != null ? "\nwindow=" + window : "");
+	}
+
+	private static OverflowPolicy parseDefaultOverflow() {
+		OverflowPolicy policy = OverflowPolicy.parse(System
+				.getProperty("monitor.subscriber.overflow"));
+		return policy == null ? OverflowPolicy.DROP_OLDEST : policy;
+	}
+
+	private long leaseMillis = DEFAULT_LEASE;
+	private OverflowPolicy overflow = DEFAULT_OVERFLOW;
+	private int maxQueued = DEFAULT_MAX_QUEUED;
+	private double maxRate;
+	private float deadband = Float.NaN;
+	private float relativeDeadband = Float.NaN;
+	private float threshold = Float.NaN;
+	private int replayCount;
+	private long replayMillis;
+	private WindowSpec window;
+}
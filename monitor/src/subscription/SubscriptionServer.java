@@ -0,0 +1,112 @@
+package subscription;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.ChannelSelectionHandler;
+import network.MessageQueue;
+
+/**
+ * Wspólny port strumieniowy wszystkich subskrypcji.
+ *
+ * Klient łączy się raz i w ramach jednego połączenia zapisuje się i wypisuje
+ * z dowolnej liczby subskrypcji komendami tekstowymi (po jednej w linii):
+ *
+ * <pre>
+ * SUB &lt;id&gt;
+ * UNSUB &lt;id&gt;
+ * </pre>
+ *
+ * Na każdą komendę serwer odpowiada linią <code>OK SUB 5</code> lub
+ * <code>ERR SUB 5</code>, a po usunięciu subskrypcji wysyła
+ * <code>END 5</code>. Pomiary przychodzą jako linie
+ * <code>#id#zasob#metryka#wartosc#</code> - linie danych zawsze zaczynają się
+ * od '#', odpowiedzi na komendy nigdy. Przy opcji subskrypcji replay po
+ * <code>OK SUB</code> przychodzą najpierw pomiary z historii, a po nich
+ * bieżące.
+ *
+ * Port ustawia -Dmonitor.stream.port (domyślnie 12088).
+ */
+public class SubscriptionServer implements ChannelSelectionHandler {
+
+	public static final int PORT = Integer.getInteger("monitor.stream.port",
+			12088);
+
+	public SubscriptionServer(MessageQueue messageQueue) throws IOException {
+		this(messageQueue, PORT);
+	}
+
+	public SubscriptionServer(MessageQueue messageQueue, int port)
+			throws IOException {
+		this.messageQueue = messageQueue;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		this.port = serverChannel.socket().getLocalPort();
+		messageQueue.registerChannel(serverChannel, this,
+				SelectionKey.OP_ACCEPT);
+		System.out.printf("Oczekiwanie na subskrybentów na porcie %d\n",
+				this.port);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	MessageQueue getMessageQueue() {
+		return messageQueue;
+	}
+
+	/**
+	 * Udostępnia subskrypcję klientom portu strumieniowego
+	 *
+	 * @param subscription
+	 */
+	void add(Subscription subscription) {
+		subscriptions.put(subscription.getId(), subscription);
+	}
+
+	void remove(Subscription subscription) {
+		subscriptions.remove(subscription.getId(), subscription);
+	}
+
+	/**
+	 * Subskrypcja o podanym id lub null
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Subscription find(int id) {
+		return subscriptions.get(id);
+	}
+
+	@Override
+	public void onSelected(SelectableChannel channel, int readyOperationsMask) {
+		if ((readyOperationsMask & SelectionKey.OP_ACCEPT) != 0) {
+			try {
+				SocketChannel socket = serverChannel.accept();
+				if (socket == null) {
+					return;
+				}
+				System.out.printf("New connection from client at %s\n",
+						socket.getRemoteAddress());
+				SubscriberConnection client = new SubscriberConnection(this,
+						socket);
+				messageQueue.registerChannel(socket, client,
+						SelectionKey.OP_READ);
+			} catch (IOException e) {
+				System.err.println("Unable to accept subscriber connection: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private final MessageQueue messageQueue;
+	private final ServerSocketChannel serverChannel;
+	private final int port;
+	private final ConcurrentHashMap<Integer, Subscription> subscriptions = new ConcurrentHashMap<Integer, Subscription>();
+}
@@ -0,0 +1,230 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import aggregation.RollupStage;
+import aggregation.WindowedAggregates;
+import derived.DerivedMetrics;
+import network.MessageQueue;
+import sensors.Sensor;
+import sensors.SensorDataCollector;
+import subscription.Subscription;
+import subscription.SubscriptionServer;
+
+/**
+ * Benchmark tras listingów i odczytów API subskrypcji: żądania przechodzą
+ * przez tabelę tras i handlery SubscriptionsHandler w procesie, bez
+ * połączenia HTTP i parsera Jetty. Żądanie i odpowiedź to obiekty Proxy
+ * (odpowiedź odrzuca treść), więc wynik zawiera też koszt wywołań przez
+ * refleksję - jest zaniżony.
+ *
+ * Cel: co najmniej 50 000 żądań/s na wątek dla każdej trasy (najwyżej 20
+ * us na żądanie po stronie handlera).
+ *
+ * <pre>
+ * javac -cp &lt;jetty i servlet-api&gt; -d out -sourcepath monitor/src monitor/test/http/RoutesBenchmark.java
+ * java -cp out:&lt;jetty i servlet-api&gt; http.RoutesBenchmark [sekundy na trasę] [wątki] [zasoby]
+ * </pre>
+ *
+ * Wymaga wolnego portu sensorów (12087).
+ */
+public class RoutesBenchmark {
+
+	private static final int TARGET = 50000;
+
+	/**
+	 * Strumień odpowiedzi zliczający i odrzucający bajty
+	 */
+	private static class DiscardingOutputStream extends ServletOutputStream {
+
+		@Override
+		public void write(int b) {
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			bytes += length;
+		}
+
+		long bytes;
+	}
+
+	/**
+	 * Żądanie GET z podaną ścieżką i parametrami
+	 */
+	private static HttpServletRequest request(final String uri,
+			final String... parameters) {
+		final HashMap<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i + 1 < parameters.length; i += 2) {
+			values.put(parameters[i], parameters[i + 1]);
+		}
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				RoutesBenchmark.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getMethod")) {
+							return "GET";
+						}
+						if (name.equals("getRequestURI")) {
+							return uri;
+						}
+						if (name.equals("getParameter")) {
+							return values.get(args[0]);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Odpowiedź zapisująca treść do podanego strumienia
+	 */
+	private static HttpServletResponse response(
+			final DiscardingOutputStream out) {
+		final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out),
+				true);
+		return (HttpServletResponse) Proxy.newProxyInstance(
+				RoutesBenchmark.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getOutputStream")) {
+							return out;
+						}
+						if (name.equals("getWriter")) {
+							return writer;
+						}
+						return null;
+					}
+				});
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		int resources = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+		MessageQueue queue = new MessageQueue();
+		SensorDataCollector collector = new SensorDataCollector(queue);
+		String[] metrics = { "cpu-usage", "mem-usage", "mem-total",
+				"disk-usage", "net-in", "net-out" };
+		Sensor first = null;
+		for (int i = 0; i < resources; i++) {
+			for (String metric : metrics) {
+				Sensor sensor = collector.getOrCreateSensor("host" + i, metric);
+				sensor.updateMeasurement(i);
+				if (first == null) {
+					first = sensor;
+				}
+			}
+		}
+		SubscriptionServer subscriptionServer = new SubscriptionServer(queue,
+				0);
+		Subscription subscription = new Subscription(subscriptionServer,
+				first, collector);
+		final SubscriptionsHandler handler = new SubscriptionsHandler(
+				collector, queue, new RollupStage(), subscriptionServer,
+				new WindowedAggregates(collector), new DerivedMetrics(
+						collector));
+
+		HttpServletRequest[] requests = {
+				request("/subscriptions/", "limit", "100"),
+				request("/subscriptions/", "prefix", "host42", "after",
+						"host420"),
+				request("/subscriptions/metrics/host42"),
+				request("/subscriptions/" + subscription.getId()),
+				request("/subscriptions/latest", "prefix", "host4242") };
+		String[] names = { "GET /subscriptions/?limit=100",
+				"GET /subscriptions/?prefix=host42&after=host420",
+				"GET /subscriptions/metrics/host42",
+				"GET /subscriptions/{id}",
+				"GET /subscriptions/latest?prefix=host4242" };
+
+		System.out.printf("%d resources, %d sensors, %d thread(s), target %d req/s per thread\n",
+				resources, resources * metrics.length, threads, TARGET);
+		boolean met = true;
+		for (int r = 0; r < requests.length; r++) {
+			// rozgrzewka
+			run(handler, requests[r], threads, Math.max(1, seconds / 2));
+			long[] result = run(handler, requests[r], threads, seconds);
+			double perSecond = result[0] * 1e9 / result[1];
+			double perThread = perSecond / threads;
+			met &= perThread >= TARGET;
+			System.out.printf("%-50s %10.0f req/s (%8.0f per thread, %5.2f us, %d B/response)%s\n",
+					names[r], perSecond, perThread, 1e6 / perThread,
+					result[2] / Math.max(1, result[0]),
+					perThread >= TARGET ? "" : "  BELOW TARGET");
+		}
+		System.exit(met ? 0 : 1);
+	}
+
+	/**
+	 * Wykonuje żądanie w pętli z podanej liczby wątków
+	 *
+	 * @return liczba żądań, czas w ns, liczba bajtów odpowiedzi
+	 */
+	private static long[] run(final SubscriptionsHandler handler,
+			final HttpServletRequest request, int threads, int seconds)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final long[] counts = new long[threads];
+		final long[] bytes = new long[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					DiscardingOutputStream out = new DiscardingOutputStream();
+					HttpServletResponse response = response(out);
+					long count = 0;
+					try {
+						while (System.nanoTime() < deadline) {
+							for (int i = 0; i < 100; i++) {
+								handler.route(request, response);
+							}
+							count += 100;
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					counts[index] = count;
+					bytes[index] = out.bytes;
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long total = 0;
+		long totalBytes = 0;
+		for (int t = 0; t < threads; t++) {
+			total += counts[t];
+			totalBytes += bytes[t];
+		}
+		return new long[] { total, elapsed, totalBytes };
+	}
+}
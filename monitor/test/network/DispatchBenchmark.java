@@ -0,0 +1,209 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark obsługi zdarzeń MessageQueue przy dużej liczbie kanałów.
+ *
+ * Dla każdej liczby kanałów otwiera tyle połączeń TCP na loopbacku i
+ * rejestruje stronę serwera w MessageQueue. Potem stała liczba aktywnych
+ * klientów w kolejnych rundach wysyła po bajcie, a pozostałe kanały są
+ * bezczynne. Ze statystyk pętli ({@link LoopStats}) liczony jest czas handlera
+ * na klucz i czas obiegu pętli - przy dispatchu przez klucz nie powinny
+ * rosnąć z liczbą zarejestrowanych kanałów. Na koniec mierzony jest czas
+ * wyrejestrowania wszystkich kanałów.
+ *
+ * <pre>
+ * javac -d out -sourcepath monitor/src monitor/test/network/DispatchBenchmark.java
+ * java -cp out network.DispatchBenchmark [liczby kanałów, np. 1000,10000,100000] [aktywne] [sekundy] [wątki robocze]
+ * </pre>
+ *
+ * Każdy kanał to dwa deskryptory plików: 100 000 kanałów wymaga ulimit -n
+ * powyżej 200 000.
+ */
+public class DispatchBenchmark {
+
+	// połączeń na jeden port nasłuchujący (zakres portów efemerycznych)
+	private static final int CONNECTIONS_PER_PORT = 20000;
+
+	/**
+	 * Handler kanału serwera: odczytuje i zlicza bajty
+	 */
+	private static class CountingHandler implements ChannelSelectionHandler {
+
+		CountingHandler(SocketChannel socket, AtomicLong received) {
+			this.socket = socket;
+			this.received = received;
+		}
+
+		@Override
+		public void onSelected(SelectableChannel channel,
+				int readyOperationsMask) {
+			ByteBuffer buffer = BUFFER.get();
+			buffer.clear();
+			try {
+				int read = socket.read(buffer);
+				if (read > 0) {
+					received.addAndGet(read);
+				}
+			} catch (IOException e) {
+				// kanał zamknięty w trakcie wyrejestrowania
+			}
+		}
+
+		private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(256);
+			}
+		};
+
+		private final SocketChannel socket;
+		private final AtomicLong received;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "1000,10000,100000")
+				.split(",");
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int workers = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		final MessageQueue queue = new MessageQueue(workers);
+		Thread loop = new Thread("MessageQueue") {
+			@Override
+			public void run() {
+				queue.run();
+			}
+		};
+		loop.setDaemon(true);
+		loop.start();
+
+		// rozgrzewka JIT na najmniejszej liczbie kanałów
+		run(queue, Math.min(active, 1000), active, 1, false);
+		System.out.printf("%d active channels, %d worker reactor(s)\n", active,
+				workers);
+		System.out.printf("%9s %12s %14s %12s %14s %16s\n", "channels",
+				"rounds/s", "handler ns/key", "keys/loop", "loop ns/key",
+				"unregister ns/ch");
+		for (String size : sizes) {
+			run(queue, Integer.parseInt(size.trim()), active, seconds, true);
+		}
+		System.exit(0);
+	}
+
+	private static void run(MessageQueue queue, int channels, int active,
+			int seconds, boolean print) throws IOException,
+			InterruptedException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		AtomicLong received = new AtomicLong();
+		ArrayList<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+		ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>(
+				channels);
+		ArrayList<SocketChannel> accepted = new ArrayList<SocketChannel>(
+				channels);
+		ServerSocketChannel server = null;
+		for (int i = 0; i < channels; i++) {
+			if (i % CONNECTIONS_PER_PORT == 0) {
+				server = ServerSocketChannel.open();
+				server.bind(new InetSocketAddress(loopback, 0), 1024);
+				servers.add(server);
+			}
+			SocketChannel client = SocketChannel.open(server
+					.getLocalAddress());
+			client.socket().setTcpNoDelay(true);
+			clients.add(client);
+			SocketChannel socket = server.accept();
+			accepted.add(socket);
+			queue.registerChannel(socket,
+					new CountingHandler(socket, received), SelectionKey.OP_READ);
+		}
+		// rejestracja odbywa się w wątkach reaktorów
+		Thread.sleep(500);
+
+		// aktywni klienci rozłożeni równomiernie po wszystkich kanałach
+		active = Math.min(active, channels);
+		SocketChannel[] writers = new SocketChannel[active];
+		for (int i = 0; i < active; i++) {
+			writers[i] = clients.get((int) ((long) i * channels / active));
+		}
+		ByteBuffer one = ByteBuffer.allocate(1);
+
+		long[] before = totals(queue);
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long start = System.nanoTime();
+		long rounds = 0;
+		long expected = received.get();
+		while (System.nanoTime() < deadline) {
+			for (SocketChannel writer : writers) {
+				one.clear();
+				writer.write(one);
+			}
+			expected += active;
+			while (received.get() < expected) {
+				Thread.yield();
+			}
+			rounds++;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long[] after = totals(queue);
+		long loops = after[0] - before[0];
+		long keys = after[1] - before[1];
+		long handlerNanos = after[2] - before[2];
+		long loopNanos = after[3] - before[3];
+
+		long unregisterStart = System.nanoTime();
+		for (SocketChannel socket : accepted) {
+			queue.unregisterChannel(socket);
+		}
+		long unregisterNanos = System.nanoTime() - unregisterStart;
+
+		if (print) {
+			System.out.printf("%9d %12.0f %14d %12.1f %14d %16d\n",
+					channels, rounds / elapsed, keys == 0 ? 0 : handlerNanos
+							/ keys, loops == 0 ? 0.0 : (double) keys / loops,
+					keys == 0 ? 0 : loopNanos / keys, unregisterNanos
+							/ channels);
+		}
+
+		Thread.sleep(500);
+		for (SocketChannel socket : accepted) {
+			socket.close();
+		}
+		for (SocketChannel client : clients) {
+			client.close();
+		}
+		for (ServerSocketChannel closed : servers) {
+			closed.close();
+		}
+	}
+
+	/**
+	 * Suma statystyk wszystkich reaktorów: obiegi, klucze, czas handlerów,
+	 * czas obiegów
+	 */
+	private static long[] totals(MessageQueue queue) {
+		long[] totals = new long[4];
+		add(totals, queue.getAcceptorStats());
+		for (LoopStats stats : queue.getWorkerStats()) {
+			add(totals, stats);
+		}
+		return totals;
+	}
+
+	private static void add(long[] totals, LoopStats stats) {
+		totals[0] += stats.getLoops();
+		totals[1] += stats.getKeysSelected();
+		totals[2] += stats.getHandlerNanos();
+		totals[3] += stats.getLoopNanos();
+	}
+}
@@ -0,0 +1,128 @@
+package sensors;
+
+import java.util.Random;
+
+/**
+ * Benchmark kompresji historii pomiarów ({@link CompressedBlock}): dla kilku
+ * rodzajów przebiegów zapisuje pomiary do {@link SensorHistory}, podaje
+ * rozmiar strumienia bitów na pomiar (bez nagłówków obiektów) i
+ * przepustowość dekodowania kursorem. Pierwszy odczyt sprawdza, czy czasy i
+ * wartości odtwarzane są dokładnie; kod wyjścia 1 przy rozbieżności.
+ *
+ * Czasy to odbiór co sekundę z losowym odchyleniem (domyślnie do 5 ms), jak
+ * dla sensora wysyłającego pomiar co sekundę.
+ *
+ * <pre>
+ * javac -d out -sourcepath monitor/src monitor/test/sensors/HistoryCompressionBenchmark.java
+ * java -cp out sensors.HistoryCompressionBenchmark [pomiary] [sekundy dekodowania] [odchylenie czasu w ms]
+ * </pre>
+ */
+public class HistoryCompressionBenchmark {
+
+	// surowy pomiar: czas long + wartość float
+	private static final int RAW_BYTES = 12;
+
+	public static void main(String[] args) {
+		int points = args.length > 0 ? Integer.parseInt(args[0]) : 86400;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int jitter = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		// tylko pełne (skompresowane) bloki
+		points -= points % SensorHistory.BLOCK_SIZE;
+
+		String[] names = { "constant (mem-total)", "slow gauge (mem-usage)",
+				"noisy 0.1 steps (cpu-usage)", "random floats" };
+		System.out.printf(
+				"%d points per series, 1 s interval +/- %d ms, raw %d B/point\n",
+				points, jitter, RAW_BYTES);
+		System.out.printf("%-30s %10s %8s %18s\n", "series", "B/point",
+				"ratio", "decode points/s");
+		boolean exact = true;
+		for (int kind = 0; kind < names.length; kind++) {
+			long[] timestamps = new long[points];
+			float[] values = new float[points];
+			generate(kind, jitter, timestamps, values);
+
+			SensorHistory history = new SensorHistory(points);
+			for (int i = 0; i < points; i++) {
+				history.add(timestamps[i], values[i]);
+			}
+			double bytesPerPoint = (double) history.getCompressedBytes()
+					/ points;
+
+			SensorHistory.Cursor cursor = history.cursor(0);
+			for (int i = 0; i < points; i++) {
+				if (!cursor.next()
+						|| cursor.getTimestamp() != timestamps[i]
+						|| Float.floatToIntBits(cursor.getValue()) != Float
+								.floatToIntBits(values[i])) {
+					System.out.printf("%s: mismatch at point %d\n",
+							names[kind], i);
+					exact = false;
+					break;
+				}
+			}
+
+			// rozgrzewka, potem pomiar
+			decode(history, 1);
+			double perSecond = decode(history, seconds);
+			System.out.printf("%-30s %10.2f %7.1fx %18.0f\n", names[kind],
+					bytesPerPoint, RAW_BYTES / bytesPerPoint, perSecond);
+		}
+		System.exit(exact ? 0 : 1);
+	}
+
+	private static void generate(int kind, int jitter, long[] timestamps,
+			float[] values) {
+		Random random = new Random(kind);
+		long time = 1400000000000L;
+		float level = 42.0f;
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = time + 1000L * i + random.nextInt(2 * jitter + 1)
+					- jitter;
+			switch (kind) {
+			case 0:
+				values[i] = 16384000f;
+				break;
+			case 1:
+				// zmiana o 0.1 średnio co kilkanaście pomiarów
+				if (random.nextInt(16) == 0) {
+					level += random.nextBoolean() ? 0.1f : -0.1f;
+				}
+				values[i] = Math.round(level * 10) / 10f;
+				break;
+			case 2:
+				values[i] = random.nextInt(1001) / 10f;
+				break;
+			default:
+				values[i] = random.nextFloat() * 1000;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Odczytuje całą historię jednym kursorem przez podany czas
+	 *
+	 * @return pomiary na sekundę
+	 */
+	private static double decode(SensorHistory history, int seconds) {
+		SensorHistory.Cursor cursor = history.cursor(0);
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long start = System.nanoTime();
+		long decoded = 0;
+		double checksum = 0;
+		while (System.nanoTime() < deadline) {
+			cursor.seek(history.getFirstSequence());
+			while (cursor.next()) {
+				checksum += cursor.getValue();
+				decoded++;
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if (checksum == 0.5) {
+			// wynik musi być użyty, żeby JIT nie usunął pętli
+			System.out.print("");
+		}
+		return decoded / elapsed;
+	}
+}
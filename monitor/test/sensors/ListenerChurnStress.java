@@ -0,0 +1,136 @@
+package sensors;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import network.MessageQueue;
+
+/**
+ * Test obciążeniowy tablic słuchaczy sensorów: wątki pomiarowe publikują
+ * pomiary ścieżką fizycznego sensora (updateMeasurement + notifyUpdate),
+ * a równolegle wątki subskrybentów bez przerwy dodają i usuwają słuchaczy
+ * tych samych sensorów.
+ *
+ * Sprawdza, że nie ma wyjątków i że stały słuchacz każdego sensora dostał
+ * dokładnie tyle powiadomień, ile było pomiarów. Kod wyjścia 1 przy błędzie.
+ *
+ * <pre>
+ * javac -d out -sourcepath monitor/src monitor/test/sensors/ListenerChurnStress.java
+ * java -cp out sensors.ListenerChurnStress [sekundy] [sensory] [wątki pomiarowe] [wątki subskrybentów]
+ * </pre>
+ *
+ * Wymaga wolnego portu sensorów (12087) - SensorDataCollector otwiera go w
+ * konstruktorze.
+ */
+public class ListenerChurnStress {
+
+	/**
+	 * Słuchacz zliczający powiadomienia
+	 */
+	private static class CountingListener implements SensorUpdateListener {
+
+		@Override
+		public void onUpdate(Sensor sensor) {
+			updates.incrementAndGet();
+		}
+
+		@Override
+		public void onDisconnected(Sensor sensor) {
+		}
+
+		@Override
+		public void onRemoved(Sensor sensor) {
+		}
+
+		final AtomicLong updates = new AtomicLong();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int sensorCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int ingestThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int churnThreads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+		final SensorDataCollector collector = new SensorDataCollector(
+				new MessageQueue());
+		final Sensor[] sensors = new Sensor[sensorCount];
+		final CountingListener[] stable = new CountingListener[sensorCount];
+		final AtomicLong[] published = new AtomicLong[sensorCount];
+		for (int i = 0; i < sensorCount; i++) {
+			sensors[i] = collector.getOrCreateSensor("host" + i, "cpu-usage");
+			stable[i] = new CountingListener();
+			published[i] = new AtomicLong();
+			collector.addSensorUpdateListener(sensors[i], stable[i]);
+		}
+
+		final long deadline = System.currentTimeMillis() + seconds * 1000L;
+		final AtomicLong churn = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		Thread[] threads = new Thread[ingestThreads + churnThreads];
+		for (int t = 0; t < ingestThreads; t++) {
+			final int first = t;
+			final int step = ingestThreads;
+			threads[t] = new Thread("ingest-" + t) {
+				@Override
+				public void run() {
+					float value = 0;
+					try {
+						while (System.currentTimeMillis() < deadline) {
+							for (int n = 0; n < 1000; n++) {
+								for (int i = first; i < sensors.length; i += step) {
+									sensors[i].updateMeasurement(value++);
+									collector.notifyUpdate(sensors[i]);
+									published[i].incrementAndGet();
+								}
+							}
+						}
+					} catch (RuntimeException e) {
+						errors.incrementAndGet();
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+		for (int t = 0; t < churnThreads; t++) {
+			final Random random = new Random(t);
+			threads[ingestThreads + t] = new Thread("churn-" + t) {
+				@Override
+				public void run() {
+					try {
+						while (System.currentTimeMillis() < deadline) {
+							Sensor sensor = sensors[random.nextInt(sensors.length)];
+							CountingListener listener = new CountingListener();
+							collector.addSensorUpdateListener(sensor, listener);
+							collector.removeSensorListener(sensor, listener);
+							churn.incrementAndGet();
+						}
+					} catch (RuntimeException e) {
+						errors.incrementAndGet();
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long updates = 0;
+		long missed = 0;
+		for (int i = 0; i < sensorCount; i++) {
+			updates += published[i].get();
+			missed += Math.abs(published[i].get() - stable[i].updates.get());
+		}
+		System.out.printf(
+				"%d updates (%.0f/s), %d subscribe/unsubscribe pairs (%.0f/s), %d missed, %d errors\n",
+				updates, updates / elapsed, churn.get(), churn.get() / elapsed,
+				missed, errors.get());
+		System.exit(missed == 0 && errors.get() == 0 ? 0 : 1);
+	}
+}
@@ -29,7 +29,7 @@ def makemessage(data, resource, metric):
     def joiner(record):
         return '<record>\n<resource>' + record[0] + '</resource>\n'\
             + '<value>' + str(record[1]) + '</value>\n</record>\n'
-    return '%s#%s#%f' % (resource, metric, data)
+    return '%s#%s#%f\n' % (resource, metric, data)
     
 
 def main(monitor_address, monitor_port, resource, metric):